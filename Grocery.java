@@ -1,5 +1,61 @@
 import java.io.*;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.GeneralSecurityException;
+import java.time.DateTimeException;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.TemporalQueries;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.function.IntPredicate;
+import java.util.function.ObjIntConsumer;
+import java.util.function.Predicate;
+import java.util.function.UnaryOperator;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32C;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
 
 public class Grocery {
 
@@ -7,13 +63,14 @@ public class Grocery {
     public static class Product{
         private int id;
         private String name;
-        private double price;
+        private long priceCents;
         private long barcode;
+        private int ordinal = -1; // Position in the catalog, assigned when the product is added
 
-        public Product(int id, String name, double price, long barcode) {
+        public Product(int id, String name, long priceCents, long barcode) {
             this.id = id;
             this.name = name;
-            this.price = price;
+            this.priceCents = priceCents;
             this.barcode = barcode;
         }
 
@@ -25,8 +82,8 @@ public class Grocery {
             return name;
         }
 
-        public double getPrice() {
-            return price;
+        public long getPriceCents() {
+            return priceCents;
         }
 
         public long getBarcode() {
@@ -43,851 +100,7434 @@ public class Grocery {
 
         @Override
         public int hashCode() {
-            return Objects.hash(barcode);
+            return Long.hashCode(barcode);
         }
 
         @Override
         public String toString() {
-            return id + ". " + name + " - $" + price + " (Barcode: " + barcode + ")";
+            return id + ". " + name + " - $" + Money.format(priceCents) + " (Barcode: " + barcode + ")";
         }
     }
 
-    // CartItem class
-    public static class CartItem {
-        private Product product;
-        private int quantity;
+    // LongMap class
+    // Open-addressing hash map keyed by primitive longs, so barcode and id lookups never box a key.
+    public static class LongMap<V> {
+        private long[] keys;
+        private Object[] values;
+        private int size;
+        private int mask;
 
-        public CartItem(Product product, int quantity) {
-            this.product = product;
-            this.quantity = quantity;
+        public LongMap() {
+            this(16);
         }
 
-        public Product getProduct() {
-            return product;
+        public LongMap(int expectedSize) {
+            int capacity = Integer.highestOneBit(Math.max(4, expectedSize * 2 - 1)) << 1;
+            keys = new long[capacity];
+            values = new Object[capacity];
+            mask = capacity - 1;
         }
 
-        public int getQuantity() {
-            return quantity;
+        private static int slot(long key, int mask) {
+            long h = key * 0x9E3779B97F4A7C15L;
+            return (int) (h ^ (h >>> 32)) & mask;
         }
 
-        public void setQuantity(int quantity) {
-            this.quantity = quantity;
+        @SuppressWarnings("unchecked")
+        public V get(long key) {
+            for (int i = slot(key, mask); values[i] != null; i = (i + 1) & mask) {
+                if (keys[i] == key) {
+                    return (V) values[i];
+                }
+            }
+            return null;
         }
-    }
 
-    // Cart class
-    public static class Cart {
-        private List<CartItem> items = new ArrayList<>();
+        @SuppressWarnings("unchecked")
+        public V put(long key, V value) {
+            int i = slot(key, mask);
+            for (; values[i] != null; i = (i + 1) & mask) {
+                if (keys[i] == key) {
+                    V previous = (V) values[i];
+                    values[i] = value;
+                    return previous;
+                }
+            }
+            keys[i] = key;
+            values[i] = value;
+            if (++size * 2 > keys.length) {
+                resize();
+            }
+            return null;
+        }
 
-        public void addProduct(Product product, int quantity) {
-            for (CartItem item : items) {
-                if (item.getProduct().equals(product)) {
-                    item.setQuantity(item.getQuantity() + quantity);
-                    return;
+        public V putIfAbsent(long key, V value) {
+            V existing = get(key);
+            return existing != null ? existing : put(key, value);
+        }
+
+        @SuppressWarnings("unchecked")
+        public V remove(long key) {
+            for (int i = slot(key, mask); values[i] != null; i = (i + 1) & mask) {
+                if (keys[i] == key) {
+                    V previous = (V) values[i];
+                    // Shift later entries of the probe run back into the hole so lookups never stop early
+                    int gap = i;
+                    for (int j = (i + 1) & mask; values[j] != null; j = (j + 1) & mask) {
+                        int home = slot(keys[j], mask);
+                        if (((j - home) & mask) >= ((j - gap) & mask)) {
+                            keys[gap] = keys[j];
+                            values[gap] = values[j];
+                            gap = j;
+                        }
+                    }
+                    values[gap] = null;
+                    size--;
+                    return previous;
+                }
+            }
+            return null;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        public void clear() {
+            Arrays.fill(values, null);
+            size = 0;
+        }
+
+        // A map of its own with each value passed through copyValue, for values that are changed in place.
+        @SuppressWarnings("unchecked")
+        public LongMap<V> copy(UnaryOperator<V> copyValue) {
+            LongMap<V> copy = new LongMap<>(0);
+            copy.keys = keys.clone();
+            copy.values = new Object[values.length];
+            for (int i = 0; i < values.length; i++) {
+                if (values[i] != null) {
+                    copy.values[i] = copyValue.apply((V) values[i]);
                 }
             }
-            items.add(new CartItem(product, quantity));
+            copy.size = size;
+            copy.mask = mask;
+            return copy;
         }
 
-        public void reduceProduct(Product product, int quantity) {
-            for (Iterator<CartItem> iterator = items.iterator(); iterator.hasNext();) {
-                CartItem item = iterator.next();
-                if (item.getProduct().equals(product)) {
-                    if (item.getQuantity() <= quantity) {
-                        iterator.remove();
-                    } else {
-                        item.setQuantity(item.getQuantity() - quantity);
+        private void resize() {
+            long[] oldKeys = keys;
+            Object[] oldValues = values;
+            keys = new long[oldKeys.length * 2];
+            values = new Object[oldValues.length * 2];
+            mask = keys.length - 1;
+            for (int j = 0; j < oldKeys.length; j++) {
+                if (oldValues[j] != null) {
+                    int i = slot(oldKeys[j], mask);
+                    while (values[i] != null) {
+                        i = (i + 1) & mask;
                     }
-                    return;
+                    keys[i] = oldKeys[j];
+                    values[i] = oldValues[j];
+                }
+            }
+        }
+    }
+
+    // ProductCatalog class
+    // Owns the inventory and keeps id, barcode and name indexes so lookups are O(1) instead of a scan over the list.
+    // When two products share a key the first one added wins, which is what the old linear scans returned.
+    // Product fields and the key indexes live in a ProductTable: ObjectProductTable keeps a Product per position,
+    // ColumnarProductTable keeps plain arrays for catalogs of millions of products. Stock levels live in a StockLedger
+    // indexed by each product's position.
+    // The table, the search index and the listing lines make up a Version. add and put change the live one while the
+    // catalog is built; once shoppers are in, merge builds the next version on a copy and swaps it in with one write,
+    // so a lookup runs against whichever version it started with and never waits. Positions never change from one
+    // version to the next, so stock levels and products already in carts carry over.
+    public static class ProductCatalog {
+        public static final int SEARCH_LIMIT = 25;
+
+        private final StockLedger stock = new StockLedger();
+        private final ChangeSet changed = new ChangeSet(); // Positions to save: stock taken, or changed by an import
+        private volatile Version version;
+
+        // Version class
+        private static class Version {
+            private final ProductTable table;
+            private final ProductSearchIndex searchIndex;
+            private volatile AtomicReferenceArray<byte[]> lines; // Listing lines by position, filled as shown
+
+            Version(ProductTable table, ProductSearchIndex searchIndex, AtomicReferenceArray<byte[]> lines) {
+                this.table = table;
+                this.searchIndex = searchIndex;
+                this.lines = lines;
+            }
+
+            // Growing and forgetting share a lock, so a replaced product's line cannot be carried into a new array. A line
+            // cached into an array that was just replaced is only lost, and formatted again next time.
+            synchronized AtomicReferenceArray<byte[]> growLines(int ordinal) {
+                AtomicReferenceArray<byte[]> cached = lines;
+                if (ordinal < cached.length()) {
+                    return cached;
+                }
+                AtomicReferenceArray<byte[]> grown = new AtomicReferenceArray<>(Math.max(ordinal + 1, Math.max(table.size(), cached.length() * 2)));
+                for (int i = 0; i < cached.length(); i++) {
+                    grown.set(i, cached.get(i));
                 }
+                lines = grown;
+                return grown;
+            }
+
+            synchronized void forgetLine(int ordinal) {
+                if (ordinal < lines.length()) {
+                    lines.set(ordinal, null);
+                }
+            }
+
+            // The cached lines, to start the next version with.
+            synchronized AtomicReferenceArray<byte[]> copyLines() {
+                AtomicReferenceArray<byte[]> copy = new AtomicReferenceArray<>(lines.length());
+                for (int i = 0; i < copy.length(); i++) {
+                    copy.set(i, lines.get(i));
+                }
+                return copy;
             }
         }
 
-        public void removeProduct(Product product) {
-            items.removeIf(item -> item.getProduct().equals(product));
+        public ProductCatalog() {
+            this(new ObjectProductTable());
         }
 
-        public double calculateTotal() {
-            return items.stream().mapToDouble(item -> item.getProduct().getPrice() * item.getQuantity()).sum();
+        public ProductCatalog(ProductTable table) {
+            this.version = new Version(table, new ProductSearchIndex(), new AtomicReferenceArray<>(0));
         }
 
-        public void clearCart() {
-            items.clear();
+        public void add(Product product) {
+            add(product, StockLedger.UNLIMITED);
         }
 
-        @Override
-        public String toString() {
-            if (items.isEmpty()) return "Cart is empty.";
-            StringBuilder sb = new StringBuilder("Cart: \n");
-            for (CartItem item : items) {
-                sb.append(item.getProduct().getName()).append(" (x").append(item.getQuantity()).append(") - $")
-                        .append(item.getProduct().getPrice() * item.getQuantity()).append("\n");
+        public void add(Product product, int stockLevel) {
+            Version current = version;
+            product.ordinal = current.table.add(product);
+            stock.set(product.ordinal, stockLevel);
+            current.searchIndex.set(product.ordinal, product.getName());
+        }
+
+        // Adds the product, or swaps it in for the one with the same barcode, keeping that product's position.
+        public void put(Product product, int stockLevel) {
+            Version current = version;
+            int existing = current.table.findBarcode(product.getBarcode());
+            if (existing < 0) {
+                add(product, stockLevel);
+                return;
             }
-            sb.append("Total: $").append(calculateTotal());
-            return sb.toString();
+            product.ordinal = existing;
+            current.table.replace(existing, product);
+            stock.set(existing, stockLevel);
+            current.searchIndex.set(existing, product.getName());
+            current.forgetLine(existing);
         }
 
-        public boolean isEmpty() {
-            return items.isEmpty();
+        // Publishes a new version with the rows applied. A row whose barcode is in the catalog replaces that product in
+        // its position, and takes the row's stock level if it has one; any other row is added at the end. A row whose id
+        // belongs to a different product is rejected. Rows that change nothing are counted and skipped, and nothing is
+        // published if no row changed anything. Imports run one at a time; lookups carry on against the live version
+        // until the new one is swapped in.
+        public synchronized void merge(List<ProductImport.Row> rows, ProductImport.Report report) {
+            Version current = version;
+            ProductTable table = current.table.copy();
+            ProductSearchIndex searchIndex = current.searchIndex.copy();
+            AtomicReferenceArray<byte[]> lines = current.copyLines();
+            IntList touched = new IntList();
+            IntList restocked = new IntList(); // Existing positions and their new levels, set once the version is live
+            for (ProductImport.Row row : rows) {
+                Product product = row.getProduct();
+                int existing = table.findBarcode(product.getBarcode());
+                int owner = table.findId(product.getId());
+                if (owner >= 0 && owner != existing) {
+                    report.reject(row.getLine(), "id " + product.getId() + " belongs to barcode " + table.get(owner).getBarcode());
+                    continue;
+                }
+                if (existing < 0) {
+                    product.ordinal = table.add(product);
+                    stock.set(product.ordinal, row.hasStock() ? row.getStock() : StockLedger.UNLIMITED); // Not visible until published
+                    searchIndex.set(product.ordinal, product.getName());
+                    touched.add(product.ordinal);
+                    report.added();
+                    continue;
+                }
+                Product old = table.get(existing);
+                boolean restock = row.hasStock() && row.getStock() != stock.get(existing);
+                boolean sameProduct = old.getId() == product.getId() && old.getPriceCents() == product.getPriceCents() && old.getName().equals(product.getName());
+                if (sameProduct && !restock) {
+                    report.unchanged();
+                    continue;
+                }
+                if (!sameProduct) {
+                    product.ordinal = existing;
+                    table.replace(existing, product);
+                    if (!old.getName().equals(product.getName())) {
+                        searchIndex.set(existing, product.getName());
+                    }
+                    if (existing < lines.length()) {
+                        lines.set(existing, null);
+                    }
+                }
+                if (restock) {
+                    restocked.add(existing);
+                    restocked.add(row.getStock());
+                }
+                touched.add(existing);
+                report.updated();
+            }
+            if (touched.isEmpty()) {
+                return;
+            }
+            version = new Version(table, searchIndex, lines);
+            for (int i = 0; i < restocked.size(); i += 2) {
+                stock.set(restocked.get(i), restocked.get(i + 1));
+            }
+            for (int i = 0; i < touched.size(); i++) {
+                changed.add(touched.get(i));
+            }
         }
 
-        public List<CartItem> getItems() {
-            return items;
+        public Product findById(int id) {
+            long start = Metrics.sample();
+            Version current = version;
+            return found(current, current.table.findId(id), start);
         }
-    }
 
-    // User class
-    public static class User {
-        private String name;
-        private String email;
-        private String password;
-        private Cart cart = new Cart();
+        public Product findByBarcode(long barcode) {
+            long start = Metrics.sample();
+            Version current = version;
+            return found(current, current.table.findBarcode(barcode), start);
+        }
 
-        public User(String name, String email, String password) {
-            this.name = name;
-            this.email = email;
-            this.password = password;
+        public Product findByName(String name) {
+            long start = Metrics.sample();
+            Version current = version;
+            return found(current, current.table.findName(foldName(name)), start);
         }
 
-        public String getName() {
-            return name;
+        private static Product found(Version current, int ordinal, long start) {
+            Product product = ordinal < 0 ? null : current.table.get(ordinal);
+            Metrics.CATALOG_LOOKUP.stop(start);
+            if (product == null) {
+                Metrics.CATALOG_MISSES.increment();
+            }
+            return product;
         }
 
-        public void setName(String name) {
-            this.name = name;
+        // Read-only and in catalog order, as of the call; with a columnar table each element is created as it is read.
+        public List<Product> getProducts() {
+            ProductTable table = version.table;
+            return new AbstractList<Product>() {
+                @Override
+                public Product get(int index) {
+                    Objects.checkIndex(index, table.size());
+                    return table.get(index);
+                }
+
+                @Override
+                public int size() {
+                    return table.size();
+                }
+            };
         }
 
-        public String getEmail() {
-            return email;
+        // The product's line in the listing, as Product.toString() writes it, in UTF-8. It is formatted the first time it
+        // is shown and kept until the product is replaced, so paging through the catalog again formats nothing.
+        public byte[] line(int ordinal) {
+            return line(version, ordinal);
         }
 
-        public String getPassword(){
-            return password;
+        private static byte[] line(Version current, int ordinal) {
+            AtomicReferenceArray<byte[]> cached = current.lines;
+            if (ordinal >= cached.length()) {
+                cached = current.growLines(ordinal);
+            }
+            byte[] line = cached.get(ordinal);
+            if (line == null) {
+                line = current.table.get(ordinal).toString().getBytes(StandardCharsets.UTF_8);
+                cached.set(ordinal, line);
+            }
+            return line;
         }
 
+        // Writes up to count listing lines starting at position from, and returns the position the next page starts at,
+        // which is size() after the last page.
+        public int renderProducts(Renderer out, int from, int count) {
+            Version current = version;
+            int to = (int) Math.min(current.table.size(), (long) from + count);
+            for (int ordinal = from; ordinal < to; ordinal++) {
+                out.append(line(current, ordinal)).newline();
+            }
+            return Math.max(from, to);
+        }
 
-        public Cart getCart() {
-            return cart;
+        // Products whose name contains the query, ignoring case, best matches first.
+        public List<Product> search(String query, int limit) {
+            return search(query, limit, null);
         }
 
-        @Override
-        public String toString() {
-            return "User: " + name + " (" + email + ")";
+        // As above, restricted to products the filter accepts (e.g. the ones in a cart).
+        public List<Product> search(String query, int limit, Predicate<Product> filter) {
+            Version current = version;
+            ProductTable table = current.table;
+            int[] ordinals = current.searchIndex.search(query, limit, filter == null ? null : ordinal -> filter.test(table.get(ordinal)));
+            List<Product> matches = new ArrayList<>(ordinals.length);
+            for (int ordinal : ordinals) {
+                matches.add(table.get(ordinal));
+            }
+            return matches;
         }
-    }
 
-    // Order class
-    public static class Order {
-        private User user;
-        private Cart cart;
-        private Date orderDate;
+        public int size() {
+            return version.table.size();
+        }
 
-        public Order(User user, Cart cart) {
-            this.user = user;
-            this.cart = cart;
-            this.orderDate = new Date();
+        public int getStock(Product product) {
+            return stock.get(product.ordinal);
         }
 
-        public User getUser() {
-            return user;
+        // Takes stock for every line or for none: if a line is short, what was already taken is handed back. Returns
+        // null when everything was reserved, otherwise the product that was short. No lock is held across lines, so
+        // checkouts never wait on each other.
+        public Product reserve(List<CartItem> items) {
+            ProductTable table = version.table;
+            for (int i = 0; i < items.size(); i++) {
+                CartItem item = items.get(i);
+                int ordinal = table.findBarcode(item.getProduct().getBarcode());
+                if (ordinal < 0 || !stock.tryTake(ordinal, item.getQuantity())) {
+                    release(items.subList(0, i));
+                    return item.getProduct();
+                }
+            }
+            return null;
         }
 
-        public Cart getCart() {
-            return cart;
+        // Hands back a reservation whose order could not be written.
+        public void release(List<CartItem> items) {
+            ProductTable table = version.table;
+            for (CartItem item : items) {
+                int ordinal = table.findBarcode(item.getProduct().getBarcode());
+                if (ordinal >= 0) {
+                    stock.giveBack(ordinal, item.getQuantity());
+                }
+            }
         }
 
-        public Date getOrderDate() {
-            return orderDate;
+        // Makes a reservation final once its order is written; the new stock levels are saved with the next save.
+        public void commit(List<CartItem> items) {
+            ProductTable table = version.table;
+            for (CartItem item : items) {
+                int ordinal = table.findBarcode(item.getProduct().getBarcode());
+                if (ordinal >= 0 && stock.get(ordinal) != StockLedger.UNLIMITED) {
+                    changed.add(ordinal);
+                }
+            }
         }
 
-        @Override
-        public String toString() {
-            return "Order by " + user.getName() + " on " + orderDate + "\n" + cart.toString();
+        // Returns the positions changed since the last call and forgets them. A change made meanwhile is kept for the next call.
+        public int[] takeChanged() {
+            return changed.take();
+        }
+
+        // Puts back changes that could not be saved.
+        public void markChanged(int[] ordinals) {
+            for (int ordinal : ordinals) {
+                changed.add(ordinal);
+            }
+        }
+
+        public boolean hasChanges() {
+            return !changed.isEmpty();
+        }
+
+        static String foldName(String name) {
+            return name.toLowerCase(Locale.ROOT);
         }
     }
 
-    // File writing functions
+    // ProductTable interface
+    // Product fields by catalog position, with the id, barcode and name indexes. Lookups return a position, or -1.
+    public interface ProductTable {
+        int size();
+
+        Product get(int ordinal);
+
+        // Appends the product and returns its position. Its keys are indexed unless another product already has them.
+        int add(Product product);
+
+        // Swaps in a product at a position, moving any keys that pointed at the old one.
+        void replace(int ordinal, Product product);
 
-    public static void saveUsers(Map<String, User> users) throws IOException {
-        try (BufferedWriter writer = new BufferedWriter(new FileWriter("users.csv"))) {
-            for (User user : users.values()) {
-                writer.write(user.getName() + "," + user.getEmail() + "," + user.getPassword());
-                for (CartItem item : user.getCart().getItems()) {
-                    writer.write("," + item.getProduct().getBarcode() + ":" + item.getQuantity());
+        int findId(int id);
+
+        int findBarcode(long barcode);
+
+        int findName(String foldedName);
+
+        // A table of its own holding the same products at the same positions, to build the next catalog version in.
+        ProductTable copy();
+    }
+
+    // KeyChain class
+    // Every position holding a key, not only the first, as lists threaded through one int array in position order. An
+    // index keeps the first position of each key and the chain the ones after it, so when a replace takes the key away
+    // from the first position it passes to the next product holding it, the one a scan of the list would find.
+    static class KeyChain {
+        private int[] next = new int[16];
+
+        int next(int ordinal) {
+            return next[ordinal];
+        }
+
+        // Links a position into the list that starts at first (-1 if there is none) and returns the list's new start.
+        int link(int first, int ordinal) {
+            if (ordinal >= next.length) {
+                next = Arrays.copyOf(next, Math.max(ordinal + 1, next.length * 2));
+            }
+            if (first < 0 || ordinal < first) {
+                next[ordinal] = first;
+                return ordinal;
+            }
+            int at = first;
+            while (next[at] >= 0 && next[at] < ordinal) {
+                at = next[at];
+            }
+            next[ordinal] = next[at];
+            next[at] = ordinal;
+            return first;
+        }
+
+        // Unlinks a position from the list that starts at first and returns the list's new start, -1 once it is empty.
+        int unlink(int first, int ordinal) {
+            if (first == ordinal) {
+                return next[ordinal];
+            }
+            for (int at = first; at >= 0; at = next[at]) {
+                if (next[at] == ordinal) {
+                    next[at] = next[ordinal];
+                    break;
                 }
-                writer.newLine();
             }
+            return first;
+        }
+
+        KeyChain copy() {
+            KeyChain copy = new KeyChain();
+            copy.next = Arrays.copyOf(next, next.length);
+            return copy;
         }
     }
 
-    public static void saveProducts(List<Product> products) throws IOException {
-        try (BufferedWriter writer = new BufferedWriter(new FileWriter("products.csv"))) {
+    // ObjectProductTable class
+    // One Product object per position, indexed by hash maps. Lookups hand out the stored objects themselves.
+    public static class ObjectProductTable implements ProductTable {
+        private final List<Product> products = new ArrayList<>();
+        private final LongMap<Product> byId = new LongMap<>();
+        private final LongMap<Product> byBarcode = new LongMap<>();
+        private final Map<String, Product> byName = new HashMap<>();
+        private final KeyChain idChain = new KeyChain();
+        private final KeyChain barcodeChain = new KeyChain();
+        private final KeyChain nameChain = new KeyChain();
+
+        @Override
+        public int size() {
+            return products.size();
+        }
+
+        @Override
+        public Product get(int ordinal) {
+            return products.get(ordinal);
+        }
+
+        @Override
+        public int add(Product product) {
+            products.add(product);
+            int ordinal = products.size() - 1;
+            product.ordinal = ordinal; // The indexes find a key's first position through the product holding it
+            index(ordinal, product);
+            return ordinal;
+        }
+
+        @Override
+        public void replace(int ordinal, Product product) {
+            Product existing = products.set(ordinal, product);
+            product.ordinal = ordinal;
+            long id = existing.getId();
+            move(byId, id, idChain.unlink(ordinalOf(byId.get(id)), ordinal));
+            long barcode = existing.getBarcode();
+            move(byBarcode, barcode, barcodeChain.unlink(ordinalOf(byBarcode.get(barcode)), ordinal));
+            String name = ProductCatalog.foldName(existing.getName());
+            int first = nameChain.unlink(ordinalOf(byName.get(name)), ordinal);
+            if (first < 0) {
+                byName.remove(name);
+            } else {
+                byName.put(name, products.get(first));
+            }
+            index(ordinal, product);
+        }
+
+        private void index(int ordinal, Product product) {
+            long id = product.getId();
+            move(byId, id, idChain.link(ordinalOf(byId.get(id)), ordinal));
+            long barcode = product.getBarcode();
+            move(byBarcode, barcode, barcodeChain.link(ordinalOf(byBarcode.get(barcode)), ordinal));
+            String name = ProductCatalog.foldName(product.getName());
+            byName.put(name, products.get(nameChain.link(ordinalOf(byName.get(name)), ordinal)));
+        }
+
+        // Points a key at the first position of its chain, or drops it when no position holds it any more.
+        private void move(LongMap<Product> index, long key, int first) {
+            if (first < 0) {
+                index.remove(key);
+            } else {
+                index.put(key, products.get(first));
+            }
+        }
+
+        @Override
+        public int findId(int id) {
+            return ordinalOf(byId.get(id));
+        }
+
+        @Override
+        public int findBarcode(long barcode) {
+            return ordinalOf(byBarcode.get(barcode));
+        }
+
+        @Override
+        public int findName(String foldedName) {
+            return ordinalOf(byName.get(foldedName));
+        }
+
+        private static int ordinalOf(Product product) {
+            return product == null ? -1 : product.ordinal;
+        }
+
+        // Shares the Product objects, which are never changed once added, and indexes them again in position order.
+        @Override
+        public ObjectProductTable copy() {
+            ObjectProductTable copy = new ObjectProductTable();
             for (Product product : products) {
-                writer.write(product.getId() + "," + product.getName() + "," + product.getPrice() + "," + product.getBarcode());
-                writer.newLine();
+                copy.add(product);
             }
+            return copy;
         }
     }
 
-    // Function to encrypt password
-    static String railFenceEncrypt(String password){
-        StringBuilder encrypted = new StringBuilder();
-        int rail = 3; // Number of rails
-        char[][] railFence = new char[rail][password.length()];
-        boolean dirDown = false;
-        int row = 0, col = 0;
+    // ColumnarProductTable class
+    // Products as parallel primitive arrays, with every name stored once as UTF-8 in a shared byte pool and the indexes
+    // mapping keys to positions in LongLongMaps. A Product is only created when a lookup returns one, and nothing holds
+    // on to it, so a catalog costs a few dozen bytes per product instead of several objects each. The name index is
+    // keyed by a 64-bit hash of the lowercased name, and a lookup walks the positions sharing that hash comparing the
+    // stored bytes with the name, so a collision costs a step along the chain rather than a scan.
+    public static class ColumnarProductTable implements ProductTable {
+        private int[] ids = new int[16];
+        private long[] barcodes = new long[16];
+        private long[] prices = new long[16]; // In cents
+        private int[] nameStarts = new int[16];
+        private int[] nameLengths = new int[16];
+        private byte[] namePool = new byte[256];
+        private int poolSize;
+        private int size;
+        private LongLongMap byId = new LongLongMap(16);
+        private LongLongMap byBarcode = new LongLongMap(16);
+        private LongLongMap byName = new LongLongMap(16);
+        private KeyChain idChain = new KeyChain();
+        private KeyChain barcodeChain = new KeyChain();
+        private KeyChain nameChain = new KeyChain();
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        @Override
+        public Product get(int ordinal) {
+            Product product = new Product(ids[ordinal], name(ordinal), prices[ordinal], barcodes[ordinal]);
+            product.ordinal = ordinal;
+            return product;
+        }
+
+        @Override
+        public int add(Product product) {
+            if (size == ids.length) {
+                int capacity = size * 2;
+                ids = Arrays.copyOf(ids, capacity);
+                barcodes = Arrays.copyOf(barcodes, capacity);
+                prices = Arrays.copyOf(prices, capacity);
+                nameStarts = Arrays.copyOf(nameStarts, capacity);
+                nameLengths = Arrays.copyOf(nameLengths, capacity);
+            }
+            int ordinal = size++;
+            store(ordinal, product);
+            index(ordinal);
+            return ordinal;
+        }
+
+        @Override
+        public void replace(int ordinal, Product product) {
+            move(byId, ids[ordinal], idChain.unlink((int) byId.get(ids[ordinal]), ordinal));
+            move(byBarcode, barcodes[ordinal], barcodeChain.unlink((int) byBarcode.get(barcodes[ordinal]), ordinal));
+            long nameKey = nameKey(ProductCatalog.foldName(name(ordinal)));
+            move(byName, nameKey, nameChain.unlink((int) byName.get(nameKey), ordinal));
+            store(ordinal, product); // The old name's bytes stay in the pool unused
+            index(ordinal);
+        }
 
-        for (int i = 0; i < password.length(); i++) {
-            if (row == 0 || row == rail - 1) {
-                dirDown = !dirDown;
+        @Override
+        public int findId(int id) {
+            return (int) byId.get(id);
+        }
+
+        @Override
+        public int findBarcode(long barcode) {
+            return (int) byBarcode.get(barcode);
+        }
+
+        @Override
+        public int findName(String foldedName) {
+            byte[] name = foldedName.getBytes(StandardCharsets.UTF_8);
+            long nameKey = CsvCursor.hash(name, 0, name.length);
+            for (int ordinal = (int) byName.get(nameKey); ordinal >= 0; ordinal = nameChain.next(ordinal)) {
+                if (nameMatches(ordinal, name, foldedName)) {
+                    return ordinal;
+                }
             }
-            railFence[row][col++] = password.charAt(i);
-            row += dirDown ? 1 : -1;
+            return -1;
         }
 
-        for (int i = 0; i < rail; i++) {
-            for (int j = 0; j < password.length(); j++) {
-                if (railFence[i][j] != '\0') {
-                    encrypted.append(railFence[i][j]);
+        // Lowercases ASCII bytes in place; a stored name with other characters is decoded and folded the slow way.
+        private boolean nameMatches(int ordinal, byte[] foldedName, String folded) {
+            int start = nameStarts[ordinal];
+            int length = nameLengths[ordinal];
+            for (int i = 0; i < length; i++) {
+                byte b = namePool[start + i];
+                if (b < 0) {
+                    return ProductCatalog.foldName(name(ordinal)).equals(folded);
+                }
+                if (i >= foldedName.length || (b >= 'A' && b <= 'Z' ? b + ('a' - 'A') : b) != foldedName[i]) {
+                    return false;
                 }
             }
+            return length == foldedName.length;
         }
-        return encrypted.toString();
-    }
-    public static void saveOrder(Order order) throws IOException {
-        try (BufferedWriter writer = new BufferedWriter(new FileWriter("orders.csv", true))) { // 'true' enables appending
-            // Write order details: User name, email, order date, and cart items
-            writer.write(order.getUser().getName() + "," + order.getUser().getEmail() + "," + order.getOrderDate());
-            for (CartItem item : order.getCart().getItems()) {
-                writer.write("," + item.getProduct().getBarcode() + ":" + item.getQuantity());
+
+        private void store(int ordinal, Product product) {
+            byte[] name = product.getName().getBytes(StandardCharsets.UTF_8);
+            if (poolSize + name.length > namePool.length) {
+                namePool = Arrays.copyOf(namePool, Math.max(poolSize + name.length, namePool.length * 2));
+            }
+            System.arraycopy(name, 0, namePool, poolSize, name.length);
+            nameStarts[ordinal] = poolSize;
+            nameLengths[ordinal] = name.length;
+            poolSize += name.length;
+            ids[ordinal] = product.getId();
+            barcodes[ordinal] = product.getBarcode();
+            prices[ordinal] = product.getPriceCents();
+        }
+
+        private void index(int ordinal) {
+            move(byId, ids[ordinal], idChain.link((int) byId.get(ids[ordinal]), ordinal));
+            move(byBarcode, barcodes[ordinal], barcodeChain.link((int) byBarcode.get(barcodes[ordinal]), ordinal));
+            long nameKey = nameKey(ProductCatalog.foldName(name(ordinal)));
+            move(byName, nameKey, nameChain.link((int) byName.get(nameKey), ordinal));
+        }
+
+        // Points a key at the first position of its chain, or drops it when no position holds it any more.
+        private static void move(LongLongMap index, long key, int first) {
+            if (first < 0) {
+                index.remove(key);
+            } else {
+                index.put(key, first);
             }
-            writer.newLine(); // Move to the next line for the next order
+        }
+
+        private String name(int ordinal) {
+            return new String(namePool, nameStarts[ordinal], nameLengths[ordinal], StandardCharsets.UTF_8);
+        }
+
+        private static long nameKey(String foldedName) {
+            byte[] bytes = foldedName.getBytes(StandardCharsets.UTF_8);
+            return CsvCursor.hash(bytes, 0, bytes.length);
+        }
+
+        @Override
+        public ColumnarProductTable copy() {
+            ColumnarProductTable copy = new ColumnarProductTable();
+            copy.ids = Arrays.copyOf(ids, ids.length);
+            copy.barcodes = Arrays.copyOf(barcodes, barcodes.length);
+            copy.prices = Arrays.copyOf(prices, prices.length);
+            copy.nameStarts = Arrays.copyOf(nameStarts, nameStarts.length);
+            copy.nameLengths = Arrays.copyOf(nameLengths, nameLengths.length);
+            copy.namePool = Arrays.copyOf(namePool, namePool.length);
+            copy.poolSize = poolSize;
+            copy.size = size;
+            copy.byId = byId.copy();
+            copy.byBarcode = byBarcode.copy();
+            copy.byName = byName.copy();
+            copy.idChain = idChain.copy();
+            copy.barcodeChain = barcodeChain.copy();
+            copy.nameChain = nameChain.copy();
+            return copy;
         }
     }
 
+    // ProductSearchIndex class
+    // Answers "name contains" queries without lowercasing every product name per query. Each product's lowercased name
+    // is kept once, and every three-character sequence (trigram) of it points at the products containing it. A query of
+    // three or more characters only checks the products listed under its rarest trigram. One- and two-character
+    // sequences are indexed as well, under keys of their own, so the short queries typed while a name is still being
+    // entered check only the products containing them. Matches are ranked (exact name, then name prefix, then word
+    // prefix, then anywhere; shorter names first) and only the best ones are returned.
+    public static class ProductSearchIndex {
+        private String[] names = new String[16]; // Lowercased names by catalog position
+        private final LongMap<IntList> postings;
+        private int size;
 
-    public static void main(String[] args) {
-        // File reading logic
-        Scanner scanner = new Scanner(System.in);
-        Map<String, User> users = new HashMap<>();
-        List<Product> inventory = new ArrayList<>();
-        try (BufferedReader reader = new BufferedReader(new FileReader("products.csv"))) {
-            String line;
-            while ((line = reader.readLine()) != null) {
-                String[] parts = line.split(",");
-                if (parts.length == 4) {
-                    int id = Integer.parseInt(parts[0]);
-                    String name = parts[1];
-                    double price = Double.parseDouble(parts[2]);
-                    long barcode = Long.parseLong(parts[3]);
-                    Product product = new Product(id, name, price, barcode);
-                    inventory.add(product);
-                }
+        public ProductSearchIndex() {
+            this(new LongMap<>());
+        }
+
+        private ProductSearchIndex(LongMap<IntList> postings) {
+            this.postings = postings;
+        }
+
+        public void set(int ordinal, String name) {
+            if (ordinal >= names.length) {
+                names = Arrays.copyOf(names, Math.max(ordinal + 1, names.length * 2));
             }
-        } catch (IOException e) {
-            System.out.println("Error loading products: " + e.getMessage());
-        }
-        try (BufferedReader reader = new BufferedReader(new FileReader("users.csv"))) {
-            String line;
-            while ((line = reader.readLine()) != null) {
-            String[] parts = line.split(",");
-            if (parts.length >= 3) {
-                String name = parts[0];
-                String email = parts[1];
-                String password = parts[2];
-                User user = new User(name, email, password);
-
-                for (int i = 3; i < parts.length; i++) {
-                String[] productInfo = parts[i].split(":");
-                if (productInfo.length == 2) {
-                    long barcode = Long.parseLong(productInfo[0]);
-                    int quantity = Integer.parseInt(productInfo[1]);
-
-                    for (Product product : inventory) {
-                    if (product.getBarcode() == barcode) {
-                        user.getCart().addProduct(product, quantity);
-                        for (int j = 1; j < quantity; j++) {
-                        user.getCart().addProduct(product, quantity);
-                        }
-                        break;
-                    }
-                    }
+            String folded = ProductCatalog.foldName(name);
+            names[ordinal] = folded; // Postings left behind by a replaced name are filtered out when matching, and a
+                                     // position listed twice after a rename is offered twice but kept once
+            size = Math.max(size, ordinal + 1);
+            for (int i = 0; i < folded.length(); i++) {
+                post(unigram(folded, i), ordinal);
+                if (i + 2 <= folded.length()) {
+                    post(bigram(folded, i), ordinal);
                 }
+                if (i + 3 <= folded.length()) {
+                    post(trigram(folded, i), ordinal);
                 }
-                users.put(email, user);
             }
-            }
-        } catch (IOException e) {
-            System.out.println("Error loading users: " + e.getMessage());
         }
-        
-        User currentUser = null;
-        Cart guestCart = new Cart();
-        Cart currentCart = guestCart;
 
+        private void post(long key, int ordinal) {
+            IntList list = postings.get(key);
+            if (list == null) {
+                list = new IntList();
+                postings.put(key, list);
+            }
+            if (list.isEmpty() || list.last() != ordinal) { // A name is posted in one go, so this skips its repeats
+                list.add(ordinal);
+            }
+        }
 
+        public ProductSearchIndex copy() {
+            ProductSearchIndex copy = new ProductSearchIndex(postings.copy(IntList::copy));
+            copy.names = Arrays.copyOf(names, names.length);
+            copy.size = size;
+            return copy;
+        }
 
-        System.out.println("Welcome to the Grocery Store!");
-        boolean loggedIn = false;
+        private static long trigram(String s, int i) {
+            return ((long) s.charAt(i) << 32) | ((long) s.charAt(i + 1) << 16) | s.charAt(i + 2);
+        }
 
-        boolean exit = false;
-        // Main loop
-        while (!exit) {
-            try {
-                if (!loggedIn) {
-                    // The variable loggedIn might be misleading. It is basically the variable that controls flow between the two screen options: the login/register/contine as guest screen and the main menu screen.
-                    System.out.println("\n1. Register\n2. Login\n3. Continue as Guest\n4. Exit");
-                    System.out.print("Choose an option: ");
-                    int choice = Integer.parseInt(scanner.nextLine());
+        // Shorter sequences are tagged above the 48 bits a trigram uses, so no two kinds of key meet.
+        private static long bigram(String s, int i) {
+            return (1L << 48) | ((long) s.charAt(i) << 16) | s.charAt(i + 1);
+        }
 
-                    switch(choice){
+        private static long unigram(String s, int i) {
+            return (2L << 48) | s.charAt(i);
+        }
 
-                    case 1:
-                        System.out.print("Enter your name: ");
-                        String name = scanner.nextLine();
-                        String email;
-                        while (true) {
-                            System.out.print("Enter your email: ");
-                            email = scanner.nextLine();
-                            if (email.matches("^[A-Za-z0-9+_.-]+@[A-Za-z0-9.-]+$")) {
-                                break;
-                            } else {
-                                System.out.println("Invalid email format. Please try again.");
-                            }
+        // Returns the positions of the best matches, best first. The filter, if given, sees positions before ranking.
+        public int[] search(String query, int limit, IntPredicate filter) {
+            String folded = ProductCatalog.foldName(query);
+            TopK best = new TopK(limit);
+            if (folded.isEmpty()) {
+                for (int ordinal = 0; ordinal < size; ordinal++) {
+                    consider(ordinal, folded, filter, best);
+                }
+            } else if (folded.length() < 3) {
+                IntList list = postings.get(folded.length() == 1 ? unigram(folded, 0) : bigram(folded, 0));
+                for (int i = 0; list != null && i < list.size(); i++) {
+                    consider(list.get(i), folded, filter, best);
+                }
+            } else {
+                IntList rarest = null;
+                for (int i = 0; i + 3 <= folded.length(); i++) {
+                    IntList list = postings.get(trigram(folded, i));
+                    if (list == null) {
+                        return new int[0];
+                    }
+                    if (rarest == null || list.size() < rarest.size()) {
+                        rarest = list;
+                    }
+                }
+                for (int i = 0; i < rarest.size(); i++) {
+                    consider(rarest.get(i), folded, filter, best);
+                }
+            }
+            return best.toSortedArray();
+        }
+
+        private void consider(int ordinal, String folded, IntPredicate filter, TopK best) {
+            String name = names[ordinal];
+            if (name == null) {
+                return;
+            }
+            int at = name.indexOf(folded);
+            if (at < 0 || (filter != null && !filter.test(ordinal))) {
+                return;
+            }
+            int rank;
+            if (at == 0) {
+                rank = name.length() == folded.length() ? 0 : 1;
+            } else {
+                rank = Character.isLetterOrDigit(name.charAt(at - 1)) ? 3 : 2;
+            }
+            best.offer(((long) rank << 56) | ((long) Math.min(name.length(), 0xFFFFFF) << 32) | ordinal);
+        }
+    }
+
+    // LongLongMap class
+    // Open-addressing map from a long to a non-negative long in two flat arrays, for maps with millions of entries
+    // where an object per entry would cost more than the data.
+    public static class LongLongMap {
+        private long[] keys;
+        private long[] values; // -1 marks an empty slot
+        private int size;
+        private int mask;
+
+        public LongLongMap(int expectedSize) {
+            int capacity = Integer.highestOneBit(Math.max(4, (int) (expectedSize * 4L / 3))) << 1;
+            keys = new long[capacity];
+            values = new long[capacity];
+            Arrays.fill(values, -1);
+            mask = capacity - 1;
+        }
+
+        private static int slot(long key, int mask) {
+            long h = key * 0x9E3779B97F4A7C15L;
+            return (int) (h ^ (h >>> 32)) & mask;
+        }
+
+        // Returns the value for the key, or -1 if there is none.
+        public long get(long key) {
+            for (int i = slot(key, mask); values[i] >= 0; i = (i + 1) & mask) {
+                if (keys[i] == key) {
+                    return values[i];
+                }
+            }
+            return -1;
+        }
+
+        public void put(long key, long value) {
+            int i = slot(key, mask);
+            for (; values[i] >= 0; i = (i + 1) & mask) {
+                if (keys[i] == key) {
+                    values[i] = value;
+                    return;
+                }
+            }
+            keys[i] = key;
+            values[i] = value;
+            if (++size * 4 > keys.length * 3) { // Fuller than LongMap allows, to keep the arrays small
+                resize();
+            }
+        }
+
+        // Adds delta to the key's value, counting a missing key as 0.
+        public void add(long key, long delta) {
+            for (int i = slot(key, mask); values[i] >= 0; i = (i + 1) & mask) {
+                if (keys[i] == key) {
+                    values[i] += delta;
+                    return;
+                }
+            }
+            put(key, delta);
+        }
+
+        // Removes the key and returns its value, or -1 if it was not there.
+        public long remove(long key) {
+            for (int i = slot(key, mask); values[i] >= 0; i = (i + 1) & mask) {
+                if (keys[i] == key) {
+                    long previous = values[i];
+                    // Shift later entries of the probe run back into the hole so lookups never stop early
+                    int gap = i;
+                    for (int j = (i + 1) & mask; values[j] >= 0; j = (j + 1) & mask) {
+                        int home = slot(keys[j], mask);
+                        if (((j - home) & mask) >= ((j - gap) & mask)) {
+                            keys[gap] = keys[j];
+                            values[gap] = values[j];
+                            gap = j;
+                        }
+                    }
+                    values[gap] = -1;
+                    size--;
+                    return previous;
+                }
+            }
+            return -1;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        // Slots are visited with capacity(), isUsed(), keyAt() and valueAt().
+        public int capacity() {
+            return keys.length;
+        }
+
+        public boolean isUsed(int slot) {
+            return values[slot] >= 0;
+        }
+
+        public long keyAt(int slot) {
+            return keys[slot];
+        }
+
+        public long valueAt(int slot) {
+            return values[slot];
+        }
+
+        public LongLongMap copy() {
+            LongLongMap copy = new LongLongMap(0);
+            copy.keys = keys.clone();
+            copy.values = values.clone();
+            copy.size = size;
+            copy.mask = mask;
+            return copy;
+        }
+
+        private void resize() {
+            long[] oldKeys = keys;
+            long[] oldValues = values;
+            keys = new long[oldKeys.length * 2];
+            values = new long[oldValues.length * 2];
+            Arrays.fill(values, -1);
+            mask = keys.length - 1;
+            for (int j = 0; j < oldKeys.length; j++) {
+                if (oldValues[j] >= 0) {
+                    int i = slot(oldKeys[j], mask);
+                    while (values[i] >= 0) {
+                        i = (i + 1) & mask;
+                    }
+                    keys[i] = oldKeys[j];
+                    values[i] = oldValues[j];
+                }
+            }
+        }
+    }
+
+    // TopK class
+    // Keeps the k smallest distinct longs seen, using a max-heap so each offer is O(log k). A value already kept is
+    // ignored, which lets callers offer the same candidate twice.
+    public static class TopK {
+        private final long[] heap;
+        private int size;
+
+        public TopK(int k) {
+            heap = new long[Math.max(k, 0)];
+        }
+
+        public void offer(long value) {
+            if (size == heap.length && (size == 0 || value >= heap[0])) {
+                return;
+            }
+            for (int i = 0; i < size; i++) {
+                if (heap[i] == value) {
+                    return;
+                }
+            }
+            if (size < heap.length) {
+                heap[size] = value;
+                siftUp(size++);
+            } else {
+                heap[0] = value;
+                siftDown(0);
+            }
+        }
+
+        // The low 32 bits of each kept value, ordered by the full value.
+        public int[] toSortedArray() {
+            long[] sorted = Arrays.copyOf(heap, size);
+            Arrays.sort(sorted);
+            int[] result = new int[size];
+            for (int i = 0; i < size; i++) {
+                result[i] = (int) sorted[i];
+            }
+            return result;
+        }
+
+        private void siftUp(int i) {
+            while (i > 0 && heap[(i - 1) / 2] < heap[i]) {
+                swap(i, (i - 1) / 2);
+                i = (i - 1) / 2;
+            }
+        }
+
+        private void siftDown(int i) {
+            while (true) {
+                int largest = i;
+                int left = 2 * i + 1;
+                int right = left + 1;
+                if (left < size && heap[left] > heap[largest]) largest = left;
+                if (right < size && heap[right] > heap[largest]) largest = right;
+                if (largest == i) return;
+                swap(i, largest);
+                i = largest;
+            }
+        }
+
+        private void swap(int a, int b) {
+            long t = heap[a];
+            heap[a] = heap[b];
+            heap[b] = t;
+        }
+    }
+
+    // IntList class
+    // Growable array of primitive ints.
+    public static class IntList {
+        private int[] values = new int[4];
+        private int size;
+
+        public void add(int value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        public int get(int index) {
+            return values[index];
+        }
+
+        public int last() {
+            return values[size - 1];
+        }
+
+        public int size() {
+            return size;
+        }
+
+        public boolean isEmpty() {
+            return size == 0;
+        }
+
+        public int[] toArray() {
+            return Arrays.copyOf(values, size);
+        }
+
+        public IntList copy() {
+            IntList copy = new IntList();
+            copy.values = Arrays.copyOf(values, Math.max(size, 4));
+            copy.size = size;
+            return copy;
+        }
+    }
+
+    // StockLedger class
+    // Stock level per catalog position. Taking stock is a compare-and-set on that product's slot alone, so checkouts of
+    // different products never contend and checkouts of the same product retry instead of blocking. Products without
+    // a stock column in products.csv are UNLIMITED. Slots live in pages of PAGE_SIZE that stay put once created, so a
+    // bulk import adding products while shoppers check out only adds pages and cannot lose a take made meanwhile.
+    public static class StockLedger {
+        public static final int UNLIMITED = -1;
+        private static final int PAGE_BITS = 12;
+        private static final int PAGE_SIZE = 1 << PAGE_BITS;
+
+        private volatile AtomicIntegerArray[] pages = new AtomicIntegerArray[0];
+
+        void set(int ordinal, int level) {
+            int page = ordinal >>> PAGE_BITS;
+            AtomicIntegerArray[] current = pages;
+            if (page >= current.length) {
+                current = grow(page);
+            }
+            current[page].set(ordinal & (PAGE_SIZE - 1), level);
+        }
+
+        private synchronized AtomicIntegerArray[] grow(int page) {
+            AtomicIntegerArray[] current = pages;
+            if (page < current.length) {
+                return current;
+            }
+            AtomicIntegerArray[] grown = Arrays.copyOf(current, Math.max(page + 1, current.length * 2));
+            for (int i = current.length; i < grown.length; i++) {
+                grown[i] = new AtomicIntegerArray(PAGE_SIZE);
+            }
+            pages = grown;
+            return grown;
+        }
+
+        public int get(int ordinal) {
+            return pages[ordinal >>> PAGE_BITS].get(ordinal & (PAGE_SIZE - 1));
+        }
+
+        public boolean tryTake(int ordinal, int quantity) {
+            if (quantity <= 0) {
+                return true;
+            }
+            AtomicIntegerArray current = pages[ordinal >>> PAGE_BITS];
+            ordinal &= PAGE_SIZE - 1;
+            while (true) {
+                int level = current.get(ordinal);
+                if (level == UNLIMITED) {
+                    return true;
+                }
+                if (level < quantity) {
+                    return false;
+                }
+                if (current.compareAndSet(ordinal, level, level - quantity)) {
+                    return true;
+                }
+            }
+        }
+
+        public void giveBack(int ordinal, int quantity) {
+            if (quantity <= 0) {
+                return;
+            }
+            AtomicIntegerArray current = pages[ordinal >>> PAGE_BITS];
+            ordinal &= PAGE_SIZE - 1;
+            while (true) {
+                int level = current.get(ordinal);
+                if (level == UNLIMITED || current.compareAndSet(ordinal, level, level + quantity)) {
+                    return;
+                }
+            }
+        }
+    }
+
+    // ChangeSet class
+    // A set of catalog positions as one bit each, in pages of words that stay put once created, like the StockLedger's.
+    // Marking a position is a single atomic OR, so checkouts marking the stock they took neither box the position nor
+    // take a lock. take clears each word with one swap, so a position marked meanwhile is either taken or kept.
+    public static class ChangeSet {
+        private static final int PAGE_BITS = 6; // Words per page, 4096 positions
+        private static final int PAGE_SIZE = 1 << PAGE_BITS;
+
+        private volatile AtomicLongArray[] pages = new AtomicLongArray[0];
+
+        public void add(int ordinal) {
+            int word = ordinal >>> 6;
+            int page = word >>> PAGE_BITS;
+            AtomicLongArray[] current = pages;
+            if (page >= current.length) {
+                current = grow(page);
+            }
+            long bit = 1L << ordinal;
+            AtomicLongArray words = current[page];
+            int slot = word & (PAGE_SIZE - 1);
+            if ((words.get(slot) & bit) == 0) {
+                words.getAndAccumulate(slot, bit, (bits, mark) -> bits | mark);
+            }
+        }
+
+        private synchronized AtomicLongArray[] grow(int page) {
+            AtomicLongArray[] current = pages;
+            if (page < current.length) {
+                return current;
+            }
+            AtomicLongArray[] grown = Arrays.copyOf(current, Math.max(page + 1, current.length * 2));
+            for (int i = current.length; i < grown.length; i++) {
+                grown[i] = new AtomicLongArray(PAGE_SIZE);
+            }
+            pages = grown;
+            return grown;
+        }
+
+        // Returns the positions in the set, in order, and removes them.
+        public int[] take() {
+            IntList taken = new IntList();
+            AtomicLongArray[] current = pages;
+            for (int page = 0; page < current.length; page++) {
+                for (int slot = 0; slot < PAGE_SIZE; slot++) {
+                    long bits = current[page].get(slot) == 0 ? 0 : current[page].getAndSet(slot, 0);
+                    int base = ((page << PAGE_BITS) + slot) << 6;
+                    for (; bits != 0; bits &= bits - 1) {
+                        taken.add(base + Long.numberOfTrailingZeros(bits));
+                    }
+                }
+            }
+            return taken.toArray();
+        }
+
+        public boolean isEmpty() {
+            for (AtomicLongArray words : pages) {
+                for (int slot = 0; slot < PAGE_SIZE; slot++) {
+                    if (words.get(slot) != 0) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+    }
+
+    // CartItem class
+    public static class CartItem {
+        private Product product;
+        private int quantity;
+        private long discountCents; // Promotion discount on this line, valid while priced is set
+        private boolean priced;
+        private boolean queued; // Waiting in the cart's list of lines to price
+        private int line; // Slot in the cart's insertion order
+
+        public CartItem(Product product, int quantity) {
+            this.product = product;
+            this.quantity = quantity;
+        }
+
+        public Product getProduct() {
+            return product;
+        }
+
+        public int getQuantity() {
+            return quantity;
+        }
+
+        public void setQuantity(int quantity) {
+            this.quantity = quantity;
+        }
+    }
+
+    // Cart class
+    // Items are keyed by barcode in a LongMap, so add/reduce/remove are O(1) without boxing a key, and kept in insertion
+    // order in an array of lines so display and saveOrder keep the order items were added. A removed line leaves a hole
+    // that is closed up once holes outnumber lines.
+    // The total is kept up to date as quantities change instead of being summed on every call. Prices and the total are
+    // whole cents (see Money), so sums are exact and updating them allocates nothing. A line keeps the product, and so
+    // the price, it was first added with; adding more after an import changed the price still uses the line's price,
+    // so the total always equals the sum of the lines (checked when assertions are on). Sessions logged into the same
+    // account share one cart, so every method locks the cart.
+    // Promotion discounts are worked out per line and kept with the line. A change to a line only marks that line, and
+    // the next applyPromotions prices just the marked lines, unless the promotions themselves changed since.
+    public static class Cart {
+        private final LongMap<CartItem> items = new LongMap<>(8);
+        private CartItem[] lines = new CartItem[8]; // In insertion order, null where a line was removed
+        private int lineCount; // Slots used in lines, holes included
+        private long totalCents;
+        private boolean dirty;
+        private long discountCents; // Sum of the discounts of priced lines
+        private int pricedWith = -1; // Version of the promotions the priced lines were worked out with
+        private final List<CartItem> unpriced = new ArrayList<>();
+        private String coupon; // Applies to this shopping trip only, so it is not saved with the cart
+
+        public synchronized void addProduct(Product product, int quantity) {
+            long start = Metrics.sample();
+            CartItem item = items.get(product.getBarcode());
+            if (item != null) {
+                item.setQuantity(item.getQuantity() + quantity);
+            } else {
+                item = new CartItem(product, quantity);
+                items.put(product.getBarcode(), item);
+                append(item);
+            }
+            totalCents += Money.times(item.getProduct().getPriceCents(), quantity);
+            dirty = true;
+            unprice(item);
+            assert totalCents == linesTotalCents() : "cart total drifted from its lines";
+            Metrics.CART_UPDATE.stop(start);
+        }
+
+        public synchronized void reduceProduct(Product product, int quantity) {
+            long start = Metrics.sample();
+            CartItem item = items.get(product.getBarcode());
+            if (item == null) {
+                return;
+            }
+            if (item.getQuantity() <= quantity) {
+                remove(product);
+            } else {
+                item.setQuantity(item.getQuantity() - quantity);
+                totalCents -= Money.times(item.getProduct().getPriceCents(), quantity);
+                dirty = true;
+                unprice(item);
+            }
+            assert totalCents == linesTotalCents() : "cart total drifted from its lines";
+            Metrics.CART_UPDATE.stop(start);
+        }
+
+        public synchronized void removeProduct(Product product) {
+            long start = Metrics.sample();
+            remove(product);
+            Metrics.CART_UPDATE.stop(start);
+        }
+
+        private void remove(Product product) {
+            CartItem item = items.remove(product.getBarcode());
+            if (item != null) {
+                lines[item.line] = null;
+                if (lineCount > items.size() * 2 + 8) {
+                    compact();
+                }
+                totalCents -= Money.times(item.getProduct().getPriceCents(), item.getQuantity());
+                dirty = true;
+                if (item.priced) {
+                    discountCents -= item.discountCents;
+                    item.priced = false;
+                }
+            }
+            assert totalCents == linesTotalCents() : "cart total drifted from its lines";
+        }
+
+        private void append(CartItem item) {
+            if (lineCount == lines.length) {
+                compact();
+                if (lineCount * 2 > lines.length) {
+                    lines = Arrays.copyOf(lines, lines.length * 2);
+                }
+            }
+            item.line = lineCount;
+            lines[lineCount++] = item;
+        }
+
+        // Closes up the holes left by removed lines, keeping the order of the rest.
+        private void compact() {
+            int kept = 0;
+            for (int i = 0; i < lineCount; i++) {
+                CartItem item = lines[i];
+                if (item != null) {
+                    item.line = kept;
+                    lines[kept++] = item;
+                }
+            }
+            Arrays.fill(lines, kept, lineCount, null);
+            lineCount = kept;
+        }
+
+        private long linesTotalCents() {
+            long sum = 0;
+            for (int i = 0; i < lineCount; i++) {
+                CartItem item = lines[i];
+                if (item == null) {
+                    continue;
+                }
+                sum += Money.times(item.getProduct().getPriceCents(), item.getQuantity());
+            }
+            return sum;
+        }
+
+        private void unprice(CartItem item) {
+            if (item.priced) {
+                discountCents -= item.discountCents;
+                item.priced = false;
+            }
+            if (!item.queued) {
+                item.queued = true;
+                unpriced.add(item);
+            }
+            if (unpriced.size() > items.size() + 64) { // Mostly removed lines; pricing everything again is cheaper
+                for (CartItem queued : unpriced) {
+                    queued.queued = false;
+                }
+                unpriced.clear();
+                pricedWith = -1;
+            }
+        }
+
+        // Brings the line discounts up to date and returns their sum in cents.
+        public synchronized long applyPromotions(Promotions promotions) {
+            long start = Metrics.sample();
+            if (pricedWith != promotions.getVersion()) {
+                discountCents = 0;
+                compact();
+                for (int i = 0; i < lineCount; i++) {
+                    price(lines[i], promotions);
+                }
+                pricedWith = promotions.getVersion();
+            } else {
+                for (CartItem item : unpriced) {
+                    if (!item.priced && items.get(item.getProduct().getBarcode()) == item) {
+                        price(item, promotions);
+                    }
+                }
+            }
+            for (CartItem item : unpriced) {
+                item.queued = false;
+            }
+            unpriced.clear();
+            Metrics.CART_PRICING.stop(start);
+            return discountCents;
+        }
+
+        private void price(CartItem item, Promotions promotions) {
+            item.discountCents = promotions.lineDiscount(item.getProduct(), item.getQuantity());
+            item.priced = true;
+            discountCents += item.discountCents;
+        }
+
+        public synchronized void setCoupon(String coupon) {
+            this.coupon = coupon;
+        }
+
+        public synchronized String getCoupon() {
+            return coupon;
+        }
+
+        // What is left to pay after line discounts and the coupon, if any.
+        public synchronized long calculateTotalCents(Promotions promotions) {
+            long afterLines = totalCents - applyPromotions(promotions);
+            return afterLines - promotions.couponDiscount(coupon, afterLines);
+        }
+
+        public synchronized long calculateTotalCents() {
+            return totalCents;
+        }
+
+        public synchronized void clearCart() {
+            if (items.size() != 0) {
+                dirty = true;
+            }
+            items.clear();
+            Arrays.fill(lines, 0, lineCount, null);
+            lineCount = 0;
+            totalCents = 0;
+            discountCents = 0;
+            unpriced.clear(); // Only lines of this cart were queued, and they are gone
+            coupon = null;
+        }
+
+        public synchronized boolean isDirty() {
+            return dirty;
+        }
+
+        public synchronized void clearDirty() {
+            dirty = false;
+        }
+
+        @Override
+        public String toString() {
+            Renderer text = new Renderer();
+            render(text);
+            return text.toString();
+        }
+
+        // As toString, with the promotions that apply shown under their lines and taken off the total.
+        public String toString(Promotions promotions) {
+            Renderer text = new Renderer();
+            render(text, promotions);
+            return text.toString();
+        }
+
+        // Writes what toString() returns, without building a String.
+        public synchronized void render(Renderer out) {
+            if (items.size() == 0) {
+                out.append("Cart is empty.");
+                return;
+            }
+            out.append("Cart: \n");
+            renderLines(out, null);
+            out.append("Total: $").appendCents(totalCents);
+        }
+
+        // Writes what toString(promotions) returns, without building a String.
+        public synchronized void render(Renderer out, Promotions promotions) {
+            long lineDiscounts = applyPromotions(promotions);
+            long afterLines = totalCents - lineDiscounts;
+            long couponDiscount = promotions.couponDiscount(coupon, afterLines);
+            if (lineDiscounts == 0 && couponDiscount == 0) {
+                render(out);
+                return;
+            }
+            out.append("Cart: \n");
+            renderLines(out, promotions);
+            out.append("Subtotal: $").appendCents(totalCents).newline();
+            if (couponDiscount != 0) {
+                out.append("Coupon ").append(coupon).append(": -$").appendCents(couponDiscount).newline();
+            }
+            out.append("Total: $").appendCents(afterLines - couponDiscount);
+        }
+
+        // One line per item, each followed by its promotion when promotions are given and it has a discount.
+        private void renderLines(Renderer out, Promotions promotions) {
+            compact();
+            for (int i = 0; i < lineCount; i++) {
+                CartItem item = lines[i];
+                out.append(item.getProduct().getName()).append(" (x").append(item.getQuantity()).append(") - $")
+                        .appendCents(Money.times(item.getProduct().getPriceCents(), item.getQuantity())).newline();
+                if (promotions != null && item.discountCents != 0) {
+                    out.append("  ").append(promotions.lineLabel(item.getProduct(), item.getQuantity())).append(": -$")
+                            .appendCents(item.discountCents).newline();
+                }
+            }
+        }
+
+        public synchronized boolean isEmpty() {
+            return items.size() == 0;
+        }
+
+        public synchronized Cart copy() {
+            Cart copy = new Cart();
+            compact();
+            for (int i = 0; i < lineCount; i++) {
+                CartItem item = lines[i];
+                copy.addProduct(item.getProduct(), item.getQuantity());
+            }
+            copy.coupon = coupon;
+            return copy;
+        }
+
+        public synchronized boolean contains(long barcode) {
+            return items.get(barcode) != null;
+        }
+
+        public synchronized CartItem getItem(long barcode) {
+            CartItem item = items.get(barcode);
+            return item == null ? null : new CartItem(item.getProduct(), item.getQuantity());
+        }
+
+        // A copy of the lines as they are now, so callers can iterate while other sessions keep shopping.
+        public synchronized List<CartItem> getItems() {
+            List<CartItem> copy = new ArrayList<>(items.size());
+            compact();
+            for (int i = 0; i < lineCount; i++) {
+                CartItem item = lines[i];
+                copy.add(new CartItem(item.getProduct(), item.getQuantity()));
+            }
+            return copy;
+        }
+    }
+
+    // User class
+    public static class User {
+        private String name;
+        private String email;
+        private volatile String password;
+        private Cart cart = new Cart();
+        private volatile boolean dirty = true; // A new account has not been saved yet; loaders clear this
+
+        public User(String name, String email, String password) {
+            this.name = name;
+            this.email = email;
+            this.password = password;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public void setName(String name) {
+            this.name = name;
+            dirty = true;
+        }
+
+        public String getEmail() {
+            return email;
+        }
+
+        public String getPassword(){
+            return password;
+        }
+
+        public void setPassword(String password) {
+            this.password = password;
+            dirty = true;
+        }
+
+
+        public Cart getCart() {
+            return cart;
+        }
+
+        // True when the account or its cart changed since it was last saved.
+        public boolean isDirty() {
+            return dirty || cart.isDirty();
+        }
+
+        public void markDirty() {
+            dirty = true;
+        }
+
+        public void clearDirty() {
+            dirty = false;
+            cart.clearDirty();
+        }
+
+        @Override
+        public String toString() {
+            return "User: " + name + " (" + email + ")";
+        }
+    }
+
+    // Order class
+    public static class Order {
+        private long id; // Given by OrderStore when the order is written, 0 until then
+        private User user;
+        private Cart cart;
+        private Date orderDate;
+        private Promotions promotions;
+
+        public Order(User user, Cart cart) {
+            this(user, cart, Promotions.NONE);
+        }
+
+        public Order(User user, Cart cart, Promotions promotions) {
+            this.user = user;
+            this.cart = cart;
+            this.orderDate = new Date();
+            this.promotions = promotions;
+        }
+
+        public User getUser() {
+            return user;
+        }
+
+        public Cart getCart() {
+            return cart;
+        }
+
+        public Date getOrderDate() {
+            return orderDate;
+        }
+
+        public void setOrderDate(Date orderDate) {
+            this.orderDate = orderDate;
+        }
+
+        public long getId() {
+            return id;
+        }
+
+        public void setId(long id) {
+            this.id = id;
+        }
+
+        @Override
+        public String toString() {
+            Renderer text = new Renderer();
+            render(text);
+            return text.toString();
+        }
+
+        // Writes the receipt that toString() returns, without building a String.
+        public void render(Renderer out) {
+            out.append("Order ");
+            if (id > 0) {
+                out.append('#').append(id).append(' ');
+            }
+            out.append("by ").append(user.getName()).append(" on ").append(orderDate.toString()).newline();
+            cart.render(out, promotions);
+        }
+    }
+
+    // Money class
+    // Amounts of money as a whole number of cents in a long, so totals are exact: 0.10 + 0.20 is 0.30, never
+    // 0.30000000000000004. Parsing and printing work on digits directly, without double or BigDecimal, and append()
+    // writes into the caller's StringBuilder, so cart totals and order lines allocate nothing per amount.
+    public static final class Money {
+        private Money() {
+        }
+
+        // Parses a decimal such as 12, 0.5 or -3.25 from text[from, to). Digits past the cents are rounded half up,
+        // which matches what Math.round(price * 100) gave for the prices in existing files.
+        public static long parse(byte[] text, int from, int to) {
+            int p = from;
+            boolean negative = p < to && text[p] == '-';
+            if (p < to && (text[p] == '-' || text[p] == '+')) p++;
+            long units = 0;
+            int digits = 0;
+            for (; p < to && text[p] >= '0' && text[p] <= '9'; p++) {
+                units = Math.addExact(Math.multiplyExact(units, 10), text[p] - '0');
+                digits++;
+            }
+            long fraction = 0;
+            int places = 0;
+            if (p < to && text[p] == '.') {
+                for (p++; p < to && text[p] >= '0' && text[p] <= '9'; p++) {
+                    if (places < 2) {
+                        fraction = fraction * 10 + (text[p] - '0');
+                    } else if (places == 2 && text[p] >= '5') {
+                        fraction++;
+                    }
+                    places++;
+                    digits++;
+                }
+            }
+            if (digits == 0 || p != to) {
+                throw new NumberFormatException("Not an amount of money: \"" + new String(text, from, to - from, StandardCharsets.UTF_8) + "\"");
+            }
+            if (places == 0) {
+                fraction *= 100;
+            } else if (places == 1) {
+                fraction *= 10;
+            }
+            long cents = Math.addExact(Math.multiplyExact(units, 100), fraction);
+            return negative ? -cents : cents;
+        }
+
+        public static long parse(String text) {
+            byte[] bytes = text.trim().getBytes(StandardCharsets.US_ASCII);
+            return parse(bytes, 0, bytes.length);
+        }
+
+        public static long times(long cents, int quantity) {
+            return Math.multiplyExact(cents, quantity);
+        }
+
+        // Appends the amount with two decimals, e.g. 1.50.
+        public static StringBuilder append(StringBuilder out, long cents) {
+            if (cents < 0) {
+                out.append('-');
+            }
+            long units = Math.abs(cents / 100);
+            long fraction = Math.abs(cents % 100);
+            out.append(units).append('.');
+            if (fraction < 10) {
+                out.append('0');
+            }
+            return out.append(fraction);
+        }
+
+        public static String format(long cents) {
+            return append(new StringBuilder(24), cents).toString();
+        }
+    }
+
+    // Timestamps class
+    // Order times are stored as ISO-8601 UTC with milliseconds, e.g. 2025-04-20T08:07:31.000Z: fixed width, sorted as
+    // text the same way as in time, and written and read digit by digit without java.time. Lines written before this
+    // format hold Date.toString() (Sun Apr 20 03:07:31 CDT 2025) in the writer's zone; parse() reads those as well.
+    public static final class Timestamps {
+        private static final long MILLIS_PER_DAY = 86_400_000L;
+        private static final DateTimeFormatter ZONE_NAME = DateTimeFormatter.ofPattern("zzz", Locale.US);
+        private static final Map<String, ZoneId> ZONES = new ConcurrentHashMap<>();
+
+        private Timestamps() {
+        }
+
+        public static StringBuilder append(StringBuilder out, long millis) {
+            long day = Math.floorDiv(millis, MILLIS_PER_DAY);
+            int ofDay = (int) Math.floorMod(millis, MILLIS_PER_DAY);
+            // Hinnant's civil_from_days
+            long z = day + 719468;
+            long era = Math.floorDiv(z, 146097);
+            long dayOfEra = z - era * 146097;
+            long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+            long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+            long shiftedMonth = (5 * dayOfYear + 2) / 153;
+            int dayOfMonth = (int) (dayOfYear - (153 * shiftedMonth + 2) / 5 + 1);
+            int month = (int) (shiftedMonth < 10 ? shiftedMonth + 3 : shiftedMonth - 9);
+            long year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+            pad(out, year, 4).append('-');
+            pad(out, month, 2).append('-');
+            pad(out, dayOfMonth, 2).append('T');
+            pad(out, ofDay / 3_600_000, 2).append(':');
+            pad(out, ofDay / 60_000 % 60, 2).append(':');
+            pad(out, ofDay / 1000 % 60, 2).append('.');
+            return pad(out, ofDay % 1000, 3).append('Z');
+        }
+
+        public static String format(long millis) {
+            return append(new StringBuilder(24), millis).toString();
+        }
+
+        private static StringBuilder pad(StringBuilder out, long value, int width) {
+            for (long limit = 10; width > 1; width--, limit *= 10) {
+                if (value < limit) {
+                    out.append('0');
+                }
+            }
+            return out.append(value);
+        }
+
+        // Epoch millis of the timestamp in text[from, to), or Long.MIN_VALUE if it is in neither format.
+        public static long parse(byte[] text, int from, int to) {
+            if (to - from >= 20 && text[from + 4] == '-' && text[from + 10] == 'T') {
+                return parseIso(text, from, to);
+            }
+            return parseLegacy(text, from, to);
+        }
+
+        private static long parseIso(byte[] text, int from, int to) {
+            int year = digits(text, from, 4);
+            int month = digits(text, from + 5, 2);
+            int dayOfMonth = digits(text, from + 8, 2);
+            int hour = digits(text, from + 11, 2);
+            int minute = digits(text, from + 14, 2);
+            int second = digits(text, from + 17, 2);
+            if (year < 0 || month < 1 || month > 12 || dayOfMonth < 1 || dayOfMonth > 31 || hour < 0 || hour > 23
+                    || minute < 0 || minute > 59 || second < 0 || second > 59
+                    || text[from + 7] != '-' || text[from + 13] != ':' || text[from + 16] != ':' || text[to - 1] != 'Z') {
+                return Long.MIN_VALUE;
+            }
+            int millis = 0;
+            int p = from + 19;
+            if (text[p] == '.') {
+                int places = 0;
+                for (p++; p < to - 1 && text[p] >= '0' && text[p] <= '9'; p++, places++) {
+                    if (places < 3) {
+                        millis = millis * 10 + (text[p] - '0');
+                    }
+                }
+                for (; places < 3; places++) {
+                    millis *= 10;
+                }
+            }
+            if (p != to - 1) {
+                return Long.MIN_VALUE;
+            }
+            return (epochDay(year, month, dayOfMonth) * 86_400L + hour * 3600L + minute * 60L + second) * 1000L + millis;
+        }
+
+        // Day-of-week month day HH:mm:ss zone year, as Date.toString() writes it.
+        private static long parseLegacy(byte[] text, int from, int to) {
+            int[] starts = new int[6];
+            int[] ends = new int[6];
+            int tokens = 0;
+            for (int i = from; i < to; i++) {
+                if (text[i] != ' ' && (i == from || text[i - 1] == ' ')) {
+                    if (tokens == 6) {
+                        return Long.MIN_VALUE;
+                    }
+                    starts[tokens] = i;
+                }
+                if (text[i] != ' ' && (i + 1 == to || text[i + 1] == ' ')) {
+                    ends[tokens++] = i + 1;
+                }
+            }
+            if (tokens != 6 || ends[1] - starts[1] != 3 || ends[3] - starts[3] != 8) {
+                return Long.MIN_VALUE;
+            }
+            int month = month(text, starts[1]);
+            int dayOfMonth = digits(text, starts[2], ends[2] - starts[2]);
+            int hour = digits(text, starts[3], 2);
+            int minute = digits(text, starts[3] + 3, 2);
+            int second = digits(text, starts[3] + 6, 2);
+            int year = digits(text, starts[5], ends[5] - starts[5]);
+            ZoneId zone = zone(new String(text, starts[4], ends[4] - starts[4], StandardCharsets.US_ASCII));
+            if (month < 1 || dayOfMonth < 1 || dayOfMonth > 31 || hour < 0 || hour > 23 || minute < 0 || minute > 59
+                    || second < 0 || second > 59 || year < 0 || zone == null) {
+                return Long.MIN_VALUE;
+            }
+            try {
+                return LocalDateTime.of(year, month, dayOfMonth, hour, minute, second).atZone(zone).toInstant().toEpochMilli();
+            } catch (DateTimeException e) {
+                return Long.MIN_VALUE; // e.g. Feb 30
+            }
+        }
+
+        // Zone abbreviations such as CDT are resolved once each, the way Date.toString() meant them.
+        private static ZoneId zone(String name) {
+            ZoneId zone = ZONES.get(name);
+            if (zone == null) {
+                try {
+                    zone = ZONE_NAME.parse(name).query(TemporalQueries.zone());
+                } catch (DateTimeException e) {
+                    return null;
+                }
+                ZONES.put(name, zone);
+            }
+            return zone;
+        }
+
+        private static int month(byte[] text, int at) {
+            int key = (text[at] << 16) | (text[at + 1] << 8) | text[at + 2];
+            switch (key) {
+                case ('J' << 16) | ('a' << 8) | 'n': return 1;
+                case ('F' << 16) | ('e' << 8) | 'b': return 2;
+                case ('M' << 16) | ('a' << 8) | 'r': return 3;
+                case ('A' << 16) | ('p' << 8) | 'r': return 4;
+                case ('M' << 16) | ('a' << 8) | 'y': return 5;
+                case ('J' << 16) | ('u' << 8) | 'n': return 6;
+                case ('J' << 16) | ('u' << 8) | 'l': return 7;
+                case ('A' << 16) | ('u' << 8) | 'g': return 8;
+                case ('S' << 16) | ('e' << 8) | 'p': return 9;
+                case ('O' << 16) | ('c' << 8) | 't': return 10;
+                case ('N' << 16) | ('o' << 8) | 'v': return 11;
+                case ('D' << 16) | ('e' << 8) | 'c': return 12;
+                default: return 0;
+            }
+        }
+
+        // The number in the given count of digits, or -1 if any of them is not a digit.
+        private static int digits(byte[] text, int at, int count) {
+            if (count < 1 || count > 9) {
+                return -1;
+            }
+            int value = 0;
+            for (int i = at; i < at + count; i++) {
+                if (text[i] < '0' || text[i] > '9') {
+                    return -1;
+                }
+                value = value * 10 + (text[i] - '0');
+            }
+            return value;
+        }
+
+        public static long epochDay(long millis) {
+            return Math.floorDiv(millis, MILLIS_PER_DAY);
+        }
+
+        public static long startOfDay(long epochDay) {
+            return epochDay * MILLIS_PER_DAY;
+        }
+
+        // Days since 1970-01-01 of a proleptic Gregorian date (Hinnant's days_from_civil).
+        static long epochDay(int year, int month, int dayOfMonth) {
+            long y = month <= 2 ? year - 1 : year;
+            long era = Math.floorDiv(y, 400);
+            long yearOfEra = y - era * 400;
+            long dayOfYear = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + dayOfMonth - 1;
+            long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+            return era * 146097 + dayOfEra - 719468;
+        }
+    }
+
+    // Metrics class
+    // Counters and latency histograms for the paths where time goes: loading and saving files, catalog lookups, cart
+    // updates and order-history reads. Counters are LongAdders and histograms are arrays of atomic buckets, so recording
+    // never locks. Buckets are HDR-style: 16 linear steps per power of two of nanoseconds, so any latency from 1 ns to
+    // centuries lands in a bucket within 1/16 of its value, in 8 KB per histogram.
+    // -Dgrocery.metrics=false turns recording off. ENABLED is a constant, so the JIT drops the recording code entirely.
+    // render() gives the Prometheus text format; it is shown by the Metrics menu option and written to metrics.prom
+    // every grocery.metrics.intervalSeconds (default 60) while the store is open.
+    public static final class Metrics {
+        public static final boolean ENABLED = !"false".equals(System.getProperty("grocery.metrics"));
+        public static final int SAMPLE_RATE = 64;
+        private static final Map<String, Metric> REGISTRY = new ConcurrentSkipListMap<>();
+
+        public static final Timer STORE_OPEN = timer("grocery_store_open_seconds", "Time to load the store at startup.");
+        public static final Timer LOAD_PRODUCTS = timer("grocery_load_products_seconds", "Time to read a products file.");
+        public static final Timer SAVE_PRODUCTS = timer("grocery_save_products_seconds", "Time to write changed products.");
+        public static final Timer SAVE_USERS = timer("grocery_save_users_seconds", "Time to write changed accounts.");
+        public static final Timer SAVE_ORDER = timer("grocery_save_order_seconds", "Time to write one order, including the wait for its batch.");
+        public static final Timer CATALOG_LOOKUP = timer("grocery_catalog_lookup_seconds", "Time to find a product by id, barcode or name (1 in 64 lookups).");
+        public static final Counter CATALOG_MISSES = counter("grocery_catalog_lookup_misses_total", "Catalog lookups that found nothing.");
+        public static final Timer CART_UPDATE = timer("grocery_cart_update_seconds", "Time to add, reduce or remove a cart line (1 in 64 updates).");
+        public static final Timer CART_PRICING = timer("grocery_cart_pricing_seconds", "Time to bring a cart's promotion discounts up to date (1 in 64 calls).");
+        public static final Timer ORDER_HISTORY = timer("grocery_order_history_read_seconds", "Time to read orders from the order history.");
+        public static final Counter ORDER_HISTORY_LINES = counter("grocery_order_history_lines_total", "Order lines read from the order history.");
+        public static final Counter ORDER_HISTORY_CACHE_HITS = counter("grocery_order_history_cache_hits_total", "Order histories shown from the history cache.");
+        public static final Counter ORDER_HISTORY_CACHE_MISSES = counter("grocery_order_history_cache_misses_total", "Order histories that had to be read from orders.csv.");
+
+        private Metrics() {
+        }
+
+        // Start time to pass to Timer.stop, or 0 without reading the clock when metrics are off.
+        public static long start() {
+            return ENABLED ? System.nanoTime() : 0;
+        }
+
+        // Like start(), but for one call in SAMPLE_RATE only; 0 otherwise, which stop() ignores. For paths that take
+        // nanoseconds, where reading the clock twice every time would cost more than the work being timed.
+        public static long sample() {
+            return ENABLED && ThreadLocalRandom.current().nextInt(SAMPLE_RATE) == 0 ? System.nanoTime() : 0;
+        }
+
+        public static Counter counter(String name, String help) {
+            return register(new Counter(name, help));
+        }
+
+        public static Timer timer(String name, String help) {
+            return register(new Timer(name, help));
+        }
+
+        private static <M extends Metric> M register(M metric) {
+            if (REGISTRY.putIfAbsent(metric.getName(), metric) != null) {
+                throw new IllegalArgumentException("Metric already registered: " + metric.getName());
+            }
+            return metric;
+        }
+
+        // Every metric in the Prometheus text exposition format, ordered by name.
+        public static String render() {
+            StringBuilder out = new StringBuilder(4096);
+            for (Metric metric : REGISTRY.values()) {
+                out.append("# HELP ").append(metric.getName()).append(' ').append(metric.getHelp()).append('\n');
+                metric.render(out);
+            }
+            return out.toString();
+        }
+
+        // Writes render() to the file now and then every intervalSeconds, replacing it atomically so a scraper never
+        // sees half a file. Closing the returned handle stops the schedule and writes the file one last time.
+        public static Closeable startDump(Path file, long intervalSeconds) {
+            if (!ENABLED || intervalSeconds <= 0) {
+                return () -> { };
+            }
+            ScheduledExecutorService dumper = Executors.newSingleThreadScheduledExecutor(task -> {
+                Thread thread = new Thread(task, "metrics-dump");
+                thread.setDaemon(true);
+                return thread;
+            });
+            Runnable dump = () -> {
+                try {
+                    writeDump(file);
+                } catch (IOException e) {
+                    System.out.println("Error writing metrics: " + e.getMessage());
+                }
+            };
+            dumper.scheduleAtFixedRate(dump, 0, intervalSeconds, TimeUnit.SECONDS);
+            return () -> {
+                dumper.shutdownNow();
+                writeDump(file);
+            };
+        }
+
+        private static void writeDump(Path file) throws IOException {
+            Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+            Files.write(temp, render().getBytes(StandardCharsets.UTF_8));
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+
+        // Metric class
+        public abstract static class Metric {
+            private final String name;
+            private final String help;
+
+            Metric(String name, String help) {
+                this.name = name;
+                this.help = help;
+            }
+
+            public String getName() {
+                return name;
+            }
+
+            public String getHelp() {
+                return help;
+            }
+
+            abstract void render(StringBuilder out);
+        }
+
+        // Counter class
+        public static final class Counter extends Metric {
+            private final LongAdder count = new LongAdder();
+
+            Counter(String name, String help) {
+                super(name, help);
+            }
+
+            public void increment() {
+                if (ENABLED) {
+                    count.increment();
+                }
+            }
+
+            public void add(long amount) {
+                if (ENABLED) {
+                    count.add(amount);
+                }
+            }
+
+            public long get() {
+                return count.sum();
+            }
+
+            @Override
+            void render(StringBuilder out) {
+                out.append("# TYPE ").append(getName()).append(" counter\n");
+                out.append(getName()).append(' ').append(get()).append('\n');
+            }
+        }
+
+        // Timer class
+        // Latencies in nanoseconds, reported in seconds as a Prometheus summary with quantiles read off the buckets.
+        public static final class Timer extends Metric {
+            private static final int SUB_BUCKET_BITS = 4;
+            private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+            private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+            private final AtomicLongArray buckets = new AtomicLongArray((64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS);
+            private final LongAdder count = new LongAdder();
+            private final LongAdder totalNanos = new LongAdder();
+
+            Timer(String name, String help) {
+                super(name, help);
+            }
+
+            // Records the time since start, as returned by Metrics.start() or Metrics.sample().
+            public void stop(long start) {
+                if (ENABLED && start != 0) {
+                    record(System.nanoTime() - start);
+                }
+            }
+
+            public void record(long nanos) {
+                if (ENABLED) {
+                    buckets.incrementAndGet(bucket(Math.max(nanos, 0)));
+                    count.increment();
+                    totalNanos.add(nanos);
+                }
+            }
+
+            public long getCount() {
+                return count.sum();
+            }
+
+            // Values below 16 get a bucket each; above that, 16 buckets per power of two.
+            static int bucket(long value) {
+                if (value < SUB_BUCKETS) {
+                    return (int) value;
+                }
+                int exponent = 63 - Long.numberOfLeadingZeros(value);
+                int sub = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+                return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+            }
+
+            // The largest value that falls in the bucket.
+            static long highestIn(int bucket) {
+                if (bucket < SUB_BUCKETS) {
+                    return bucket;
+                }
+                int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+                long lowest = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << (exponent - SUB_BUCKET_BITS);
+                return lowest + (1L << (exponent - SUB_BUCKET_BITS)) - 1;
+            }
+
+            // The value at or below which the given fraction of recorded values fall, to bucket precision.
+            public long quantileNanos(double quantile) {
+                long[] counts = new long[buckets.length()];
+                long total = 0;
+                for (int i = 0; i < counts.length; i++) {
+                    counts[i] = buckets.get(i);
+                    total += counts[i];
+                }
+                long rank = Math.max(1, (long) Math.ceil(quantile * total));
+                long seen = 0;
+                for (int i = 0; i < counts.length; i++) {
+                    seen += counts[i];
+                    if (seen >= rank) {
+                        return highestIn(i);
+                    }
+                }
+                return 0;
+            }
+
+            @Override
+            void render(StringBuilder out) {
+                out.append("# TYPE ").append(getName()).append(" summary\n");
+                for (double quantile : QUANTILES) {
+                    out.append(getName()).append("{quantile=\"").append(quantile).append("\"} ")
+                            .append(quantileNanos(quantile) / 1e9).append('\n');
+                }
+                out.append(getName()).append("_sum ").append(totalNanos.sum() / 1e9).append('\n');
+                out.append(getName()).append("_count ").append(getCount()).append('\n');
+            }
+        }
+    }
+
+    // Promotions class
+    // Deals compiled from promotions.csv into tables indexed by barcode, so pricing a cart line is one lookup however
+    // many rules are active. One row per rule:
+    //   percent,<barcode>,<percent off>
+    //   multibuy,<barcode>,<quantity>,<price for that many>     e.g. multibuy,23452351326,3,0.30
+    //   category,<name>,<percent off>,<barcode>[,<barcode>...]
+    //   coupon,<code>,<percent off>[,<minimum spend>]
+    // A line gets the single best of its percentage and multi-buy deals; deals do not stack. A coupon then takes its
+    // percentage off what is left. Each compiled set has its own version, which carts use to tell that their saved
+    // line discounts are out of date.
+    public static class Promotions {
+        private static final AtomicInteger VERSIONS = new AtomicInteger(); // Declared before NONE, which uses it
+        public static final Promotions NONE = new Promotions(new LongMap<>(), new HashMap<>());
+
+        private final int version = VERSIONS.incrementAndGet();
+        private final LongMap<LineDeal> byBarcode;
+        private final Map<String, Coupon> coupons;
+
+        // The best deals for one barcode. A percentage of 0 or a bundle size of 0 means that kind of deal is absent.
+        private static class LineDeal {
+            int percentOff;
+            String percentLabel;
+            int bundleQuantity;
+            long bundleCents;
+        }
+
+        private static class Coupon {
+            final int percentOff;
+            final long minimumCents;
+
+            Coupon(int percentOff, long minimumCents) {
+                this.percentOff = percentOff;
+                this.minimumCents = minimumCents;
+            }
+        }
+
+        private Promotions(LongMap<LineDeal> byBarcode, Map<String, Coupon> coupons) {
+            this.byBarcode = byBarcode;
+            this.coupons = coupons;
+        }
+
+        // Reads promotions.csv; a missing file means no promotions. Rows of unknown kinds are skipped, and malformed rows are
+        // skipped with a message.
+        public static Promotions load(String fileName) throws IOException {
+            if (!Files.exists(Paths.get(fileName))) {
+                return NONE;
+            }
+            LongMap<LineDeal> byBarcode = new LongMap<>();
+            Map<String, Coupon> coupons = new HashMap<>();
+            try (CsvCursor cursor = CsvCursor.open(fileName)) {
+                while (cursor.nextRecord()) {
+                    if (cursor.fieldCount() < 3) {
+                        continue;
+                    }
+                    String kind = cursor.readString();
+                    try {
+                        switch (kind) {
+                            case "percent": {
+                                long barcode = cursor.readLong();
+                                offerPercent(byBarcode, barcode, cursor.readInt(), null);
+                                break;
+                            }
+                            case "multibuy": {
+                                long barcode = cursor.readLong();
+                                int quantity = cursor.readInt();
+                                long cents = cursor.readCents();
+                                if (quantity <= 0 || cents <= 0) { // A free or negative bundle would take off more than the line costs
+                                    throw new IllegalArgumentException("multibuy for " + barcode + " needs a positive quantity and price, got "
+                                            + quantity + " for $" + Money.format(cents));
+                                }
+                                LineDeal deal = deal(byBarcode, barcode);
+                                // Keep the cheaper bundle per unit: cents / quantity < deal.bundleCents / deal.bundleQuantity
+                                if (deal.bundleQuantity == 0 || cents * deal.bundleQuantity < deal.bundleCents * quantity) {
+                                    deal.bundleQuantity = quantity;
+                                    deal.bundleCents = cents;
+                                }
+                                break;
+                            }
+                            case "category": {
+                                String name = cursor.readString();
+                                int percent = cursor.readInt();
+                                while (cursor.hasMoreFields()) {
+                                    offerPercent(byBarcode, cursor.readLong(), percent, name);
+                                }
+                                break;
+                            }
+                            case "coupon": {
+                                String code = cursor.readString().toUpperCase(Locale.ROOT);
+                                int percent = Math.max(0, Math.min(cursor.readInt(), 100)); // Like line deals, never more than the total
+                                long minimum = cursor.hasMoreFields() ? cursor.readCents() : 0;
+                                coupons.put(code, new Coupon(percent, minimum));
+                                break;
+                            }
+                            default:
+                                break;
+                        }
+                    } catch (IllegalArgumentException e) { // Includes NumberFormatException
+                        System.out.println("Skipping promotion: " + e.getMessage());
+                    }
+                }
+            }
+            return new Promotions(byBarcode, coupons);
+        }
+
+        private static LineDeal deal(LongMap<LineDeal> byBarcode, long barcode) {
+            LineDeal deal = byBarcode.get(barcode);
+            if (deal == null) {
+                deal = new LineDeal();
+                byBarcode.put(barcode, deal);
+            }
+            return deal;
+        }
+
+        private static void offerPercent(LongMap<LineDeal> byBarcode, long barcode, int percent, String category) {
+            LineDeal deal = deal(byBarcode, barcode);
+            if (percent > deal.percentOff) {
+                deal.percentOff = Math.min(percent, 100);
+                deal.percentLabel = category;
+            }
+        }
+
+        public int getVersion() {
+            return version;
+        }
+
+        public boolean isCoupon(String code) {
+            return code != null && coupons.containsKey(code.toUpperCase(Locale.ROOT));
+        }
+
+        // Cents taken off a line of this many of the product.
+        public long lineDiscount(Product product, int quantity) {
+            LineDeal deal = byBarcode.get(product.getBarcode());
+            if (deal == null) {
+                return 0;
+            }
+            return Math.max(percentDiscount(deal, product, quantity), bundleDiscount(deal, product, quantity));
+        }
+
+        // Names the deal lineDiscount picked, for receipts.
+        public String lineLabel(Product product, int quantity) {
+            LineDeal deal = byBarcode.get(product.getBarcode());
+            if (deal == null) {
+                return "";
+            }
+            if (bundleDiscount(deal, product, quantity) > percentDiscount(deal, product, quantity)) {
+                return deal.bundleQuantity + " for $" + Money.format(deal.bundleCents);
+            }
+            return deal.percentOff + "% off" + (deal.percentLabel != null ? " " + deal.percentLabel : "");
+        }
+
+        // Cents the coupon takes off the given amount, or 0 if there is no such coupon or the amount is below its minimum.
+        public long couponDiscount(String code, long amountCents) {
+            Coupon coupon = code == null ? null : coupons.get(code.toUpperCase(Locale.ROOT));
+            if (coupon == null || amountCents < coupon.minimumCents) {
+                return 0;
+            }
+            return percentOf(amountCents, coupon.percentOff);
+        }
+
+        private static long percentDiscount(LineDeal deal, Product product, int quantity) {
+            return percentOf(Money.times(product.getPriceCents(), quantity), deal.percentOff);
+        }
+
+        private static long bundleDiscount(LineDeal deal, Product product, int quantity) {
+            if (deal.bundleQuantity == 0) {
+                return 0;
+            }
+            long saving = Money.times(product.getPriceCents(), deal.bundleQuantity) - deal.bundleCents;
+            return saving > 0 ? saving * (quantity / deal.bundleQuantity) : 0;
+        }
+
+        // Rounded half up to the cent.
+        private static long percentOf(long cents, int percent) {
+            return (cents * percent + 50) / 100;
+        }
+    }
+
+    // CsvCursor class
+    // Streams comma-separated records through one reusable byte buffer. Numbers are parsed straight out of the buffer
+    // and only the text fields that are actually kept become Strings, so loading a file creates no garbage per field.
+    // Fields are separated by ',' and numbers also stop at ':', which is how cart and order lines write barcode:quantity.
+    public static class CsvCursor implements Closeable {
+        private final InputStream in;
+        private byte[] buf;
+        private long base; // Offset in the file of buf[0]
+        private int limit; // Number of valid bytes in buf
+        private int next;  // Start of the record after the current one
+        private int start; // Start of the current record
+        private int end;   // End of the current record, without the line terminator
+        private int pos;   // Start of the next unread field; end + 1 once every field is read
+        private boolean eof;
+
+        public CsvCursor(InputStream in) {
+            this(in, 64 * 1024);
+        }
+
+        // A small buffer suits reading a single record; it still grows to fit a longer one.
+        public CsvCursor(InputStream in, int bufferSize) {
+            this.in = in;
+            this.buf = new byte[bufferSize];
+        }
+
+        // Reads records from a region of an array that is already in memory, such as a line copied out of a mapped file.
+        public CsvCursor(byte[] data, int offset, int length) {
+            this.in = null;
+            this.buf = data;
+            this.next = offset;
+            this.limit = offset + length;
+            this.eof = true;
+        }
+
+        public static CsvCursor open(String fileName) throws IOException {
+            return open(fileName, 0);
+        }
+
+        // Starts reading at a byte offset, which must be the start of a record.
+        public static CsvCursor open(String fileName, long offset) throws IOException {
+            return open(fileName, offset, 64 * 1024);
+        }
+
+        public static CsvCursor open(String fileName, long offset, int bufferSize) throws IOException {
+            FileInputStream in = new FileInputStream(fileName);
+            try {
+                in.getChannel().position(offset);
+            } catch (IOException e) {
+                in.close();
+                throw e;
+            }
+            CsvCursor cursor = new CsvCursor(in, bufferSize);
+            cursor.base = offset;
+            return cursor;
+        }
+
+        // Moves to the next record, returning false at end of input. The whole record is kept in the buffer.
+        public boolean nextRecord() throws IOException {
+            while (true) {
+                for (int i = next; i < limit; i++) {
+                    if (buf[i] == '\n') {
+                        setRecord(next, i);
+                        next = i + 1;
+                        return true;
+                    }
+                }
+                if (eof) {
+                    if (next < limit) {
+                        setRecord(next, limit);
+                        next = limit;
+                        return true;
+                    }
+                    return false;
+                }
+                fill();
+            }
+        }
+
+        private void setRecord(int from, int to) {
+            start = from;
+            end = to > from && buf[to - 1] == '\r' ? to - 1 : to;
+            pos = start;
+        }
+
+        private void fill() throws IOException {
+            int pending = limit - next;
+            if (next > 0) {
+                System.arraycopy(buf, next, buf, 0, pending);
+            } else if (pending == buf.length) {
+                buf = Arrays.copyOf(buf, buf.length * 2); // A single record is larger than the buffer
+            }
+            start -= next;
+            end -= next;
+            pos -= next;
+            base += next;
+            next = 0;
+            limit = pending;
+            int read = in.read(buf, limit, buf.length - limit);
+            if (read < 0) {
+                eof = true;
+            } else {
+                limit += read;
+            }
+        }
+
+        // Offset in the file at which the current record starts.
+        public long recordOffset() {
+            return base + start;
+        }
+
+        // Number of fields in the current record, counted the way String.split(",") would before trailing empties are dropped.
+        public int fieldCount() {
+            int count = 1;
+            for (int i = start; i < end; i++) {
+                if (buf[i] == ',') count++;
+            }
+            return count;
+        }
+
+        public boolean hasMoreFields() {
+            return pos <= end;
+        }
+
+        // Number of ':'-separated parts in the next unread field.
+        public int subfieldCount() {
+            int count = 1;
+            for (int i = pos; i < end && buf[i] != ','; i++) {
+                if (buf[i] == ':') count++;
+            }
+            return count;
+        }
+
+        public void skipField() {
+            pos = fieldEnd(pos) + 1;
+        }
+
+        public String readString() {
+            int fieldEnd = fieldEnd(pos);
+            String value = new String(buf, pos, fieldEnd - pos, StandardCharsets.UTF_8);
+            pos = fieldEnd + 1;
+            return value;
+        }
+
+        // Everything from the next unread field to the end of the record, commas and all.
+        public String readRest() {
+            int from = Math.min(pos, end);
+            pos = end + 1;
+            return new String(buf, from, end - from, StandardCharsets.UTF_8);
+        }
+
+        // A copy of the whole current record, without its line terminator.
+        public byte[] recordBytes() {
+            return Arrays.copyOfRange(buf, start, end);
+        }
+
+        // Hashes the next field's bytes the way hash(byte[], int, int) does, without decoding it, and moves past it.
+        public long readHash() {
+            int fieldEnd = fieldEnd(pos);
+            long hash = hash(buf, pos, fieldEnd);
+            pos = fieldEnd + 1;
+            return hash;
+        }
+
+        // Hashes the next field with check(byte[], int, int), without moving past it.
+        public int peekCheck() {
+            return check(buf, pos, fieldEnd(pos));
+        }
+
+        // A 32-bit hash computed unlike hash(byte[], int, int), to tell apart fields whose 64-bit hashes collide.
+        public static int check(byte[] bytes, int from, int to) {
+            long check = 0;
+            for (int i = from; i < to; i++) {
+                check = (check + (bytes[i] & 0xff)) * 0x9e3779b97f4a7c15L;
+            }
+            return (int) ((check ^ (check >>> 29)) * 0xbf58476d1ce4e5b9L >>> 32);
+        }
+
+        // 64-bit FNV-1a followed by a SplitMix64 finalizer, so nearby keys spread over the whole range.
+        public static long hash(byte[] bytes, int from, int to) {
+            long hash = 0xcbf29ce484222325L;
+            for (int i = from; i < to; i++) {
+                hash = (hash ^ (bytes[i] & 0xff)) * 0x100000001b3L;
+            }
+            hash = (hash ^ (hash >>> 30)) * 0xbf58476d1ce4e5b9L;
+            hash = (hash ^ (hash >>> 27)) * 0x94d049bb133111ebL;
+            return hash ^ (hash >>> 31);
+        }
+
+        // Reads an order timestamp in either format Timestamps knows as epoch millis, or Long.MIN_VALUE if it is neither.
+        public long readTimestamp() {
+            int fieldEnd = fieldEnd(pos);
+            long millis = Timestamps.parse(buf, pos, fieldEnd);
+            pos = fieldEnd + 1;
+            return millis;
+        }
+
+        // Reads an order id field (#42) if that is what comes next. Returns -1 and stays put otherwise, as on order
+        // lines written before orders had ids.
+        public long readOrderId() {
+            if (pos >= end || buf[pos] != '#') {
+                return -1;
+            }
+            pos++;
+            return readLong();
+        }
+
+        // Compares the next field with the given UTF-8 bytes without decoding it, and moves past it.
+        public boolean readEquals(byte[] expected) {
+            int fieldEnd = fieldEnd(pos);
+            boolean equal = Arrays.equals(buf, pos, fieldEnd, expected, 0, expected.length);
+            pos = fieldEnd + 1;
+            return equal;
+        }
+
+        public int readInt() {
+            long value = readLong();
+            if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+                throw new NumberFormatException("Value out of range: " + value);
+            }
+            return (int) value;
+        }
+
+        public long readLong() {
+            int p = pos;
+            boolean negative = p < end && buf[p] == '-';
+            if (p < end && (buf[p] == '-' || buf[p] == '+')) p++;
+            int digitsStart = p;
+            long value = 0; // Built up negative, so Long.MIN_VALUE can be read too
+            for (; p < end; p++) {
+                int digit = buf[p] - '0';
+                if (digit < 0 || digit > 9) break;
+                if (value < (Long.MIN_VALUE + digit) / 10) {
+                    throw malformedNumber();
+                }
+                value = value * 10 - digit;
+            }
+            if (p == digitsStart || (!negative && value == Long.MIN_VALUE)) {
+                throw malformedNumber();
+            }
+            finishNumber(p);
+            return negative ? value : -value;
+        }
+
+        // Reads an amount of money such as 0.15 as whole cents, straight from the buffer (see Money.parse).
+        public long readCents() {
+            int fieldEnd = numberEnd(pos);
+            long cents = Money.parse(buf, pos, fieldEnd);
+            finishNumber(fieldEnd);
+            return cents;
+        }
+
+        private void finishNumber(int p) {
+            if (p < end && buf[p] != ',' && buf[p] != ':') {
+                throw malformedNumber();
+            }
+            pos = p + 1;
+        }
+
+        private int fieldEnd(int from) {
+            int i = from;
+            while (i < end && buf[i] != ',') i++;
+            return i;
+        }
+
+        private int numberEnd(int from) {
+            int i = from;
+            while (i < end && buf[i] != ',' && buf[i] != ':') i++;
+            return i;
+        }
+
+        private NumberFormatException malformedNumber() {
+            int from = Math.min(pos, end);
+            return new NumberFormatException("For input string: \"" + new String(buf, from, numberEnd(from) - from, StandardCharsets.UTF_8) + "\"");
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (in != null) {
+                in.close();
+            }
+        }
+    }
+
+    // OrderStore class
+    // Appends orders to orders.csv and keeps a per-email index of where each user's order lines start, so reading one
+    // user's history only touches that user's lines. The index is persisted in a sidecar file that is appended to with
+    // every order; on open, any lines written after the sidecar was last updated are indexed from the tail of the file.
+    // Sidecar records are [email length][email bytes][line offset][line length]. If writing the sidecar fails, it is
+    // deleted and no longer written, and the next open indexes all of orders.csv again; the index in memory stays whole.
+    // Order lines are read through a memory mapped window over orders.csv.
+    // Each new line is name,email,<ISO-8601 UTC time>,#<order id>,<barcode>:<quantity>... Ids and times are handed out
+    // in the order lines are queued for the journal, so the file is sorted by time and a time range is found by binary
+    // search, over one user's lines or over the whole file, instead of reading everything before it. Lines moved here
+    // from another shard are merged in by time with ids of their own (see merge), so ids stay unique but are only in
+    // order among the lines this store wrote itself. The highest id handed out at a merge is kept in the sidecar as a
+    // record with email length ID_RECORD, since the last line no longer has to carry it.
+    public static class OrderStore implements OrderLog {
+        private static final long WINDOW_SIZE = 256L * 1024 * 1024;
+        private static final long SEEK_SCAN_BYTES = 4 * 1024; // Below this a time search reads line by line
+        private static final int ID_RECORD = 0xFFFF; // Sidecar email length that marks a highest-id record
+
+        private final Path ordersPath;
+        private final Path indexPath;
+        private final OrderJournal.FsyncPolicy fsync;
+        private final int maxBatchBytes;
+        private final long lingerMillis;
+        private FileChannel channel;      // Replaced when a merge rewrites orders.csv
+        private DataOutputStream indexOut; // Likewise for the sidecar
+        private boolean indexOutFailed;
+        private long highestId; // Highest id in the sidecar's id records and in lines indexed from the file
+        private final Map<String, OffsetList> index = new HashMap<>();
+        private final Object stamps = new Object();
+        private OrderJournal journal;
+        private long size; // Bytes of orders.csv covered by the index
+        private boolean endsWithNewline = true;
+        private long lastId;     // Guarded by stamps
+        private long lastMillis; // Guarded by stamps
+        private final HistoryCache histories = new HistoryCache(Integer.getInteger("grocery.orders.historyCacheSize", 10_000),
+                Long.getLong("grocery.orders.historyCacheWeight", 1_000_000));
+        private MappedByteBuffer window;
+        private long windowStart;
+        private byte[] lineBuffer = new byte[256];
+
+        private OrderStore(Path ordersPath, Path indexPath, OrderJournal.FsyncPolicy fsync, int maxBatchBytes, long lingerMillis) {
+            this.ordersPath = ordersPath;
+            this.indexPath = indexPath;
+            this.fsync = fsync;
+            this.maxBatchBytes = maxBatchBytes;
+            this.lingerMillis = lingerMillis;
+        }
+
+        public static OrderStore open(String ordersFile, String indexFile, OrderJournal.FsyncPolicy fsync, int maxBatchBytes, long lingerMillis) throws IOException {
+            Path indexPath = Paths.get(indexFile);
+            FileChannel channel = FileChannel.open(Paths.get(ordersFile), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            try {
+                Map<String, OffsetList> entries = new HashMap<>();
+                long[] highestId = {0};
+                long fileSize = channel.size();
+                long covered = readIndex(indexPath, entries, highestId);
+                if (covered > fileSize + 1) {
+                    entries.clear(); // orders.csv was replaced or truncated, rebuild the index from scratch
+                    highestId[0] = 0;
+                    Files.deleteIfExists(indexPath);
+                    covered = 0;
+                }
+                OrderStore store = new OrderStore(Paths.get(ordersFile), indexPath, fsync, maxBatchBytes, lingerMillis);
+                store.channel = channel;
+                store.indexOut = new DataOutputStream(new BufferedOutputStream(
+                        Files.newOutputStream(indexPath, StandardOpenOption.CREATE, StandardOpenOption.APPEND)));
+                store.index.putAll(entries);
+                store.highestId = highestId[0];
+                store.size = Math.min(covered, fileSize);
+                store.endsWithNewline = covered <= fileSize; // The last indexed line has no terminator yet
+                store.indexTail();
+                store.readLastStamp();
+                store.journal = store.newJournal();
+                return store;
+            } catch (IOException | RuntimeException e) {
+                channel.close();
+                throw e;
+            }
+        }
+
+        private OrderJournal newJournal() {
+            return new OrderJournal(channel, size, !endsWithNewline, fsync, maxBatchBytes, lingerMillis, this::committed);
+        }
+
+        // Loads the sidecar into entries and returns the end of the last indexed line including its terminator. The
+        // highest id of any id record goes into highestId[0]. A record cut short by a crash is dropped and the file
+        // trimmed back.
+        private static long readIndex(Path indexPath, Map<String, OffsetList> entries, long[] highestId) throws IOException {
+            if (!Files.exists(indexPath)) {
+                return 0;
+            }
+            long covered = 0;
+            long validBytes = 0;
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(indexPath)))) {
+                while (true) {
+                    int emailLength;
+                    try {
+                        emailLength = in.readUnsignedShort();
+                        if (emailLength == ID_RECORD) {
+                            highestId[0] = Math.max(highestId[0], in.readLong());
+                            in.readInt();
+                            validBytes += 2 + 8 + 4;
+                            continue;
+                        }
+                        byte[] email = new byte[emailLength];
+                        in.readFully(email);
+                        long offset = in.readLong();
+                        int length = in.readInt();
+                        entries.computeIfAbsent(new String(email, StandardCharsets.UTF_8), k -> new OffsetList()).add(offset, length);
+                        covered = Math.max(covered, offset + length + 1);
+                    } catch (EOFException e) {
+                        break;
+                    }
+                    validBytes += 2 + emailLength + 8 + 4;
+                }
+            }
+            if (validBytes < Files.size(indexPath)) {
+                try (FileChannel index = FileChannel.open(indexPath, StandardOpenOption.WRITE)) {
+                    index.truncate(validBytes);
+                }
+            }
+            return covered;
+        }
+
+        // Indexes any lines past the covered part of the file, e.g. orders written by an older build or lost from the
+        // sidecar in a crash.
+        private void indexTail() throws IOException {
+            long fileSize = channel.size();
+            long lineStart = size;
+            for (long p = size; p < fileSize; p++) {
+                if (byteAt(p) == '\n') {
+                    indexLine(lineStart, (int) (p - lineStart));
+                    lineStart = p + 1;
+                }
+            }
+            if (lineStart < fileSize) {
+                indexLine(lineStart, (int) (fileSize - lineStart));
+                endsWithNewline = false;
+            }
+            size = fileSize;
+            flushIndex();
+        }
+
+        // Carries on from the id and time of the last line, or from a higher id a merge handed out. If there are no ids
+        // at all, ids start again from 1.
+        private void readLastStamp() throws IOException {
+            lastId = highestId;
+            long lineEnd = endsWithNewline ? size - 1 : size;
+            long lineStart = lineEnd;
+            while (lineStart > 0 && byteAt(lineStart - 1) != '\n') {
+                lineStart--;
+            }
+            if (lineEnd <= lineStart) {
+                return;
+            }
+            int length = (int) (lineEnd - lineStart);
+            CsvCursor cursor = new CsvCursor(readLine(lineStart, length), 0, length);
+            if (cursor.nextRecord() && cursor.fieldCount() > 3) {
+                cursor.skipField();
+                cursor.skipField();
+                lastMillis = Math.max(cursor.readTimestamp(), 0);
+                try {
+                    lastId = Math.max(cursor.readOrderId(), lastId);
+                } catch (NumberFormatException e) {
+                    // No id on the last line
+                }
+            }
+        }
+
+        private void indexLine(long offset, int length) throws IOException {
+            byte[] line = readLine(offset, length);
+            int firstComma = indexOf(line, length, 0);
+            int secondComma = firstComma < 0 ? -1 : indexOf(line, length, firstComma + 1);
+            if (secondComma < 0) {
+                return; // Not an order line, the history reader never matched these either
+            }
+            addEntry(new String(line, firstComma + 1, secondComma - firstComma - 1, StandardCharsets.UTF_8), offset, length);
+            int idStart = indexOf(line, length, secondComma + 1) + 1;
+            if (idStart > 0 && idStart < length && line[idStart] == '#') {
+                long id = 0;
+                for (int i = idStart + 1; i < length && line[i] >= '0' && line[i] <= '9' && id < Long.MAX_VALUE / 10; i++) {
+                    id = id * 10 + (line[i] - '0');
+                }
+                highestId = Math.max(highestId, id);
+            }
+        }
+
+        private static int indexOf(byte[] line, int length, int from) {
+            for (int i = from; i < length; i++) {
+                if (line[i] == ',') return i;
+            }
+            return -1;
+        }
+
+        private void addEntry(String email, long offset, int length) {
+            index.computeIfAbsent(email, k -> new OffsetList()).add(offset, length);
+            if (indexOutFailed) {
+                return;
+            }
+            byte[] emailBytes = email.getBytes(StandardCharsets.UTF_8);
+            try {
+                indexOut.writeShort(emailBytes.length);
+                indexOut.write(emailBytes);
+                indexOut.writeLong(offset);
+                indexOut.writeInt(length);
+            } catch (IOException e) {
+                abandonIndexFile(e);
+            }
+        }
+
+        private void flushIndex() {
+            if (!indexOutFailed) {
+                try {
+                    indexOut.flush();
+                } catch (IOException e) {
+                    abandonIndexFile(e);
+                }
+            }
+        }
+
+        // A sidecar that missed a record would hide that order after the next open, so it is dropped rather than patched.
+        private void abandonIndexFile(IOException cause) {
+            indexOutFailed = true;
+            System.out.println("Error writing order index, it will be rebuilt on the next start: " + cause.getMessage());
+            try {
+                Files.deleteIfExists(indexPath);
+            } catch (IOException e) {
+                System.out.println("Error deleting order index: " + e.getMessage());
+            }
+        }
+
+        // Gives the order the next id and a time no earlier than the last order's, then appends the line the format
+        // makes of it (without its line terminator) and indexes it under the user's email. Returns once the journal has
+        // committed the batch the line went out in.
+        @Override
+        public void append(Order order, Function<Order, byte[]> format) throws IOException {
+            OrderJournal.Entry entry;
+            synchronized (stamps) {
+                long millis = Math.max(System.currentTimeMillis(), lastMillis); // The clock may step back
+                order.setId(lastId + 1);
+                order.setOrderDate(new Date(millis));
+                entry = journal.enqueue(order.getUser().getEmail(), format.apply(order));
+                lastId++;
+                lastMillis = millis;
+            }
+            journal.await(entry);
+        }
+
+        // Merges order lines moved here from another shard into orders.csv by time, each with the next id of this store,
+        // and returns how many were merged. A line that only differs by its id from one already here is skipped, so a
+        // move can be repeated. Everything is rewritten to a temporary file that replaces orders.csv, and the sidecar is
+        // deleted first and then written again, so a crash part way leaves either file whole and at worst an index to
+        // rebuild. New orders wait until the merge is done. Lines must have a name, email, time and id.
+        public int merge(List<byte[]> moved) throws IOException {
+            synchronized (stamps) {
+                journal.close(); // Writes what is queued; append() cannot queue more while stamps is held
+                try {
+                    synchronized (this) {
+                        return rewrite(moved);
+                    }
+                } finally {
+                    synchronized (this) {
+                        journal = newJournal();
+                    }
+                }
+            }
+        }
+
+        private int rewrite(List<byte[]> moved) throws IOException {
+            Map<String, Set<String>> present = new HashMap<>();
+            List<byte[]> incoming = new ArrayList<>();
+            List<Long> times = new ArrayList<>();
+            for (byte[] line : moved) {
+                CsvCursor cursor = new CsvCursor(line, 0, line.length);
+                if (!cursor.nextRecord() || cursor.fieldCount() < 4) {
+                    throw new IOException("Malformed order line: " + new String(line, StandardCharsets.UTF_8));
+                }
+                cursor.skipField();
+                String email = cursor.readString();
+                long millis = cursor.readTimestamp();
+                Set<String> seen = present.get(email);
+                if (seen == null) {
+                    Set<String> lines = new HashSet<>();
+                    forEachOrder(email, order -> lines.add(withoutId(order.recordBytes())));
+                    present.put(email, seen = lines);
+                }
+                if (seen.add(withoutId(line))) {
+                    incoming.add(line);
+                    times.add(millis);
+                }
+            }
+            if (incoming.isEmpty()) {
+                return 0;
+            }
+            Integer[] byTime = new Integer[incoming.size()];
+            for (int i = 0; i < byTime.length; i++) {
+                byTime[i] = i;
+            }
+            Arrays.sort(byTime, Comparator.comparing(times::get)); // Stable, so lines from one time keep their order
+
+            Path temp = ordersPath.resolveSibling(ordersPath.getFileName() + ".tmp");
+            long id = lastId;
+            try (CsvCursor existing = CsvCursor.open(ordersPath.toString());
+                 FileOutputStream file = new FileOutputStream(temp.toFile());
+                 BufferedOutputStream out = new BufferedOutputStream(file, 64 * 1024)) {
+                int next = 0;
+                while (existing.nextRecord()) {
+                    byte[] line = existing.recordBytes();
+                    long millis = Long.MIN_VALUE;
+                    if (existing.fieldCount() >= 3) {
+                        existing.skipField();
+                        existing.skipField();
+                        millis = existing.readTimestamp();
+                    }
+                    for (; next < byTime.length && times.get(byTime[next]) < millis; next++) {
+                        writeWithId(out, incoming.get(byTime[next]), ++id);
+                    }
+                    out.write(line);
+                    out.write('\n');
+                }
+                for (; next < byTime.length; next++) {
+                    writeWithId(out, incoming.get(byTime[next]), ++id);
+                }
+                out.flush();
+                file.getFD().sync();
+            }
+
+            try {
+                indexOut.close();
+            } catch (IOException e) {
+                // The sidecar is deleted next either way
+            }
+            Files.deleteIfExists(indexPath);
+            Files.move(temp, ordersPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            FileChannel old = channel;
+            channel = FileChannel.open(ordersPath, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            old.close();
+            window = null;
+            index.clear();
+            histories.clear();
+            indexOut = new DataOutputStream(new BufferedOutputStream(
+                    Files.newOutputStream(indexPath, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)));
+            indexOutFailed = false;
+            size = 0;
+            endsWithNewline = true;
+            indexTail();
+            lastId = id;
+            for (long millis : times) {
+                lastMillis = Math.max(lastMillis, millis);
+            }
+            if (!indexOutFailed) {
+                try {
+                    indexOut.writeShort(ID_RECORD);
+                    indexOut.writeLong(id);
+                    indexOut.writeInt(0);
+                } catch (IOException e) {
+                    abandonIndexFile(e);
+                }
+                flushIndex();
+            }
+            return incoming.size();
+        }
+
+        // The line with its id field left out, which is what tells one moved order from another.
+        private static String withoutId(byte[] line) {
+            int[] id = idField(line);
+            return new String(line, 0, id[0], StandardCharsets.UTF_8) + new String(line, id[1], line.length - id[1], StandardCharsets.UTF_8);
+        }
+
+        private static void writeWithId(OutputStream out, byte[] line, long id) throws IOException {
+            int[] field = idField(line);
+            out.write(line, 0, field[0]);
+            out.write(("#" + id).getBytes(StandardCharsets.UTF_8));
+            out.write(line, field[1], line.length - field[1]);
+            out.write('\n');
+        }
+
+        // Start and end of the fourth field, where the id is; both the end of the line if it has fewer fields.
+        private static int[] idField(byte[] line) {
+            int start = 0;
+            for (int commas = 0; commas < 3; commas++) {
+                int comma = indexOf(line, line.length, start);
+                if (comma < 0) {
+                    return new int[] {line.length, line.length};
+                }
+                start = comma + 1;
+            }
+            int end = indexOf(line, line.length, start);
+            return new int[] {start, end < 0 ? line.length : end};
+        }
+
+        private synchronized void committed(List<OrderJournal.Entry> batch) {
+            for (OrderJournal.Entry entry : batch) {
+                addEntry(entry.getEmail(), entry.getOffset(), entry.getLength());
+                histories.invalidate(entry.getEmail());
+                size = Math.max(size, entry.getOffset() + entry.getLength() + 1);
+            }
+            flushIndex();
+        }
+
+        // Calls the visitor once per order line for this email, oldest first. The cursor is positioned on the record.
+        @Override
+        public void forEachOrder(String email, OrderVisitor visitor) throws IOException {
+            forEachOrder(email, Long.MIN_VALUE, Long.MAX_VALUE, visitor);
+        }
+
+        // Same for the user's orders placed from fromMillis up to but not including toMillis. Both ends are found by
+        // binary search over the user's lines.
+        @Override
+        public synchronized void forEachOrder(String email, long fromMillis, long toMillis, OrderVisitor visitor) throws IOException {
+            long start = Metrics.start();
+            OffsetList offsets = index.get(email);
+            if (offsets == null) {
+                return;
+            }
+            int to = firstAtOrAfter(offsets, toMillis);
+            int from = firstAtOrAfter(offsets, fromMillis);
+            for (int i = from; i < to; i++) {
+                int length = offsets.lengths[i];
+                CsvCursor cursor = new CsvCursor(readLine(offsets.offsets[i], length), 0, length);
+                if (cursor.nextRecord()) {
+                    visitor.visit(cursor);
+                }
+            }
+            Metrics.ORDER_HISTORY_LINES.add(Math.max(to - from, 0));
+            Metrics.ORDER_HISTORY.stop(start);
+        }
+
+        // Served from the history cache unless the user has not looked at their orders lately or has placed one since.
+        @Override
+        public List<PastOrder> history(String email) throws IOException {
+            List<PastOrder> history = histories.get(email);
+            if (history == null) {
+                synchronized (this) { // Holds off committed(), so no order of theirs is written between reading and caching
+                    history = Collections.unmodifiableList(OrderLog.super.history(email));
+                    histories.put(email, history);
+                }
+            }
+            return history;
+        }
+
+        // Calls the visitor for every order in the file placed from fromMillis up to but not including toMillis, oldest
+        // first. The start is found by binary search over the file and reading stops at the first later order.
+        public synchronized void forEachOrderBetween(long fromMillis, long toMillis, OrderVisitor visitor) throws IOException {
+            long start = Metrics.start();
+            LineReader lines = new LineReader(channel, size);
+            for (long at = seek(lines, fromMillis); at < size; at = lines.nextStart(at + 1)) {
+                CsvCursor cursor = lines.cursorAt(at);
+                if (cursor == null || cursor.fieldCount() < 3) {
+                    continue;
+                }
+                cursor.skipField();
+                cursor.skipField();
+                long millis = cursor.readTimestamp();
+                if (millis >= toMillis) {
+                    break;
+                }
+                if (millis >= fromMillis) {
+                    visitor.visit(lines.cursorAt(at));
+                    Metrics.ORDER_HISTORY_LINES.increment();
+                }
+            }
+            Metrics.ORDER_HISTORY.stop(start);
+        }
+
+        // Calls the visitor for every order line from the given offset to the end of the file, oldest first.
+        public synchronized void forEachOrderFrom(long offset, OrderVisitor visitor) throws IOException {
+            LineReader lines = new LineReader(channel, size);
+            for (long at = lines.nextStart(offset); at < size; at = lines.nextStart(at + 1)) {
+                CsvCursor cursor = lines.cursorAt(at);
+                if (cursor != null) {
+                    visitor.visit(cursor);
+                }
+            }
+        }
+
+        // Bytes of orders.csv written so far, up to and including the last order append() returned for.
+        public synchronized long size() {
+            return size;
+        }
+
+        private int firstAtOrAfter(OffsetList offsets, long millis) throws IOException {
+            int low = 0;
+            int high = offsets.size;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                int length = offsets.lengths[mid];
+                CsvCursor cursor = new CsvCursor(readLine(offsets.offsets[mid], length), 0, length);
+                long stamp = Long.MIN_VALUE;
+                if (cursor.nextRecord() && cursor.fieldCount() >= 3) {
+                    cursor.skipField();
+                    cursor.skipField();
+                    stamp = cursor.readTimestamp();
+                }
+                if (stamp < millis) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+
+        // Offset of the first line in orders.csv[0, end) stamped at or after millis, or end if there is none. Each probe
+        // reads the first whole line after the midpoint of the range left; lines without a readable time count as older.
+        public static long seek(FileChannel channel, long end, long millis) throws IOException {
+            return seek(new LineReader(channel, end), millis);
+        }
+
+        private static long seek(LineReader lines, long millis) throws IOException {
+            long low = 0;            // A line start that is 0 or older than millis
+            long high = lines.end(); // A line start at or after the answer
+            while (high - low > SEEK_SCAN_BYTES) {
+                long probe = lines.nextStart(low + (high - low) / 2);
+                if (probe >= high) {
+                    break;
+                }
+                if (lines.timestampAt(probe) < millis) {
+                    low = probe;
+                } else {
+                    high = probe;
+                }
+            }
+            for (long at = low; at < high; at = lines.nextStart(at + 1)) {
+                if (lines.timestampAt(at) >= millis) {
+                    return at;
+                }
+            }
+            return high;
+        }
+
+        // LineReader class
+        // Reads whole lines of orders.csv[0, end) at any offset through a block cache, with positional reads that do
+        // not move the channel.
+        private static class LineReader {
+            private final FileChannel channel;
+            private final long end;
+            private final ByteBuffer block = ByteBuffer.allocate(8 * 1024);
+            private long blockStart;
+            private byte[] line = new byte[256];
+
+            LineReader(FileChannel channel, long end) {
+                this.channel = channel;
+                this.end = end;
+                block.limit(0);
+            }
+
+            long end() {
+                return end;
+            }
+
+            // The first line start at or after the given offset, or end.
+            long nextStart(long from) throws IOException {
+                if (from <= 0) {
+                    return 0;
+                }
+                for (long at = from - 1; at < end; at++) {
+                    if (byteAt(at) == '\n') {
+                        return at + 1;
+                    }
+                }
+                return end;
+            }
+
+            // The line starting at the given offset, positioned on its record, or null if it is empty.
+            CsvCursor cursorAt(long start) throws IOException {
+                int length = 0;
+                for (long at = start; at < end; at++, length++) {
+                    byte b = byteAt(at);
+                    if (b == '\n') {
+                        break;
+                    }
+                    if (length == line.length) {
+                        line = Arrays.copyOf(line, length * 2);
+                    }
+                    line[length] = b;
+                }
+                CsvCursor cursor = new CsvCursor(line, 0, length);
+                return cursor.nextRecord() ? cursor : null;
+            }
+
+            long timestampAt(long start) throws IOException {
+                CsvCursor cursor = cursorAt(start);
+                if (cursor == null || cursor.fieldCount() < 3) {
+                    return Long.MIN_VALUE;
+                }
+                cursor.skipField();
+                cursor.skipField();
+                return cursor.readTimestamp();
+            }
+
+            private byte byteAt(long position) throws IOException {
+                if (position < blockStart || position >= blockStart + block.limit()) {
+                    block.clear();
+                    block.limit((int) Math.min(block.capacity(), end - position));
+                    blockStart = position;
+                    while (block.hasRemaining()) {
+                        if (channel.read(block, blockStart + block.position()) < 0) {
+                            throw new EOFException("orders.csv is shorter than expected");
+                        }
+                    }
+                    block.flip();
+                }
+                return block.get((int) (position - blockStart));
+            }
+        }
+
+        @Override
+        public synchronized int countOrders(String email) {
+            OffsetList offsets = index.get(email);
+            return offsets == null ? 0 : offsets.size;
+        }
+
+        private byte[] readLine(long offset, int length) throws IOException {
+            if (lineBuffer.length < length) {
+                lineBuffer = new byte[Math.max(length, lineBuffer.length * 2)];
+            }
+            mapWindow(offset, length);
+            window.get((int) (offset - windowStart), lineBuffer, 0, length);
+            return lineBuffer;
+        }
+
+        private byte byteAt(long position) throws IOException {
+            mapWindow(position, 1);
+            return window.get((int) (position - windowStart));
+        }
+
+        private void mapWindow(long offset, int length) throws IOException {
+            if (window != null && offset >= windowStart && offset + length <= windowStart + window.limit()) {
+                return;
+            }
+            long fileSize = channel.size();
+            long windowEnd = Math.min(fileSize, Math.max(offset + length, offset + WINDOW_SIZE));
+            window = channel.map(FileChannel.MapMode.READ_ONLY, offset, windowEnd - offset);
+            windowStart = offset;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                journal.close();
+            } finally {
+                synchronized (this) {
+                    try {
+                        indexOut.close();
+                    } finally {
+                        channel.close();
+                    }
+                }
+            }
+        }
+    }
+
+    // OrderJournal class
+    // Single writer for orders.csv. Checkouts queue their lines and block while a background thread writes everything
+    // queued so far as one batch with one write call, then wakes them. This turns many small appends (and fsyncs) into
+    // a few large ones when checkouts overlap. A batch is capped at maxBatchBytes; with lingerMillis above zero the
+    // writer also waits that long after the first queued order for more to arrive before writing.
+    public static class OrderJournal implements Closeable {
+        public enum FsyncPolicy {
+            NONE,      // Leave flushing to the OS, like the old open/append/close did
+            PER_BATCH, // One fsync per group commit
+            PER_ORDER  // Every order is written and synced on its own
+        }
+
+        // Entry class
+        public static class Entry {
+            private final String email;
+            private final byte[] line;
+            private final long enqueuedAt = System.nanoTime();
+            private long offset;
+            private boolean done;
+            private IOException error;
+
+            Entry(String email, byte[] line) {
+                this.email = email;
+                this.line = line;
+            }
+
+            public String getEmail() {
+                return email;
+            }
+
+            public long getOffset() {
+                return offset;
+            }
+
+            public int getLength() {
+                return line.length;
+            }
+        }
+
+        // BatchListener interface
+        // Told about every batch once it is written. The orders stand even if it throws; the error is only logged.
+        public interface BatchListener {
+            void committed(List<Entry> batch) throws IOException;
+        }
+
+        private final FileChannel channel;
+        private final FsyncPolicy fsync;
+        private final int maxBatchBytes;
+        private final long lingerNanos;
+        private final BatchListener listener;
+        private final Thread writer;
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition queued = lock.newCondition();
+        private final Condition committed = lock.newCondition();
+        private final ArrayDeque<Entry> queue = new ArrayDeque<>();
+        private int queuedBytes;
+        private boolean closed;
+        private long position;
+        private boolean needsNewline;
+        private ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+
+        public OrderJournal(FileChannel channel, long position, boolean needsNewline, FsyncPolicy fsync, int maxBatchBytes, long lingerMillis, BatchListener listener) {
+            this.channel = channel;
+            this.position = position;
+            this.needsNewline = needsNewline;
+            this.fsync = fsync;
+            this.maxBatchBytes = maxBatchBytes;
+            this.lingerNanos = lingerMillis * 1_000_000L;
+            this.listener = listener;
+            this.writer = new Thread(this::run, "order-journal");
+            this.writer.setDaemon(true);
+            this.writer.start();
+        }
+
+        // Queues the line and waits for it to be written, returning the offset it was written at.
+        public long append(String email, byte[] line) throws IOException {
+            return await(enqueue(email, line));
+        }
+
+        // Queues the line without waiting. Lines are written in the order they are queued.
+        public Entry enqueue(String email, byte[] line) throws IOException {
+            Entry entry = new Entry(email, line);
+            lock.lock();
+            try {
+                if (closed) {
+                    throw new IOException("Order journal is closed");
+                }
+                queue.add(entry);
+                queuedBytes += line.length + 1;
+                if (queue.size() == 1 || queuedBytes >= maxBatchBytes) { // Otherwise the writer is busy or lingering anyway
+                    queued.signal();
+                }
+            } finally {
+                lock.unlock();
+            }
+            return entry;
+        }
+
+        // Waits for a queued line to be written, returning the offset it was written at.
+        public long await(Entry entry) throws IOException {
+            lock.lock();
+            try {
+                while (!entry.done) {
+                    committed.awaitUninterruptibly();
+                }
+            } finally {
+                lock.unlock();
+            }
+            if (entry.error != null) {
+                throw new IOException("Error writing order: " + entry.error.getMessage(), entry.error);
+            }
+            return entry.offset;
+        }
+
+        private void run() {
+            List<Entry> batch = new ArrayList<>();
+            while (true) {
+                lock.lock();
+                try {
+                    while (queue.isEmpty() && !closed) {
+                        queued.awaitUninterruptibly();
+                    }
+                    if (queue.isEmpty()) {
+                        return; // Closed and fully drained
+                    }
+                    long deadline = queue.peek().enqueuedAt + lingerNanos;
+                    long remaining;
+                    while (queuedBytes < maxBatchBytes && !closed && (remaining = deadline - System.nanoTime()) > 0) {
+                        queued.awaitNanos(remaining);
+                    }
+                    int bytes = 0;
+                    while (!queue.isEmpty() && (batch.isEmpty() || bytes + queue.peek().line.length + 1 <= maxBatchBytes)) {
+                        Entry entry = queue.poll();
+                        bytes += entry.line.length + 1;
+                        batch.add(entry);
+                    }
+                    queuedBytes -= bytes;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                } finally {
+                    lock.unlock();
+                }
+                IOException error = null;
+                try {
+                    write(batch);
+                } catch (IOException e) {
+                    error = e;
+                    recoverPosition();
+                }
+                if (error == null) {
+                    try {
+                        listener.committed(batch);
+                    } catch (IOException | RuntimeException e) {
+                        System.out.println("Error after writing orders: " + e.getMessage());
+                    }
+                }
+                lock.lock();
+                try {
+                    for (Entry entry : batch) {
+                        entry.error = error;
+                        entry.done = true;
+                    }
+                    committed.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+                batch.clear();
+            }
+        }
+
+        private void write(List<Entry> batch) throws IOException {
+            buffer.clear();
+            if (needsNewline) {
+                put((byte) '\n');
+            }
+            for (Entry entry : batch) {
+                entry.offset = position + buffer.position();
+                put(entry.line);
+                put((byte) '\n');
+                if (fsync == FsyncPolicy.PER_ORDER) {
+                    flush();
+                    channel.force(false);
+                }
+            }
+            flush();
+            if (fsync == FsyncPolicy.PER_BATCH) {
+                channel.force(false);
+            }
+            needsNewline = false;
+        }
+
+        private void put(byte b) {
+            ensureCapacity(1);
+            buffer.put(b);
+        }
+
+        private void put(byte[] bytes) {
+            ensureCapacity(bytes.length);
+            buffer.put(bytes);
+        }
+
+        private void ensureCapacity(int bytes) {
+            if (buffer.remaining() < bytes) {
+                ByteBuffer larger = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + bytes));
+                buffer.flip();
+                buffer = larger.put(buffer);
+            }
+        }
+
+        private void flush() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                position += channel.write(buffer, position);
+            }
+            buffer.clear();
+        }
+
+        // After a failed write the file may end with part of a line; carry on from wherever it really ends.
+        private void recoverPosition() {
+            try {
+                position = channel.size();
+                ByteBuffer last = ByteBuffer.allocate(1);
+                needsNewline = position > 0 && channel.read(last, position - 1) == 1 && last.get(0) != '\n';
+            } catch (IOException e) {
+                // Keep the old position, the next write will report the problem
+            }
+        }
+
+        // Stops accepting orders, writes everything already queued and stops the writer thread.
+        @Override
+        public void close() throws IOException {
+            lock.lock();
+            try {
+                closed = true;
+                queued.signal();
+            } finally {
+                lock.unlock();
+            }
+            try {
+                writer.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while closing the order journal");
+            }
+        }
+    }
+
+    // OrderVisitor interface
+    public interface OrderVisitor {
+        void visit(CsvCursor order) throws IOException;
+    }
+
+    // OrderLog interface
+    // Where orders are written and read back per user: an OrderStore over this store's orders.csv, or a ShardRouter that
+    // sends each user's orders to the shard that owns the email.
+    public interface OrderLog extends Closeable {
+        // Gives the order its id and time and writes it. Returns once the order is durable.
+        void append(Order order, Function<Order, byte[]> format) throws IOException;
+
+        int countOrders(String email) throws IOException;
+
+        // Calls the visitor once per order line for this email placed from fromMillis up to but not including toMillis,
+        // oldest first. The cursor is positioned on the record.
+        void forEachOrder(String email, long fromMillis, long toMillis, OrderVisitor visitor) throws IOException;
+
+        default void forEachOrder(String email, OrderVisitor visitor) throws IOException {
+            forEachOrder(email, Long.MIN_VALUE, Long.MAX_VALUE, visitor);
+        }
+
+        // All of the user's orders decoded, oldest first.
+        default List<PastOrder> history(String email) throws IOException {
+            List<PastOrder> history = new ArrayList<>();
+            forEachOrder(email, order -> history.add(PastOrder.read(order)));
+            return history;
+        }
+    }
+
+    // PastOrder class
+    // One line of a user's order history, decoded: its id, its time and the barcode and quantity of each item.
+    // Products are looked up when the order is shown, so a product renamed since shows its current name.
+    public static class PastOrder {
+        private final long id; // Not above 0 for lines written before orders had ids
+        private final long millis; // Long.MIN_VALUE if the time could not be read
+        private final long[] barcodes;
+        private final int[] quantities;
+
+        public PastOrder(long id, long millis, long[] barcodes, int[] quantities) {
+            this.id = id;
+            this.millis = millis;
+            this.barcodes = barcodes;
+            this.quantities = quantities;
+        }
+
+        // Decodes the order line the cursor is positioned on.
+        public static PastOrder read(CsvCursor cursor) {
+            int fields = cursor.fieldCount();
+            cursor.skipField();
+            cursor.skipField();
+            long millis = cursor.readTimestamp();
+            long id = cursor.readOrderId();
+            long[] barcodes = new long[Math.max(fields - 3, 0)];
+            int[] quantities = new int[barcodes.length];
+            int items = 0;
+            while (cursor.hasMoreFields()) {
+                if (cursor.subfieldCount() == 2) {
+                    barcodes[items] = cursor.readLong();
+                    quantities[items++] = cursor.readInt();
+                } else {
+                    cursor.skipField();
+                }
+            }
+            if (items < barcodes.length) {
+                barcodes = Arrays.copyOf(barcodes, items);
+                quantities = Arrays.copyOf(quantities, items);
+            }
+            return new PastOrder(id, millis, barcodes, quantities);
+        }
+
+        public long getId() {
+            return id;
+        }
+
+        public long getMillis() {
+            return millis;
+        }
+
+        public int getItemCount() {
+            return barcodes.length;
+        }
+
+        public long getBarcode(int item) {
+            return barcodes[item];
+        }
+
+        public int getQuantity(int item) {
+            return quantities[item];
+        }
+    }
+
+    // HistoryCache class
+    // Decoded order histories of the users who looked at theirs most recently, so showing one again reads and parses
+    // nothing. Bounded both by users and by weight, one per order and one per item, which is roughly proportional to
+    // memory; the least recently shown histories go first, and one too heavy to fit on its own is not kept. The
+    // OrderStore drops a user's history whenever it writes an order for them.
+    public static class HistoryCache {
+        private final int maxUsers;
+        private final long maxWeight;
+        private final LinkedHashMap<String, List<PastOrder>> histories = new LinkedHashMap<>(16, 0.75f, true);
+        private long weight;
+
+        public HistoryCache(int maxUsers, long maxWeight) {
+            this.maxUsers = maxUsers;
+            this.maxWeight = maxWeight;
+        }
+
+        // The cached history, or null if the user's history is not in the cache.
+        public synchronized List<PastOrder> get(String email) {
+            List<PastOrder> history = histories.get(email);
+            (history != null ? Metrics.ORDER_HISTORY_CACHE_HITS : Metrics.ORDER_HISTORY_CACHE_MISSES).increment();
+            return history;
+        }
+
+        public synchronized void put(String email, List<PastOrder> history) {
+            long added = weigh(history);
+            if (maxUsers <= 0 || added > maxWeight) {
+                return;
+            }
+            invalidate(email);
+            histories.put(email, history);
+            weight += added;
+            Iterator<List<PastOrder>> eldest = histories.values().iterator();
+            while (histories.size() > maxUsers || weight > maxWeight) {
+                weight -= weigh(eldest.next());
+                eldest.remove();
+            }
+        }
+
+        public synchronized void invalidate(String email) {
+            List<PastOrder> history = histories.remove(email);
+            if (history != null) {
+                weight -= weigh(history);
+            }
+        }
+
+        public synchronized void clear() {
+            histories.clear();
+            weight = 0;
+        }
+
+        private static long weigh(List<PastOrder> history) {
+            long weight = 0;
+            for (PastOrder order : history) {
+                weight += 1 + order.getItemCount();
+            }
+            return weight;
+        }
+    }
+
+    // OffsetList class
+    // Growable pair of primitive arrays holding the start and length of each of one user's order lines.
+    public static class OffsetList {
+        private long[] offsets = new long[4];
+        private int[] lengths = new int[4];
+        private int size;
+
+        public void add(long offset, int length) {
+            if (size == offsets.length) {
+                offsets = Arrays.copyOf(offsets, size * 2);
+                lengths = Arrays.copyOf(lengths, size * 2);
+            }
+            offsets[size] = offset;
+            lengths[size] = length;
+            size++;
+        }
+
+        public int size() {
+            return size;
+        }
+    }
+
+    // RecordStore class
+    // Persists one kind of record as a CSV snapshot (e.g. users.csv) plus an append-only change log next to it. Saving
+    // appends only the records that changed, so its cost follows the number of changes rather than the number of
+    // records. A record in the log replaces the snapshot record with the same key when loading. Once the log is larger
+    // than the snapshot, all live records are written to a temporary file that is atomically renamed over the snapshot
+    // and the log is deleted, so a crash at any point leaves either the old or the new snapshot plus a replayable log.
+    public static class RecordStore {
+        private static final long MIN_COMPACTION_BYTES = 64 * 1024;
+
+        private final Path snapshot;
+        private final Path log;
+
+        public RecordStore(String snapshotFile, String logFile) {
+            this.snapshot = Paths.get(snapshotFile);
+            this.log = Paths.get(logFile);
+        }
+
+        public String getSnapshotFile() {
+            return snapshot.toString();
+        }
+
+        public String getLogFile() {
+            return log.toString();
+        }
+
+        // Drops a record left half-written by a crash and reports whether there is a log to replay.
+        public boolean recoverLog() throws IOException {
+            if (!Files.exists(log)) {
+                return false;
+            }
+            try (FileChannel channel = FileChannel.open(log, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                long end = channel.size();
+                ByteBuffer one = ByteBuffer.allocate(1);
+                while (end > 0) {
+                    one.clear();
+                    channel.read(one, end - 1);
+                    if (one.get(0) == '\n') {
+                        break;
+                    }
+                    end--;
+                }
+                channel.truncate(end);
+                return end > 0;
+            }
+        }
+
+        // Returns the offset in the log at which the first record was written.
+        public long append(List<String> records) throws IOException {
+            if (records.isEmpty()) {
+                return Files.exists(log) ? Files.size(log) : 0;
+            }
+            StringBuilder text = new StringBuilder();
+            for (String record : records) {
+                text.append(record).append('\n');
+            }
+            ByteBuffer bytes = ByteBuffer.wrap(text.toString().getBytes(StandardCharsets.UTF_8));
+            try (FileChannel channel = FileChannel.open(log, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+                long start = channel.size();
+                while (bytes.hasRemaining()) {
+                    channel.write(bytes);
+                }
+                channel.force(false);
+                return start;
+            }
+        }
+
+        // Returns true if the log was folded into the snapshot.
+        public boolean compactIfNeeded(Iterable<String> liveRecords) throws IOException {
+            if (!Files.exists(log)) {
+                return false;
+            }
+            long logSize = Files.size(log);
+            if (logSize >= MIN_COMPACTION_BYTES && logSize >= (Files.exists(snapshot) ? Files.size(snapshot) : 0)) {
+                compact(liveRecords);
+                return true;
+            }
+            return false;
+        }
+
+        public void compact(Iterable<String> liveRecords) throws IOException {
+            Path temp = snapshot.resolveSibling(snapshot.getFileName() + ".tmp");
+            try (FileOutputStream out = new FileOutputStream(temp.toFile());
+                 BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8))) {
+                for (String record : liveRecords) {
+                    writer.write(record);
+                    writer.newLine();
+                }
+                writer.flush();
+                out.getFD().sync();
+            }
+            try {
+                Files.move(temp, snapshot, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, snapshot, StandardCopyOption.REPLACE_EXISTING);
+            }
+            Files.deleteIfExists(log);
+        }
+    }
+
+    // File reading functions
+
+    // Rows are id,name,price,barcode with an optional fifth stock column; rows without one have unlimited stock.
+    public static void loadProducts(String fileName, ObjIntConsumer<Product> sink) throws IOException {
+        try (CsvCursor cursor = CsvCursor.open(fileName)) {
+            loadProducts(cursor, sink);
+        }
+    }
+
+    public static void loadProducts(CsvCursor cursor, ObjIntConsumer<Product> sink) throws IOException {
+        long start = Metrics.start();
+        while (cursor.nextRecord()) {
+            int fields = cursor.fieldCount();
+            if (fields == 4 || fields == 5) {
+                int id = cursor.readInt();
+                String name = cursor.readString();
+                long priceCents = cursor.readCents();
+                long barcode = cursor.readLong();
+                int stock = fields == 5 ? cursor.readInt() : StockLedger.UNLIMITED;
+                Product product = new Product(id, name, priceCents, barcode);
+                sink.accept(product, stock);
+            }
+        }
+        Metrics.LOAD_PRODUCTS.stop(start);
+    }
+
+    // Reads a user and their cart from the current record, or returns null if it is not a user record.
+    public static User readUser(CsvCursor cursor, ProductCatalog inventory) {
+        if (cursor.fieldCount() < 3) {
+            return null;
+        }
+        String name = cursor.readString();
+        String email = cursor.readString();
+        String password = cursor.readString();
+        User user = new User(name, email, password);
+
+        while (cursor.hasMoreFields()) {
+            if (cursor.subfieldCount() == 2) {
+                long barcode = cursor.readLong();
+                int quantity = cursor.readInt();
+
+                Product product = inventory.findByBarcode(barcode);
+                if (product != null) {
+                    user.getCart().addProduct(product, quantity); // The saved quantity is the whole line, add it once
+                }
+            } else {
+                cursor.skipField();
+            }
+        }
+        user.clearDirty();
+        return user;
+    }
+
+    // Snapshot class
+    // A binary copy of the catalog and of the account index in grocery.snap, so startup can skip parsing the CSV files.
+    // Every product record is length-prefixed, followed by the key and entry pairs of UserRepository's account index,
+    // so loading is a straight walk over a memory-mapped file. The header stamps the size and modification
+    // time of products.csv and users.csv and how far into each change log the snapshot reaches. If either CSV file no
+    // longer matches, the snapshot is ignored and rebuilt; otherwise only the log records written since are replayed.
+    // CSV stays the format to import and export data in.
+    public static class Snapshot {
+        public static final int VERSION = 4;
+        private static final int MAGIC = 0x47524F43; // "GROC"
+        private static final int STAMP_LONGS = 6;
+
+        private final Path file;
+        private final RecordStore productStore;
+        private final RecordStore userStore;
+        private long[] current; // Stamp of the snapshot on disk once it has been loaded or written, otherwise null
+        private byte[] scratch = new byte[256];
+
+        public Snapshot(String fileName, RecordStore productStore, RecordStore userStore) {
+            this.file = Paths.get(fileName);
+            this.productStore = productStore;
+            this.userStore = userStore;
+        }
+
+        // How far into products.log the loaded snapshot reaches.
+        public long getProductLogOffset() {
+            return current[4];
+        }
+
+        public long getUserLogOffset() {
+            return current[5];
+        }
+
+        // Fills the empty catalog and the account index and returns true, or returns false if there is no usable snapshot.
+        public boolean load(ProductCatalog inventory, UserRepository users) throws IOException {
+            if (!Files.exists(file)) {
+                return false;
+            }
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                if (channel.size() > Integer.MAX_VALUE) {
+                    return false;
+                }
+                MappedByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                if (in.remaining() < 8 + 8 * STAMP_LONGS || in.getInt() != MAGIC || in.getInt() != VERSION) {
+                    return false;
+                }
+                long[] stamp = new long[STAMP_LONGS];
+                for (int i = 0; i < STAMP_LONGS; i++) {
+                    stamp[i] = in.getLong();
+                }
+                long[] sources = sourceStamp();
+                if (stamp[0] != sources[0] || stamp[1] != sources[1] || stamp[2] != sources[2] || stamp[3] != sources[3]
+                        || stamp[4] > sources[4] || stamp[5] > sources[5]) {
+                    return false;
+                }
+
+                int productCount = in.getInt();
+                for (int i = 0; i < productCount; i++) {
+                    int end = in.getInt();
+                    end += in.position();
+                    int id = in.getInt();
+                    long barcode = in.getLong();
+                    long priceCents = in.getLong();
+                    int stock = in.getInt();
+                    String name = readString(in);
+                    in.position(end);
+                    inventory.add(new Product(id, name, priceCents, barcode), stock);
+                }
+                int accounts = in.getInt();
+                LongLongMap index = new LongLongMap(accounts);
+                for (int i = 0; i < accounts; i++) {
+                    long hash = in.getLong();
+                    index.put(hash, in.getLong());
+                }
+                if (in.getInt() != MAGIC) {
+                    throw new IOException("Snapshot is truncated");
+                }
+                users.setIndex(index);
+                current = stamp;
+                return true;
+            }
+        }
+
+        // Writes the catalog and the account index as they are on disk. Skipped when nothing was saved since the snapshot
+        // was loaded or written, and abandoned if a product is still unsaved, since the stamp only vouches for saved
+        // data. Must not run concurrently with a save.
+        public void write(ProductCatalog inventory, UserRepository users) throws IOException {
+            synchronized (users) { // Holds off evictions, which append to users.log, while its length and the index are taken
+                long[] stamp = sourceStamp();
+                if (Arrays.equals(stamp, current)) {
+                    return;
+                }
+                Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+                ByteArrayOutputStream record = new ByteArrayOutputStream(256);
+                DataOutputStream fields = new DataOutputStream(record);
+                boolean unsaved = false;
+                try (FileOutputStream fileOut = new FileOutputStream(temp.toFile());
+                     DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut, 1 << 16))) {
+                    out.writeInt(MAGIC);
+                    out.writeInt(VERSION);
+                    for (long value : stamp) {
+                        out.writeLong(value);
+                    }
+                    List<Product> products = inventory.getProducts();
+                    out.writeInt(products.size());
+                    for (Product product : products) {
+                        record.reset();
+                        fields.writeInt(product.getId());
+                        fields.writeLong(product.getBarcode());
+                        fields.writeLong(product.getPriceCents());
+                        fields.writeInt(inventory.getStock(product));
+                        writeString(fields, product.getName());
+                        out.writeInt(record.size());
+                        record.writeTo(out);
+                    }
+                    LongLongMap index = users.getIndex();
+                    out.writeInt(index.size());
+                    for (int slot = 0; slot < index.capacity(); slot++) {
+                        if (index.isUsed(slot)) {
+                            out.writeLong(index.keyAt(slot));
+                            out.writeLong(index.valueAt(slot));
+                        }
+                    }
+                    out.writeInt(MAGIC);
+                    out.flush();
+                    unsaved = inventory.hasChanges();
+                    if (!unsaved) {
+                        fileOut.getFD().sync();
+                    }
+                }
+                if (unsaved) {
+                    Files.deleteIfExists(temp);
+                    return;
+                }
+                try {
+                    Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                } catch (AtomicMoveNotSupportedException e) {
+                    Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+                }
+                current = stamp;
+            }
+        }
+
+        // Size and modification time of both CSV files, then the size of both logs.
+        private long[] sourceStamp() throws IOException {
+            Path products = Paths.get(productStore.getSnapshotFile());
+            Path users = Paths.get(userStore.getSnapshotFile());
+            return new long[] {
+                size(products), modified(products), size(users), modified(users),
+                size(Paths.get(productStore.getLogFile())), size(Paths.get(userStore.getLogFile()))
+            };
+        }
+
+        private static long size(Path path) throws IOException {
+            return Files.exists(path) ? Files.size(path) : 0;
+        }
+
+        private static long modified(Path path) throws IOException {
+            return Files.exists(path) ? Files.getLastModifiedTime(path).toMillis() : -1;
+        }
+
+        private String readString(ByteBuffer in) {
+            int length = in.getInt();
+            if (length > scratch.length) {
+                scratch = new byte[Math.max(length, scratch.length * 2)];
+            }
+            in.get(scratch, 0, length);
+            return new String(scratch, 0, length, StandardCharsets.UTF_8);
+        }
+
+        private static void writeString(DataOutputStream out, String value) throws IOException {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    // UserDirectory interface
+    // Where sessions find and keep accounts: a UserRepository over this store's users.csv, or a ShardRouter that spreads
+    // them over shard processes by email.
+    public interface UserDirectory {
+        // Returns the account with this email, or null if there is none.
+        User get(String email) throws IOException;
+
+        // Adds a new account, or replaces the one with the same email.
+        void add(User user) throws IOException;
+
+        // Called when a session lets go of an account, so its changes are kept.
+        void release(User user) throws IOException;
+
+        // Writes out every changed account.
+        void save() throws IOException;
+    }
+
+    // UserRepository class
+    // Accounts are read from disk the first time they are asked for instead of all at startup. Only an index from a
+    // 64-bit hash of each email to where its latest record starts (in users.csv, or in users.log if it was saved since
+    // the last compaction) stays in memory, about 20 bytes per account. Accounts that have been looked up sit in a
+    // bounded LRU; one that falls out has its unsaved changes appended to users.log first. If a session still holds an
+    // account that fell out, it is found again through a weak reference, so sessions on one account always share one
+    // User and cart. Each index entry also carries 21 bits of a second hash of the email. When two emails share a
+    // 64-bit hash, the second one's entry moves along a probe sequence to the next key that is free or carries its
+    // check bits, and a lookup compares the email of every record it reads and keeps probing on a mismatch. Indexing
+    // never reads a record back, and a lookup normally reads exactly one.
+    public static class UserRepository implements UserDirectory {
+        private static final long IN_LOG = 1L << 62; // Set on locations in users.log rather than users.csv
+        private static final int CHECK_SHIFT = 40;   // Entries are check bits, then IN_LOG, then the byte offset
+        private static final long CHECK_MASK = (1L << 21) - 1;
+        private static final long LOCATION = IN_LOG | ((1L << CHECK_SHIFT) - 1);
+
+        private final RecordStore store;
+        private final ProductCatalog inventory;
+        private final int cacheSize;
+        private LongLongMap index = new LongLongMap(16);
+        private final LinkedHashMap<String, User> recent = new LinkedHashMap<>(16, 0.75f, true);
+        private final Map<String, UserReference> live = new HashMap<>(); // Every User handed out and not yet collected
+        private final ReferenceQueue<User> collected = new ReferenceQueue<>();
+
+        static class UserReference extends WeakReference<User> { // Also used by ShardRouter
+            private final String email;
+
+            UserReference(User user, ReferenceQueue<User> queue) {
+                super(user, queue);
+                this.email = user.getEmail();
+            }
+        }
+
+        public UserRepository(RecordStore store, ProductCatalog inventory, int cacheSize) {
+            this.store = store;
+            this.inventory = inventory;
+            this.cacheSize = cacheSize;
+        }
+
+        public static long hash(String email) {
+            byte[] bytes = email.getBytes(StandardCharsets.UTF_8);
+            return CsvCursor.hash(bytes, 0, bytes.length);
+        }
+
+        private static long check(String email) {
+            byte[] bytes = email.getBytes(StandardCharsets.UTF_8);
+            return CsvCursor.check(bytes, 0, bytes.length) & CHECK_MASK;
+        }
+
+        // The next key to try when a key is held by another email.
+        private static long probe(long key) {
+            return key * 0x9e3779b97f4a7c15L + 0x632be59bd9b4e019L;
+        }
+
+        // The key an email's entry goes under: the first along its probe sequence that is free or carries its check bits.
+        private long slot(long hash, long check) {
+            for (long key = hash; ; key = probe(key)) {
+                long entry = index.get(key);
+                if (entry < 0 || (entry >>> CHECK_SHIFT & CHECK_MASK) == check) {
+                    return key;
+                }
+            }
+        }
+
+        // Returns the account with this email, reading it from disk if needed, or null if there is none.
+        @Override
+        public synchronized User get(String email) throws IOException {
+            User user = find(email);
+            if (user == null) {
+                long check = check(email);
+                for (long key = hash(email); ; key = probe(key)) {
+                    long entry = index.get(key);
+                    if (entry < 0) {
+                        return null;
+                    }
+                    if ((entry >>> CHECK_SHIFT & CHECK_MASK) == check) {
+                        user = read(entry & LOCATION);
+                        if (user != null && user.getEmail().equals(email)) {
+                            break;
+                        }
+                    }
+                }
+                live.put(email, new UserReference(user, collected));
+            }
+            keep(user);
+            return user;
+        }
+
+        // Adds a new account, or replaces the one with the same email. It is written out by the next save.
+        @Override
+        public synchronized void add(User user) throws IOException {
+            expunge();
+            live.put(user.getEmail(), new UserReference(user, collected));
+            user.markDirty();
+            keep(user);
+        }
+
+        // Called when a session lets go of an account, so any change made after it fell out of the LRU is not lost.
+        @Override
+        public synchronized void release(User user) throws IOException {
+            if (user.isDirty() && find(user.getEmail()) == user) {
+                keep(user);
+            }
+        }
+
+        // Appends every changed account to users.log and compacts it into users.csv once it is large enough.
+        @Override
+        public synchronized void save() throws IOException {
+            long start = Metrics.start();
+            expunge();
+            List<User> changed = new ArrayList<>();
+            for (UserReference reference : live.values()) {
+                User user = reference.get();
+                if (user != null && user.isDirty()) {
+                    changed.add(user);
+                }
+            }
+            write(changed);
+            boolean compacted;
+            try {
+                compacted = store.compactIfNeeded(this::records);
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+            if (compacted) {
+                buildIndex(); // Every record moved
+            }
+            Metrics.SAVE_USERS.stop(start);
+        }
+
+        // Emails of every account saved to users.csv and users.log; changes not saved yet are not seen.
+        public synchronized List<String> emails() throws IOException {
+            List<String> emails = new ArrayList<>();
+            try {
+                for (Iterator<String> records = records(); records.hasNext(); ) {
+                    String record = records.next();
+                    int start = record.indexOf(',') + 1;
+                    emails.add(record.substring(start, record.indexOf(',', start)));
+                }
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+            return emails;
+        }
+
+        // Scans users.csv and users.log for where each account's latest record starts.
+        public synchronized void buildIndex() throws IOException {
+            index = new LongLongMap(16);
+            Path snapshot = Paths.get(store.getSnapshotFile());
+            if (Files.exists(snapshot)) {
+                indexFile(store.getSnapshotFile(), 0, 0);
+            }
+            replayLog(0);
+        }
+
+        // Indexes the records appended to users.log from the given offset on.
+        public synchronized void replayLog(long offset) throws IOException {
+            if (store.recoverLog()) {
+                indexFile(store.getLogFile(), offset, IN_LOG);
+            }
+        }
+
+        synchronized LongLongMap getIndex() {
+            return index;
+        }
+
+        synchronized void setIndex(LongLongMap index) {
+            this.index = index;
+        }
+
+        private void indexFile(String fileName, long offset, long tag) throws IOException {
+            try (CsvCursor cursor = CsvCursor.open(fileName, offset)) {
+                while (cursor.nextRecord()) {
+                    if (cursor.fieldCount() >= 3) {
+                        cursor.skipField();
+                        long check = cursor.peekCheck() & CHECK_MASK;
+                        index.put(slot(cursor.readHash(), check), check << CHECK_SHIFT | tag | cursor.recordOffset());
+                    }
+                }
+            }
+        }
+
+        // Reads the record at a location, which is an entry without its check bits.
+        private User read(long location) throws IOException {
+            String fileName = (location & IN_LOG) != 0 ? store.getLogFile() : store.getSnapshotFile();
+            try (CsvCursor cursor = CsvCursor.open(fileName, location & ~IN_LOG, 512)) {
+                return cursor.nextRecord() ? readUser(cursor, inventory) : null;
+            }
+        }
+
+        // The User already in memory for this email, if any.
+        private User find(String email) {
+            expunge();
+            UserReference reference = live.get(email);
+            return reference != null ? reference.get() : null;
+        }
+
+        private void expunge() {
+            for (Reference<? extends User> cleared; (cleared = collected.poll()) != null; ) {
+                UserReference reference = (UserReference) cleared;
+                live.remove(reference.email, reference);
+            }
+        }
+
+        // Marks the user as recently used and evicts the least recently used ones beyond the cache size.
+        private void keep(User user) throws IOException {
+            recent.put(user.getEmail(), user);
+            if (recent.size() <= cacheSize) {
+                return;
+            }
+            List<User> evicted = new ArrayList<>();
+            Iterator<User> eldest = recent.values().iterator();
+            while (recent.size() - evicted.size() > cacheSize) {
+                evicted.add(eldest.next());
+            }
+            List<User> dirty = new ArrayList<>();
+            for (User candidate : evicted) {
+                if (candidate.isDirty()) {
+                    dirty.add(candidate);
+                }
+            }
+            write(dirty);
+            for (User candidate : evicted) {
+                recent.remove(candidate.getEmail());
+            }
+        }
+
+        private void write(List<User> users) throws IOException {
+            if (users.isEmpty()) {
+                return;
+            }
+            List<String> records = new ArrayList<>(users.size());
+            for (User user : users) {
+                user.clearDirty(); // Cleared before the record is taken, so a change made meanwhile is saved next time
+                records.add(userRecord(user));
+            }
+            long offset;
+            try {
+                offset = store.append(records);
+            } catch (IOException e) {
+                users.forEach(User::markDirty);
+                throw e;
+            }
+            for (int i = 0; i < users.size(); i++) {
+                String email = users.get(i).getEmail();
+                long check = check(email);
+                index.put(slot(hash(email), check), check << CHECK_SHIFT | IN_LOG | offset);
+                offset += records.get(i).getBytes(StandardCharsets.UTF_8).length + 1;
+            }
+        }
+
+        // The latest record of every saved account, in file order, for compaction.
+        private Iterator<String> records() {
+            return new Iterator<String>() {
+                private final String[] files = {store.getSnapshotFile(), store.getLogFile()};
+                private int file = -1;
+                private CsvCursor cursor;
+                private String next;
+
+                @Override
+                public boolean hasNext() {
+                    try {
+                        while (next == null) {
+                            if (cursor == null || !cursor.nextRecord()) {
+                                if (cursor != null) {
+                                    cursor.close();
+                                }
+                                cursor = null;
+                                if (++file == files.length) {
+                                    return false;
+                                }
+                                if (Files.exists(Paths.get(files[file]))) {
+                                    cursor = CsvCursor.open(files[file]);
+                                }
+                                continue;
+                            }
+                            long location = (file == 1 ? IN_LOG : 0) | cursor.recordOffset();
+                            User user = readUser(cursor, inventory);
+                            if (user != null && (index.get(slot(hash(user.getEmail()), check(user.getEmail()))) & LOCATION) == location) {
+                                next = userRecord(user);
+                            }
+                        }
+                        return true;
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }
+
+                @Override
+                public String next() {
+                    if (!hasNext()) {
+                        throw new NoSuchElementException();
+                    }
+                    String record = next;
+                    next = null;
+                    return record;
+                }
+            };
+        }
+    }
+
+    // CartLog class
+    // A write-ahead log of signed-in shoppers' carts in carts.wal, so a crash loses at most the last few milliseconds of
+    // cart changes instead of everything since the last save, and never leaves a cart full after its order was written.
+    // Each change is one line: a CRC-32C of the rest of the line, then the line's new quantity, a cleared cart, a
+    // checkout with its order id, or a new account. Lines go through an OrderJournal that lingers a few milliseconds to
+    // gather them, so a busy store pays one write and one fsync per batch rather than per click, and clicks never wait.
+    // Store.save() starts a new log before saving the accounts and deletes the old one once that worked, so the log
+    // only ever covers what changed since a save. Each log begins with how long orders.csv was when it started; on
+    // open, the logs are replayed over the saved accounts up to the first damaged line, any cart whose order was written
+    // after that point without a checkout line is emptied, and the result is saved.
+    // A sharded store front logs its shoppers' carts the same way and replays them onto the shards, but its orders are
+    // on the shards, so its logs begin with -1 and a crash between a shard writing an order and the checkout line
+    // reaching the log leaves that cart full.
+    public static class CartLog implements Closeable {
+        public static final CartLog NONE = new CartLog(null, null, OrderJournal.FsyncPolicy.NONE, 0); // Logs nothing
+
+        private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+
+        private final Path file;
+        private final OrderStore orders; // Null on a sharded store front
+        private final OrderJournal.FsyncPolicy fsync;
+        private final long lingerMillis;
+        // Clicks and checkouts hold the read lock while they log, a checkpoint holds the write lock while it switches
+        // files. A checkout holds it from writing the order until its checkout line is queued, so the order and that
+        // line never end up on different sides of a switch.
+        private final ReentrantReadWriteLock switching = new ReentrantReadWriteLock();
+        private FileChannel channel;
+        private OrderJournal journal; // Null once closed
+
+        private CartLog(Path file, OrderStore orders, OrderJournal.FsyncPolicy fsync, long lingerMillis) {
+            this.file = file;
+            this.orders = orders;
+            this.fsync = fsync;
+            this.lingerMillis = lingerMillis;
+        }
+
+        // Replays what is left of the logs from the last run, saves the accounts and starts a new log.
+        public static CartLog open(String fileName, UserDirectory users, OrderStore orders, ProductCatalog inventory, OrderJournal.FsyncPolicy fsync, long lingerMillis) throws IOException {
+            CartLog log = new CartLog(Paths.get(fileName), orders, fsync, lingerMillis);
+            Replay replay = new Replay(users, inventory);
+            if (replay.read(log.oldFile())) {
+                replay.read(log.file);
+            }
+            if (replay.changes > 0) {
+                int emptied = orders != null ? replay.emptyPlacedCarts(orders) : 0;
+                users.save();
+                System.out.println("Recovered " + replay.changes + " cart changes from " + fileName
+                        + (emptied > 0 ? "; " + emptied + " checked-out cart(s) emptied" : ""));
+            }
+            Files.deleteIfExists(log.oldFile());
+            log.startSegment();
+            return log;
+        }
+
+        private Path oldFile() {
+            return file.resolveSibling(file.getFileName() + ".old");
+        }
+
+        // The line as it stands in the cart after a change; 0 if it was removed.
+        public void line(String email, long barcode, int quantity) {
+            log("set," + email + "," + barcode + ":" + quantity);
+        }
+
+        public void cleared(String email) {
+            log("clear," + email);
+        }
+
+        public void checkedOut(String email, long orderId) {
+            log("checkout," + email + ",#" + orderId);
+        }
+
+        public void account(User user) {
+            log("account," + userRecord(user));
+        }
+
+        public void beginCheckout() {
+            switching.readLock().lock();
+        }
+
+        public void endCheckout() {
+            switching.readLock().unlock();
+        }
+
+        private void log(String record) {
+            if (file == null) {
+                return;
+            }
+            byte[] line = frame(record);
+            switching.readLock().lock();
+            try {
+                if (journal != null) {
+                    journal.enqueue(null, line);
+                }
+            } catch (IOException e) {
+                // Only thrown once the journal is closed, by which time the store has saved the cart itself
+            } finally {
+                switching.readLock().unlock();
+            }
+        }
+
+        // The checksum in hex, a comma, then the record.
+        static byte[] frame(String record) {
+            byte[] payload = record.getBytes(StandardCharsets.UTF_8);
+            CRC32C crc = new CRC32C();
+            crc.update(payload);
+            long value = crc.getValue();
+            byte[] line = new byte[9 + payload.length];
+            for (int i = 7; i >= 0; i--, value >>>= 4) {
+                line[i] = HEX[(int) (value & 0xf)];
+            }
+            line[8] = ',';
+            System.arraycopy(payload, 0, line, 9, payload.length);
+            return line;
+        }
+
+        // Moves the current log aside and starts a new one. Everything logged so far is written before this returns,
+        // so saving the accounts next covers all of it. If the last save failed its log is still there and this one is
+        // added to the end of it.
+        public void startCheckpoint() throws IOException {
+            if (file == null) {
+                return;
+            }
+            switching.writeLock().lock();
+            try {
+                closeSegment();
+                Path old = oldFile();
+                if (Files.exists(old)) {
+                    try (FileChannel target = FileChannel.open(old, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+                         FileChannel source = FileChannel.open(file, StandardOpenOption.READ)) {
+                        source.transferTo(0, source.size(), target);
+                        target.force(false);
+                    }
+                    Files.delete(file);
+                } else {
+                    Files.move(file, old, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                }
+                startSegment();
+            } finally {
+                switching.writeLock().unlock();
+            }
+        }
+
+        // Called once the accounts are saved: the old log is no longer needed.
+        public void finishCheckpoint() throws IOException {
+            if (file != null) {
+                Files.deleteIfExists(oldFile());
+            }
+        }
+
+        // Starts an empty log whose first line, written before anything else is logged, holds the length of orders.csv,
+        // or -1 without one.
+        private void startSegment() throws IOException {
+            channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            journal = new OrderJournal(channel, 0, false, fsync, 256 * 1024, lingerMillis, batch -> { });
+            journal.append(null, frame("begin," + (orders != null ? orders.size() : -1)));
+        }
+
+        private void closeSegment() throws IOException {
+            if (journal != null) {
+                try {
+                    journal.close();
+                } finally {
+                    journal = null;
+                    channel.close();
+                }
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (file == null) {
+                return;
+            }
+            switching.writeLock().lock();
+            try {
+                closeSegment();
+            } finally {
+                switching.writeLock().unlock();
+            }
+        }
+
+        // Replay class
+        // Applies log lines to the accounts in the order they were written. Quantities and clears are absolute, so
+        // lines already covered by a save the log outlived leave the accounts where that save did.
+        private static class Replay {
+            private final UserDirectory users;
+            private final ProductCatalog inventory;
+            private final Map<String, User> touched = new HashMap<>(); // Held until saved
+            private final Set<Long> checkedOut = new HashSet<>();
+            private long ordersFrom = -1; // Length of orders.csv when the first log began, or -1 if unknown
+            private int changes;
+
+            Replay(UserDirectory users, ProductCatalog inventory) {
+                this.users = users;
+                this.inventory = inventory;
+            }
+
+            // Applies every intact line of the file, returning false if it stopped at a damaged one. A line cut short
+            // by a crash is the usual case; nothing written after a damaged line can be trusted to follow on from it.
+            boolean read(Path path) throws IOException {
+                if (!Files.exists(path)) {
+                    return true;
+                }
+                byte[] bytes = Files.readAllBytes(path);
+                int start = 0;
+                while (start < bytes.length) {
+                    int end = start;
+                    while (end < bytes.length && bytes[end] != '\n') {
+                        end++;
+                    }
+                    if (end == bytes.length || !intact(bytes, start, end)) {
+                        return false;
+                    }
+                    CsvCursor cursor = new CsvCursor(bytes, start + 9, end - start - 9);
+                    if (cursor.nextRecord()) {
+                        apply(cursor);
+                    }
+                    start = end + 1;
+                }
+                return true;
+            }
+
+            private static boolean intact(byte[] bytes, int start, int end) {
+                if (end - start < 9 || bytes[start + 8] != ',') {
+                    return false;
+                }
+                long expected = 0;
+                for (int i = start; i < start + 8; i++) {
+                    int digit = Character.digit(bytes[i], 16);
+                    if (digit < 0) {
+                        return false;
+                    }
+                    expected = expected << 4 | digit;
+                }
+                CRC32C crc = new CRC32C();
+                crc.update(bytes, start + 9, end - start - 9);
+                return crc.getValue() == expected;
+            }
+
+            private void apply(CsvCursor cursor) throws IOException {
+                String type = cursor.readString();
+                if (type.equals("begin")) {
+                    if (ordersFrom < 0) {
+                        ordersFrom = cursor.readLong();
+                    }
+                    return;
+                }
+                if (type.equals("account")) {
+                    User user = readUser(cursor, inventory);
+                    if (user != null) {
+                        users.add(user);
+                        touched.put(user.getEmail(), user);
+                        changes++;
+                    }
+                    return;
+                }
+                User user = user(cursor.readString());
+                if (user == null) {
+                    return;
+                }
+                Cart cart = user.getCart();
+                switch (type) {
+                    case "set" -> {
+                        long barcode = cursor.readLong();
+                        int quantity = cursor.readInt();
+                        Product product = inventory.findByBarcode(barcode);
+                        if (product == null) {
+                            return;
+                        }
+                        CartItem item = cart.getItem(barcode);
+                        int current = item == null ? 0 : item.getQuantity();
+                        if (quantity > current) {
+                            cart.addProduct(product, quantity - current);
+                        } else if (quantity == 0) {
+                            cart.removeProduct(product);
+                        } else if (quantity < current) {
+                            cart.reduceProduct(product, current - quantity);
+                        }
+                    }
+                    case "clear" -> cart.clearCart();
+                    case "checkout" -> {
+                        cart.clearCart();
+                        checkedOut.add(cursor.readOrderId());
+                    }
+                    default -> {
+                        return;
+                    }
+                }
+                changes++;
+            }
+
+            private User user(String email) throws IOException {
+                User user = touched.get(email);
+                if (user == null) {
+                    user = users.get(email);
+                    if (user != null) {
+                        touched.put(email, user);
+                    }
+                }
+                return user;
+            }
+
+            // An order written since the first log began but with no checkout line was placed just before the crash
+            // took the line with it, so its cart still holds what was bought. Returns how many carts were emptied.
+            int emptyPlacedCarts(OrderStore orders) throws IOException {
+                if (ordersFrom < 0) {
+                    return 0;
+                }
+                int[] emptied = {0};
+                orders.forEachOrderFrom(ordersFrom, order -> {
+                    if (order.fieldCount() < 4) {
+                        return;
+                    }
+                    order.skipField();
+                    String email = order.readString();
+                    order.skipField();
+                    if (!checkedOut.contains(order.readOrderId())) {
+                        User user = user(email);
+                        if (user != null && !user.getCart().isEmpty()) {
+                            user.getCart().clearCart();
+                            emptied[0]++;
+                        }
+                    }
+                });
+                return emptied[0];
+            }
+        }
+    }
+
+    // Store class
+    // Everything the sessions share: the catalog, the accounts, the order files and the stores they are saved to.
+    // The catalog is fully built before any session starts and only read afterwards. Accounts are looked up through
+    // a locked UserRepository and carts lock themselves, so any number of sessions can shop at once.
+    public static class Store implements Closeable {
+        private final ProductCatalog inventory;
+        private final UserRepository users;
+        private final UserDirectory accounts; // users, or the shards when grocery.shards is set
+        private final OrderLog orders;
+        private final CartLog carts;
+        private final RecordStore productStore;
+        private final Snapshot snapshot;
+        private final PasswordService passwords;
+        private final Promotions promotions;
+        private final Closeable metricsDump;
+
+        private Store(ProductCatalog inventory, UserRepository users, UserDirectory accounts, OrderLog orders, CartLog carts, RecordStore productStore, Snapshot snapshot, PasswordService passwords, Promotions promotions) {
+            this.inventory = inventory;
+            this.users = users;
+            this.accounts = accounts;
+            this.orders = orders;
+            this.carts = carts;
+            this.productStore = productStore;
+            this.snapshot = snapshot;
+            this.passwords = passwords;
+            this.promotions = promotions;
+            this.metricsDump = Metrics.startDump(Paths.get(System.getProperty("grocery.metrics.file", "metrics.prom")),
+                    Long.getLong("grocery.metrics.intervalSeconds", 60));
+        }
+
+        // Loads products, users and the order index from the working directory, or returns null if orders.csv cannot be opened.
+        // Products and the account index come from grocery.snap when it is still current, otherwise from the CSV files,
+        // after which the snapshot is rebuilt for the next start.
+        // Cart changes logged in carts.wal since the last save are then replayed (see CartLog).
+        // With grocery.shards=host:port,... accounts and orders are kept by those shard processes instead, and this store
+        // only holds the catalog, its stock and the promotions.
+        public static Store open() {
+            long start = Metrics.start();
+            // File reading logic
+            RecordStore productStore = new RecordStore("products.csv", "products.log");
+            RecordStore userStore = new RecordStore("users.csv", "users.log");
+            int cachedUsers = Integer.getInteger("grocery.users.cacheSize", 10_000);
+            ProductCatalog inventory = newCatalog();
+            UserRepository users = new UserRepository(userStore, inventory, cachedUsers);
+            Snapshot snapshot = new Snapshot("grocery.snap", productStore, userStore);
+            boolean fromSnapshot = false;
+            long productLogOffset = 0;
+            long userLogOffset = 0;
+            try {
+                productStore.recoverLog(); // Torn log tails go first, so the log sizes compare cleanly with the stamp
+                userStore.recoverLog();
+                fromSnapshot = snapshot.load(inventory, users);
+            } catch (IOException | RuntimeException e) {
+                System.out.println("Ignoring snapshot: " + e.getMessage());
+            }
+            if (fromSnapshot) {
+                productLogOffset = snapshot.getProductLogOffset();
+                userLogOffset = snapshot.getUserLogOffset();
+            } else {
+                inventory = newCatalog();
+                users = new UserRepository(userStore, inventory, cachedUsers);
+                try {
+                    loadProducts(productStore.getSnapshotFile(), inventory::add);
+                } catch (IOException e) {
+                    System.out.println("Error loading products: " + e.getMessage());
+                }
+            }
+            try {
+                if (productStore.recoverLog()) {
+                    try (CsvCursor cursor = CsvCursor.open(productStore.getLogFile(), productLogOffset)) {
+                        loadProducts(cursor, inventory::put);
+                    }
+                }
+            } catch (IOException e) {
+                System.out.println("Error loading product changes: " + e.getMessage());
+            }
+            try {
+                if (fromSnapshot) {
+                    users.replayLog(userLogOffset);
+                } else {
+                    users.buildIndex();
+                }
+            } catch (IOException e) {
+                System.out.println("Error loading users: " + e.getMessage());
+            }
+            if (!fromSnapshot) {
+                try {
+                    snapshot.write(inventory, users);
+                } catch (IOException e) {
+                    System.out.println("Error writing snapshot: " + e.getMessage());
+                }
+            }
+        
+            String shards = System.getProperty("grocery.shards");
+            UserDirectory accounts = users;
+            OrderLog orders;
+            try {
+                if (shards != null) {
+                    ShardRouter router = new ShardRouter(ShardRing.parse(shards), inventory);
+                    accounts = router;
+                    orders = router;
+                } else {
+                    OrderJournal.FsyncPolicy fsync = OrderJournal.FsyncPolicy.valueOf(System.getProperty("grocery.orders.fsync", "PER_BATCH").toUpperCase(Locale.ROOT));
+                    orders = OrderStore.open("orders.csv", "orders.idx", fsync, Integer.getInteger("grocery.orders.batchBytes", 256 * 1024), Long.getLong("grocery.orders.lingerMillis", 0));
+                }
+            } catch (IOException e) {
+                System.out.println("Error opening orders: " + e.getMessage());
+                return null;
+            }
+            // Sharded carts only reach their shard on release and save, so a store front logs them like any other store
+            CartLog carts;
+            try {
+                OrderJournal.FsyncPolicy fsync = OrderJournal.FsyncPolicy.valueOf(System.getProperty("grocery.carts.fsync", "PER_BATCH").toUpperCase(Locale.ROOT));
+                carts = CartLog.open("carts.wal", accounts, orders instanceof OrderStore local ? local : null, inventory, fsync, Long.getLong("grocery.carts.lingerMillis", 5));
+            } catch (IOException e) {
+                // Starting without the log would let its old lines be replayed over newer carts on the next start
+                System.out.println("Error recovering carts: " + e.getMessage());
+                try {
+                    orders.close();
+                } catch (IOException closing) {
+                    e.addSuppressed(closing);
+                }
+                return null;
+            }
+            PasswordService passwords = new PasswordService(
+                    Integer.getInteger("grocery.password.iterations", PasswordService.DEFAULT_ITERATIONS),
+                    Integer.getInteger("grocery.password.workers", Math.max(1, Runtime.getRuntime().availableProcessors() / 2)),
+                    Integer.getInteger("grocery.password.queue", 256),
+                    Integer.getInteger("grocery.password.cacheSize", 10_000));
+            Promotions promotions = Promotions.NONE;
+            try {
+                promotions = Promotions.load("promotions.csv");
+            } catch (IOException e) {
+                System.out.println("Error loading promotions: " + e.getMessage());
+            }
+            Metrics.STORE_OPEN.stop(start);
+            return new Store(inventory, users, accounts, orders, carts, productStore, snapshot, passwords, promotions);
+        }
+
+        // grocery.catalog=columnar keeps products in a ColumnarProductTable, for catalogs of millions of products.
+        private static ProductCatalog newCatalog() {
+            if ("columnar".equals(System.getProperty("grocery.catalog"))) {
+                return new ProductCatalog(new ColumnarProductTable());
+            }
+            return new ProductCatalog();
+        }
+
+        public ProductCatalog getInventory() {
+            return inventory;
+        }
+
+        public UserDirectory getUsers() {
+            return accounts;
+        }
+
+        public OrderLog getOrders() {
+            return orders;
+        }
+
+        public CartLog getCarts() {
+            return carts;
+        }
+
+        public PasswordService getPasswords() {
+            return passwords;
+        }
+
+        public Promotions getPromotions() {
+            return promotions;
+        }
+
+        public synchronized void save() throws IOException {
+            saveProducts(productStore, inventory);
+            carts.startCheckpoint();
+            accounts.save();
+            carts.finishCheckpoint();
+        }
+
+        // Applies a product feed to the live catalog (see ProductImport) and saves the products it changed.
+        public synchronized ProductImport.Report importProducts(String feed) throws IOException {
+            ProductImport.Report report = ProductImport.run(feed, inventory);
+            saveProducts(productStore, inventory);
+            return report;
+        }
+
+        // Brings grocery.snap up to date with what has been saved so far.
+        public synchronized void writeSnapshot() throws IOException {
+            snapshot.write(inventory, users);
+        }
+
+        // Resources close in reverse order of listing, each even if the snapshot or one closed before it failed; later
+        // failures are added to the first as suppressed.
+        @Override
+        public void close() throws IOException {
+            try (metricsDump; orders; carts; passwords) {
+                writeSnapshot();
+            }
+        }
+    }
+
+    // Renderer class
+    // Collects output in one reusable byte buffer and hands it to the stream in a single write when flushed, instead
+    // of a println (and, on System.out, a flush) per line. Text is written as UTF-8; ASCII, which is nearly all of it,
+    // is copied char by char without going through an encoder. A Renderer with no stream just collects, for toString().
+    public static class Renderer {
+        private final PrintStream out;
+        private byte[] buf;
+        private int size;
+
+        public Renderer(PrintStream out) {
+            this(out, 16 * 1024);
+        }
+
+        public Renderer() {
+            this(null, 256);
+        }
+
+        private Renderer(PrintStream out, int capacity) {
+            this.out = out;
+            this.buf = new byte[capacity];
+        }
+
+        public Renderer append(byte[] bytes) {
+            reserve(bytes.length);
+            System.arraycopy(bytes, 0, buf, size, bytes.length);
+            size += bytes.length;
+            return this;
+        }
+
+        public Renderer append(String text) {
+            int length = text.length();
+            reserve(length);
+            for (int i = 0; i < length; i++) {
+                char c = text.charAt(i);
+                if (c >= 0x80) {
+                    return append(text.substring(i).getBytes(StandardCharsets.UTF_8));
+                }
+                buf[size++] = (byte) c;
+            }
+            return this;
+        }
+
+        public Renderer append(char c) {
+            if (c >= 0x80) {
+                return append(String.valueOf(c));
+            }
+            reserve(1);
+            buf[size++] = (byte) c;
+            return this;
+        }
+
+        public Renderer append(long value) {
+            if (value < 0) {
+                if (value == Long.MIN_VALUE) {
+                    return append(Long.toString(value));
+                }
+                append('-');
+                value = -value;
+            }
+            reserve(19);
+            int digits = 1;
+            for (long rest = value / 10; rest > 0; rest /= 10) {
+                digits++;
+            }
+            for (int i = size + digits - 1; i >= size; i--) {
+                buf[i] = (byte) ('0' + value % 10);
+                value /= 10;
+            }
+            size += digits;
+            return this;
+        }
+
+        // An amount of money with two decimals, as Money.append writes it.
+        public Renderer appendCents(long cents) {
+            if (cents < 0) {
+                append('-');
+            }
+            long fraction = Math.abs(cents % 100);
+            append(Math.abs(cents / 100)).append('.');
+            if (fraction < 10) {
+                append('0');
+            }
+            return append(fraction);
+        }
+
+        public Renderer newline() {
+            return append('\n');
+        }
+
+        // Writes out everything collected so far and flushes the stream.
+        public void flush() {
+            if (out != null) {
+                drain();
+                out.flush();
+            }
+        }
+
+        private void drain() {
+            out.write(buf, 0, size);
+            size = 0;
+        }
+
+        // Makes room for n more bytes, writing out what is collected when there is a stream and growing otherwise.
+        private void reserve(int n) {
+            if (size + n <= buf.length) {
+                return;
+            }
+            if (out != null) {
+                drain();
+                if (n <= buf.length) {
+                    return;
+                }
+            }
+            buf = Arrays.copyOf(buf, Math.max(buf.length * 2, size + n));
+        }
+
+        @Override
+        public String toString() {
+            return new String(buf, 0, size, StandardCharsets.UTF_8);
+        }
+    }
+
+    // Shopper class
+    // What a shopper can do, as plain calls: the interactive Session and batch mode both go through here. Calls change
+    // the shopper's state and report how it went; none of them read input or print, so each caller says as much or as
+    // little as it likes.
+    public static class Shopper {
+        private static final Pattern EMAIL = Pattern.compile("^[A-Za-z0-9+_.-]+@[A-Za-z0-9.-]+$");
+
+        public enum Result { OK, INVALID_EMAIL, USER_NOT_FOUND, WRONG_PASSWORD, LOGIN_REQUIRED, EMPTY_CART, OUT_OF_STOCK, UNKNOWN_COUPON }
+
+        private final Store store;
+        private final Cart guestCart = new Cart();
+        private User user; // Null for a guest
+        private Cart cart = guestCart;
+        private Order lastOrder; // Written by the last successful checkout
+        private Product shortage; // The product a failed checkout ran short of
+
+        public Shopper(Store store) {
+            this.store = store;
+        }
+
+        public static boolean isValidEmail(String email) {
+            return EMAIL.matcher(email).matches();
+        }
+
+        public User getUser() {
+            return user;
+        }
+
+        public Cart getCart() {
+            return cart;
+        }
+
+        public Order getLastOrder() {
+            return lastOrder;
+        }
+
+        public Product getShortage() {
+            return shortage;
+        }
+
+        // Creates the account, replacing any with the same email, and signs in as it.
+        public Result register(String name, String email, String password) throws IOException {
+            if (!isValidEmail(email)) {
+                return Result.INVALID_EMAIL;
+            }
+            User created = new User(name, email, store.getPasswords().hash(password));
+            store.getUsers().add(created);
+            store.getCarts().account(created);
+            signIn(created);
+            return Result.OK;
+        }
+
+        public Result login(String email, String password) throws IOException {
+            User found = store.getUsers().get(email);
+            return found == null ? Result.USER_NOT_FOUND : login(found, password);
+        }
+
+        public Result login(User account, String password) throws IOException {
+            if (!store.getPasswords().verify(account, password)) {
+                return Result.WRONG_PASSWORD;
+            }
+            signIn(account);
+            return Result.OK;
+        }
+
+        private void signIn(User account) throws IOException {
+            logout();
+            user = account;
+            cart = account.getCart();
+        }
+
+        public void continueAsGuest() throws IOException {
+            logout();
+        }
+
+        // The guest cart is kept, so a shopper who signs out and back in as guest finds it as they left it.
+        public void logout() throws IOException {
+            if (user != null) {
+                store.getUsers().release(user);
+            }
+            user = null;
+            cart = guestCart;
+        }
+
+        // The add calls return the product that was added, or null if there is no such product.
+        public Product addById(int id, int quantity) {
+            return add(store.getInventory().findById(id), quantity);
+        }
+
+        public Product addByBarcode(long barcode, int quantity) {
+            return add(store.getInventory().findByBarcode(barcode), quantity);
+        }
+
+        public Product addByName(String name, int quantity) {
+            return add(store.getInventory().findByName(name), quantity);
+        }
+
+        public Product add(Product product, int quantity) {
+            if (product != null) {
+                synchronized (cart) {
+                    cart.addProduct(product, quantity);
+                    logLine(product);
+                }
+            }
+            return product;
+        }
+
+        // The remove and reduce calls return the product that was changed, or null if it is not in the cart.
+        public Product removeByBarcode(long barcode) {
+            CartItem item = cart.getItem(barcode);
+            return remove(item != null ? item.getProduct() : null);
+        }
+
+        public Product remove(Product product) {
+            if (product != null) {
+                synchronized (cart) {
+                    cart.removeProduct(product);
+                    logLine(product);
+                }
+            }
+            return product;
+        }
+
+        public Product reduceByBarcode(long barcode, int quantity) {
+            CartItem item = cart.getItem(barcode);
+            return reduce(item != null ? item.getProduct() : null, quantity);
+        }
+
+        public Product reduce(Product product, int quantity) {
+            if (product != null) {
+                synchronized (cart) {
+                    cart.reduceProduct(product, quantity);
+                    logLine(product);
+                }
+            }
+            return product;
+        }
+
+        // Logs the line as it now stands, for signed-in shoppers. Called with the cart locked, so changes to a cart
+        // shared by several sessions reach the log in the order they were made.
+        private void logLine(Product product) {
+            if (user != null) {
+                CartItem item = cart.getItem(product.getBarcode());
+                store.getCarts().line(user.getEmail(), product.getBarcode(), item == null ? 0 : item.getQuantity());
+            }
+        }
+
+        // The coupon stays on the cart until checkout.
+        public Result applyCoupon(String code) {
+            if (!store.getPromotions().isCoupon(code)) {
+                return Result.UNKNOWN_COUPON;
+            }
+            cart.setCoupon(code.toUpperCase(Locale.ROOT));
+            return Result.OK;
+        }
+
+        // Takes stock for every line of the cart, then writes the order. If any line is short nothing is taken, the
+        // cart is left as it is and getShortage() says which product ran out. The cart stays locked throughout, so
+        // other sessions on the account cannot change it between being copied into the order and being emptied.
+        public Result checkout() throws IOException {
+            if (cart.isEmpty()) {
+                return Result.EMPTY_CART;
+            }
+            if (user == null) {
+                return Result.LOGIN_REQUIRED;
+            }
+            ProductCatalog inventory = store.getInventory();
+            CartLog carts = store.getCarts();
+            synchronized (cart) {
+                Cart checkedOut = cart.copy();
+                List<CartItem> items = checkedOut.getItems();
+                if (items.isEmpty()) {
+                    return Result.EMPTY_CART;
+                }
+                shortage = inventory.reserve(items);
+                if (shortage != null) {
+                    return Result.OUT_OF_STOCK;
+                }
+                Order order = new Order(user, checkedOut, store.getPromotions());
+                carts.beginCheckout();
+                try {
+                    try {
+                        saveOrder(store.getOrders(), order);
+                    } catch (IOException e) {
+                        inventory.release(items);
+                        throw e;
+                    }
+                    inventory.commit(items);
+                    cart.clearCart();
+                    carts.checkedOut(user.getEmail(), order.getId());
+                } finally {
+                    carts.endCheckout();
+                }
+                lastOrder = order;
+            }
+            return Result.OK;
+        }
+    }
+
+    // Session class
+    // One shopper working through the menus. The console runs a single session over System.in and System.out; server
+    // mode runs one per connection.
+    public static class Session implements Runnable {
+        private static final int PAGE_SIZE = Integer.getInteger("grocery.pageSize", 20);
+
+        private final Store store;
+        private final Scanner scanner;
+        private final PrintStream out;
+        private final Renderer renderer; // For listings and receipts; always flushed before out is used again
+        private final Console console; // Used to hide passwords when running on a terminal, otherwise null
+
+        public Session(Store store, InputStream in, PrintStream out, Console console) {
+            this.store = store;
+            this.scanner = new Scanner(in, StandardCharsets.UTF_8);
+            this.out = out;
+            this.renderer = new Renderer(out);
+            this.console = console;
+        }
+
+        // Flushes any pending prompt before blocking on the next line of input.
+        private String readLine() {
+            out.flush();
+            return scanner.nextLine();
+        }
+
+        private String readPassword(String prompt) {
+            if (console != null) {
+                return new String(console.readPassword(prompt));
+            }
+            out.print(prompt);
+            return readLine();
+        }
+
+        // Checks the cart out through the shopper and says how it went. The cart is shared with any other session on
+        // the account, so it can be emptied between the caller's check and the checkout.
+        private void checkout(Shopper shopper, String successMessage) throws IOException {
+            switch (shopper.checkout()) {
+                case OK -> {
+                    renderer.append(successMessage).newline();
+                    shopper.getLastOrder().render(renderer);
+                    renderer.newline().flush();
+                }
+                case OUT_OF_STOCK -> {
+                    Product shortage = shopper.getShortage();
+                    out.println("Sorry, there is not enough " + shortage.getName() + " in stock for this order (" + store.getInventory().getStock(shortage) + " left).");
+                }
+                case EMPTY_CART -> out.println("Your cart is empty, so there is nothing to check out.");
+                case LOGIN_REQUIRED -> out.println("You must be logged in to checkout. Please login or register.");
+                case INVALID_EMAIL -> out.println("Your account's email is not valid. Please login again.");
+                case USER_NOT_FOUND -> out.println("Your account could not be found. Please login again.");
+                case WRONG_PASSWORD -> out.println("Your password was not accepted. Please login again.");
+                case UNKNOWN_COUPON -> out.println("Your coupon is no longer valid. Please apply another one or remove it.");
+            }
+        }
+
+        // Shows the catalog a page at a time: Enter moves to the next page, a number jumps to that page and anything
+        // else goes back to the menu. Each page is written to the stream in one go.
+        private void listProducts() {
+            ProductCatalog inventory = store.getInventory();
+            int pages = Math.max(1, (inventory.size() + PAGE_SIZE - 1) / PAGE_SIZE);
+            renderer.append("Available Products:").newline();
+            int page = 1;
+            while (true) {
+                int next = inventory.renderProducts(renderer, (page - 1) * PAGE_SIZE, PAGE_SIZE);
+                if (pages == 1) {
+                    renderer.flush();
+                    return;
+                }
+                renderer.append("Page ").append(page).append(" of ").append(pages).append(next < inventory.size()
+                        ? ". Press Enter for the next page, type a page number, or q to go back: "
+                        : ". Press Enter to go back, or type a page number: ");
+                renderer.flush();
+                String answer = readLine().trim();
+                if (answer.isEmpty()) {
+                    if (next >= inventory.size()) {
+                        return;
+                    }
+                    page++;
+                } else if (answer.chars().allMatch(Character::isDigit) && answer.length() < 10) {
+                    page = Math.max(1, Math.min(pages, Integer.parseInt(answer)));
+                } else {
+                    return;
+                }
+            }
+        }
+
+        // Renders the order; the caller flushes the renderer.
+        private void printOrder(PastOrder order) {
+            if (order.getId() > 0) {
+                renderer.append("Order #").append(order.getId()).newline();
+            }
+            long millis = order.getMillis();
+            renderer.append("Order Date: ").append(millis == Long.MIN_VALUE ? "unknown" : new Date(millis).toString()).newline();
+            renderer.append("Items:").newline();
+            for (int i = 0; i < order.getItemCount(); i++) {
+                Product product = store.getInventory().findByBarcode(order.getBarcode(i));
+                if (product != null) {
+                    renderer.append("- ").append(product.getName()).append(" (x").append(order.getQuantity(i)).append(')').newline();
+                }
+            }
+            renderer.newline();
+        }
+
+        @Override
+        public void run() {
+            ProductCatalog inventory = store.getInventory();
+            UserDirectory users = store.getUsers();
+            OrderLog orders = store.getOrders();
+
+            Shopper shopper = new Shopper(store);
+
+            out.println("Welcome to the Grocery Store!");
+            boolean loggedIn = false;
+
+            boolean exit = false;
+            // Main loop
+            while (!exit) {
+                User currentUser = shopper.getUser();
+                Cart currentCart = shopper.getCart();
+                try {
+                    if (!loggedIn) {
+                        // The variable loggedIn might be misleading. It is basically the variable that controls flow between the two screen options: the login/register/contine as guest screen and the main menu screen.
+                        out.println("\n1. Register\n2. Login\n3. Continue as Guest\n4. Exit");
+                        out.print("Choose an option: ");
+                        int choice = Integer.parseInt(readLine());
+
+                        switch(choice){
+
+                        case 1:
+                            out.print("Enter your name: ");
+                            String name = readLine();
+                            String email;
+                            while (true) {
+                                out.print("Enter your email: ");
+                                email = readLine();
+                                if (Shopper.isValidEmail(email)) {
+                                    break;
+                                } else {
+                                    out.println("Invalid email format. Please try again.");
+                                }
+                            }
+                            String password = readPassword("Enter your password: ");
+                            shopper.register(name, email, password);
+                            loggedIn = true;
+                            break;
+                        case 2:
+                            out.print("Enter email: ");
+                            email = readLine(); // Email verification not required because it would just show "User not found" for invalid email
+                            User account = users.get(email);
+                            if (account == null) {
+                                out.println("User not found.");
+                                break;
+                            }else {
+                                String password1 = readPassword("Enter password: ");
+                                if (shopper.login(account, password1) == Shopper.Result.WRONG_PASSWORD) {
+                                    out.println("Incorrect password.");
+                                    break;
+                                }
+                                out.println("Welcome back, " + account.getName() + "!");
+                            }
+                            loggedIn = true;
+                            break;
+                        case 3:
+                            shopper.continueAsGuest();
+                            out.println("Continuing as Guest..."); // This limits a lot of features, but it is a good way to test the program without having to register or login. You can still add items to the cart and checkout, but you won't be able to save your cart or view previous orders.
+                            loggedIn = true;
+                            break;
+                        case 4:
+                            store.save();
+                            out.println("Goodbye!");
+                            exit = true;
+                            break;
+                        default:
+                            out.println("Invalid choice. Please try again.");
+                            continue;
                         }
-                        Console console = System.console();
-                        String password = new String(console.readPassword("Enter your password: "));
-                        String encryptedPassword = railFenceEncrypt(password);
-                        currentUser = new User(name, email, encryptedPassword);
-
-                        users.put(email, currentUser);
-                        currentCart = currentUser.getCart();
-                        loggedIn = true;
-                        break;
-                    case 2:
-                        System.out.print("Enter email: ");
-                        email = scanner.nextLine(); // Email verification not required because it would just show "User not found" for invalid email
-                        currentUser = users.get(email);
-                        if (currentUser == null) {
-                            System.out.println("User not found.");
+                    }else {
+                        out.println("\n1. View Products\n2. View Cart\n3. Add to cart\n4. Checkout\n5. Buy Item\n6. Check previous orders\n7. Remove item from cart\n8. Reduce cart item quantitiy\n9. Logout\n10. Exit\n11. Apply coupon\n12. Orders between dates\n13. Store metrics");
+                        out.print("Choose an option: ");
+                        int choice = Integer.parseInt(readLine());
+                        switch(choice){
+                        case 1:
+                            listProducts();
+                            break;
+                        case 2:
+                            currentCart.render(renderer, store.getPromotions());
+                            renderer.newline().flush();
+                            break;
+                        case 3:
+                        // Provides a lot of different ways to search through the inventory, usually meant for different target audiences. 
+                        // Id is meant for regular users. Name is meant for first time or casual users. Barcodes are meant for employees with a barcode scanner.
+                            out.println("1. Add product by ID\n2. Add product by barcode\n3. Add product by name\n4. Filter products by name");
+                            out.print("Choose an option: ");
+                            int choice3 = Integer.parseInt(readLine());
+                            switch (choice3) {
+                            case 1:
+                                out.print("Enter product ID to add to cart: ");
+                                int id = Integer.parseInt(readLine());
+                                out.print("Enter quantity: ");
+                                int quantity = Integer.parseInt(readLine());
+                                Product productById = shopper.addById(id, quantity);
+                                if (productById != null) {
+                                    out.println("Added " + quantity + " of " + productById.getName() + " to cart.");
+                                } else {
+                                    out.println("Product not found.");
+                                }
+                                break;
+                            case 2:
+                                out.print("Enter product barcode to add to cart: ");
+                                long barcode = Long.parseLong(readLine());
+                                out.print("Enter quantity: ");
+                                quantity = Integer.parseInt(readLine());
+                                Product productByBarcode = shopper.addByBarcode(barcode, quantity);
+                                if (productByBarcode != null) {
+                                    out.println("Added " + quantity + " of " + productByBarcode.getName() + " to cart.");
+                                } else {
+                                    out.println("Product not found.");
+                                }
+                                break;
+                            // Two types of name search implemented. One is a simple name search, the other is a filter search. The filter search returns a list of matching products and allows the user to select one to add to the cart.
+                            case 3:
+                                out.print("Enter product name to add to cart: ");
+                                String name = readLine();
+                                out.print("Enter quantity: ");
+                                quantity = Integer.parseInt(readLine());
+                                Product productByName = shopper.addByName(name, quantity);
+                                if (productByName != null) {
+                                    out.println("Added " + quantity + " of " + productByName.getName() + " to cart.");
+                                } else {
+                                    out.println("Product not found.");
+                                }
+                                break;
+                            case 4:
+                                out.print("Enter product name to filter: ");
+                                String filterName = readLine();
+                                List<Product> filteredProducts = inventory.search(filterName, ProductCatalog.SEARCH_LIMIT);
+                                if (filteredProducts.isEmpty()) {
+                                    out.println("No products found.");
+                                } else {
+                                    out.println("Filtered Products:");
+                                    filteredProducts.forEach(out::println);
+                                    out.print("Enter product ID to add to cart: ");
+                                    int filterId = Integer.parseInt(readLine());
+                                    out.print("Enter quantity: ");
+                                    quantity = Integer.parseInt(readLine());
+                                    Product filteredProduct = null;
+                                    for (Product product : filteredProducts) {
+                                        if (product.id == filterId) {
+                                            filteredProduct = product;
+                                            break;
+                                        }
+                                    }
+                                    if (filteredProduct != null) {
+                                        shopper.add(filteredProduct, quantity);
+                                        out.println("Added " + quantity + " of " + filteredProduct.getName() + " to cart.");
+                                    } else {
+                                        out.println("Product not found.");
+                                    }
+                                }
+                                break;
+                            default:
+                                out.println("Invalid choice. Please try again.");
+                                continue;
+                            }
+                            break;
+                        case 4:
+                            if (currentCart.isEmpty()) {
+                                out.println("Your cart is empty. Please add items to your cart before checking out.");
+                                break;
+                            }
+                            if (currentUser == null) {
+                                out.println("You must be logged in to checkout. Please login or register.");
+                                break;
+                            }
+                            checkout(shopper, "Checkout successful! Your order details are as follows:");
+                            break;
+                        case 5:
+                        // Reused logic from the add to cart function. It automatically creates a cart with one item and checks it out without extra steps. Meant for people who want to make a very specific purchase very quickly.
+                            out.println("1. Buy product by ID\n2. Buy product by barcode\n3. Buy product by name\n4. Filter products by name");
+                            out.print("Choose an option: ");
+                            int choice4 = Integer.parseInt(readLine());
+                            switch (choice4) {
+                            case 1:
+                                out.print("Enter product ID to buy: ");
+                                int id = Integer.parseInt(readLine());
+                                out.print("Enter quantity: ");
+                                int quantity = Integer.parseInt(readLine());
+                                Product productById = shopper.addById(id, quantity);
+                                if (productById == null) {
+                                    out.println("Product not found.");
+                                }
+                                break;
+                            case 2:
+                                out.print("Enter product barcode to buy: ");
+                                long barcode = Long.parseLong(readLine());
+                                out.print("Enter quantity: ");
+                                quantity = Integer.parseInt(readLine());
+                                Product productByBarcode = shopper.addByBarcode(barcode, quantity);
+                                if (productByBarcode == null) {
+                                    out.println("Product not found.");
+                                }
+                                break;
+                            case 3:
+                                out.print("Enter product name to buy: ");
+                                String name = readLine();
+                                out.print("Enter quantity: ");
+                                quantity = Integer.parseInt(readLine());
+                                Product productByName = shopper.addByName(name, quantity);
+                                if (productByName == null) {
+                                    out.println("Product not found.");
+                                }
+                                break;
+                            case 4:
+                                out.print("Enter product name to filter: ");
+                                String filterName = readLine();
+                                List<Product> filteredProducts = inventory.search(filterName, ProductCatalog.SEARCH_LIMIT);
+                                if (filteredProducts.isEmpty()) {
+                                    out.println("No products found.");
+                                } else {
+                                    out.println("Filtered Products:");
+                                    filteredProducts.forEach(out::println);
+                                    out.print("Enter product ID to buy: ");
+                                    int filterId = Integer.parseInt(readLine());
+                                    out.print("Enter quantity: ");
+                                    quantity = Integer.parseInt(readLine());
+                                    Product filteredProduct = null;
+                                    for (Product product : filteredProducts) {
+                                        if (product.id == filterId) {
+                                            filteredProduct = product;
+                                            break;
+                                        }
+                                    }
+                                    if (filteredProduct != null) {
+                                        shopper.add(filteredProduct, quantity);
+                                    } else {
+                                        out.println("Product not found.");
+                                    }
+                                }
+                                break;
+                            default:
+                                out.println("Invalid choice. Please try again.");
+                                continue;
+                            }
+                            if (currentCart.isEmpty()) {
+                                out.println("You are actually never supposed to see this message. Please report code 42069 to the developer.");
+                                break;
+                            }
+                            if (currentUser == null) {
+                                out.println("You must be logged in to buy. Please login or register.");
+                                break;
+                            }
+                            checkout(shopper, "Purchase successful! Your order details are as follows:");
+                            break;
+                        case 6: // Reads only this user's lines from orders.csv through the order index, or none if the history is cached
+                            if (currentUser != null) {
+                                try {
+                                    out.println("Your previous orders are as follows:");
+                                    List<PastOrder> history = orders.history(currentUser.getEmail());
+                                    if (history.isEmpty()) {
+                                        out.println("No previous orders found.");
+                                    }
+                                    for (PastOrder order : history) {
+                                        printOrder(order);
+                                    }
+                                    renderer.flush();
+                                } catch (IOException e) {
+                                    out.println("Error reading orders: " + e.getMessage());
+                                }
+                            } else {
+                                out.println("You must be logged in to view your orders.");
+                            }
+                            break;
+                        case 7: // Code mirrors add to cart
+                            out.println("1. Remove product by ID\n2. Remove product by barcode\n3. Remove product by name\n4. Filter products by name to remove");
+                            out.print("Choose an option: ");
+                            int choice7 = Integer.parseInt(readLine());
+                            switch (choice7) {
+                                case 1:
+                                    out.print("Enter product ID to remove from cart: ");
+                                    int idToRemove = Integer.parseInt(readLine());
+                                    Product productByIdToRemove = null;
+                                    for (CartItem item : currentCart.getItems()) {
+                                        if (item.getProduct().getId() == idToRemove) {
+                                            productByIdToRemove = item.getProduct();
+                                            break;
+                                        }
+                                    }
+                                    if (productByIdToRemove != null) {
+                                        shopper.remove(productByIdToRemove);
+                                        out.println("Removed " + productByIdToRemove.getName() + " from cart.");
+                                    } else {
+                                        out.println("Product not found in cart.");
+                                    }
+                                    break;
+                                case 2:
+                                    out.print("Enter product barcode to remove from cart: ");
+                                    long barcodeToRemove = Long.parseLong(readLine());
+                                    Product productByBarcodeToRemove = shopper.removeByBarcode(barcodeToRemove);
+                                    if (productByBarcodeToRemove != null) {
+                                        out.println("Removed " + productByBarcodeToRemove.getName() + " from cart.");
+                                    } else {
+                                        out.println("Product not found in cart.");
+                                    }
+                                    break;
+                                case 3:
+                                    out.print("Enter product name to remove from cart: ");
+                                    String nameToRemove = readLine();
+                                    Product productByNameToRemove = null;
+                                    for (CartItem item : currentCart.getItems()) {
+                                        if (item.getProduct().getName().equalsIgnoreCase(nameToRemove)) {
+                                            productByNameToRemove = item.getProduct();
+                                            break;
+                                        }
+                                    }
+                                    if (productByNameToRemove != null) {
+                                        shopper.remove(productByNameToRemove);
+                                        out.println("Removed " + productByNameToRemove.getName() + " from cart.");
+                                    } else {
+                                        out.println("Product not found in cart.");
+                                    }
+                                    break;
+                                case 4:
+                                    out.print("Enter product name to filter for removal: ");
+                                    String filterNameToRemove = readLine();
+                                    Cart cartToFilter = currentCart;
+                                    List<Product> filteredProductsToRemove = inventory.search(filterNameToRemove, ProductCatalog.SEARCH_LIMIT,
+                                            product -> cartToFilter.contains(product.getBarcode()));
+                                    if (filteredProductsToRemove.isEmpty()) {
+                                        out.println("No products found in cart.");
+                                    } else {
+                                        out.println("Filtered Products:");
+                                        filteredProductsToRemove.forEach(out::println);
+                                        out.print("Enter product ID to remove from cart: ");
+                                        int filterIdToRemove = Integer.parseInt(readLine());
+                                        Product filteredProductToRemove = null;
+                                        for (Product product : filteredProductsToRemove) {
+                                            if (product.getId() == filterIdToRemove) {
+                                                filteredProductToRemove = product;
+                                                break;
+                                            }
+                                        }
+                                        if (filteredProductToRemove != null) {
+                                            shopper.remove(filteredProductToRemove);
+                                            out.println("Removed " + filteredProductToRemove.getName() + " from cart.");
+                                        } else {
+                                            out.println("Product not found in cart.");
+                                        }
+                                    }
+                                    break;
+                                default:
+                                    out.println("Invalid choice. Please try again.");
+                                    break;
+                            }
+                            break;
+                        case 8: // Code mirrors add to cart
+                            out.println("1. Reduce product by ID\n2. Reduce product by barcode\n3. Reduce product by name\n4. Filter products by name to reduce");
+                            out.print("Choose an option: ");
+                            int choice8 = Integer.parseInt(readLine());
+                            switch (choice8) {
+                                case 1:
+                                    out.print("Enter product ID to reduce from cart: ");
+                                    int idToReduce = Integer.parseInt(readLine());
+                                    out.print("Enter quantity to reduce: ");
+                                    int quantityToReduce = Integer.parseInt(readLine());
+                                    Product productByIdToReduce = null;
+                                    for (CartItem item : currentCart.getItems()) {
+                                        if (item.getProduct().getId() == idToReduce) {
+                                            productByIdToReduce = item.getProduct();
+                                            break;
+                                        }
+                                    }
+                                    if (productByIdToReduce != null) {
+                                        shopper.reduce(productByIdToReduce, quantityToReduce);
+                                        out.println("Reduced " + quantityToReduce + " of " + productByIdToReduce.getName() + " from cart.");
+                                    } else {
+                                        out.println("Product not found in cart.");
+                                    }
+                                    break;
+                                case 2:
+                                    out.print("Enter product barcode to reduce from cart: ");
+                                    long barcodeToReduce = Long.parseLong(readLine());
+                                    out.print("Enter quantity to reduce: ");
+                                    quantityToReduce = Integer.parseInt(readLine());
+                                    Product productByBarcodeToReduce = shopper.reduceByBarcode(barcodeToReduce, quantityToReduce);
+                                    if (productByBarcodeToReduce != null) {
+                                        out.println("Reduced " + quantityToReduce + " of " + productByBarcodeToReduce.getName() + " from cart.");
+                                    } else {
+                                        out.println("Product not found in cart.");
+                                    }
+                                    break;
+                                case 3:
+                                    out.print("Enter product name to reduce from cart: ");
+                                    String nameToReduce = readLine();
+                                    out.print("Enter quantity to reduce: ");
+                                    quantityToReduce = Integer.parseInt(readLine());
+                                    Product productByNameToReduce = null;
+                                    for (CartItem item : currentCart.getItems()) {
+                                        if (item.getProduct().getName().equalsIgnoreCase(nameToReduce)) {
+                                            productByNameToReduce = item.getProduct();
+                                            break;
+                                        }
+                                    }
+                                    if (productByNameToReduce != null) {
+                                        shopper.reduce(productByNameToReduce, quantityToReduce);
+                                        out.println("Reduced " + quantityToReduce + " of " + productByNameToReduce.getName() + " from cart.");
+                                    } else {
+                                        out.println("Product not found in cart.");
+                                    }
+                                    break;
+                                case 4:
+                                    out.print("Enter product name to filter for reduction: ");
+                                    String filterNameToReduce = readLine();
+                                    Cart cartToFilter = currentCart;
+                                    List<Product> filteredProductsToReduce = inventory.search(filterNameToReduce, ProductCatalog.SEARCH_LIMIT,
+                                            product -> cartToFilter.contains(product.getBarcode()));
+                                    if (filteredProductsToReduce.isEmpty()) {
+                                        out.println("No products found in cart.");
+                                    } else {
+                                        out.println("Filtered Products:");
+                                        filteredProductsToReduce.forEach(out::println);
+                                        out.print("Enter product ID to reduce from cart: ");
+                                        int filterIdToReduce = Integer.parseInt(readLine());
+                                        out.print("Enter quantity to reduce: ");
+                                        quantityToReduce = Integer.parseInt(readLine());
+                                        Product filteredProductToReduce = null;
+                                        for (Product product : filteredProductsToReduce) {
+                                            if (product.getId() == filterIdToReduce) {
+                                                filteredProductToReduce = product;
+                                                break;
+                                            }
+                                        }
+                                        if (filteredProductToReduce != null) {
+                                            shopper.reduce(filteredProductToReduce, quantityToReduce);
+                                            out.println("Reduced " + quantityToReduce + " of " + filteredProductToReduce.getName() + " from cart.");
+                                        } else {
+                                            out.println("Product not found in cart.");
+                                        }
+                                    }
+                                    break;
+                                default:
+                                    out.println("Invalid choice. Please try again.");
+                                    break;
+                            }
+                            break;
+                        case 9: // Changes control to show the register/login/continue as guest screen
+                            loggedIn = false;
+                            shopper.logout();
+                            break;
+                        case 10: // CLoses the program and saves the data to the files
+                            store.save();
+                            exit = true;
+                            break;
+                        case 11: // The coupon stays on the cart until checkout
+                            out.print("Enter coupon code: ");
+                            String code = readLine().trim();
+                            if (shopper.applyCoupon(code) == Shopper.Result.OK) {
+                                out.println("Coupon " + currentCart.getCoupon() + " applied.");
+                            } else {
+                                out.println("Unknown coupon code.");
+                            }
+                            break;
+                        case 12: // Only the orders in the range are read, found by binary search over the user's orders
+                            if (currentUser == null) {
+                                out.println("You must be logged in to view your orders.");
+                                break;
+                            }
+                            try {
+                                out.print("From date (YYYY-MM-DD): ");
+                                LocalDate fromDate = LocalDate.parse(readLine().trim());
+                                out.print("To date (YYYY-MM-DD, blank for today): ");
+                                String toText = readLine().trim();
+                                LocalDate toDate = toText.isEmpty() ? LocalDate.now(ZoneOffset.UTC) : LocalDate.parse(toText);
+                                out.println("Your orders from " + fromDate + " to " + toDate + " (UTC):");
+                                int[] found = new int[1];
+                                orders.forEachOrder(currentUser.getEmail(), Timestamps.startOfDay(fromDate.toEpochDay()),
+                                        Timestamps.startOfDay(toDate.toEpochDay() + 1), cursor -> {
+                                            found[0]++;
+                                            printOrder(PastOrder.read(cursor));
+                                        });
+                                renderer.flush();
+                                if (found[0] == 0) {
+                                    out.println("No orders found.");
+                                }
+                            } catch (DateTimeException e) {
+                                out.println("Invalid date. Please use YYYY-MM-DD.");
+                            }
                             break;
-                        }else {
-                            Console console1 = System.console();
-                            String password1 = new String(console1.readPassword("Enter password: "));
-                            String encryptedPassword1 = railFenceEncrypt(password1);
-                            if (!encryptedPassword1.equals(currentUser.getPassword())) {
-                                System.out.println("Incorrect password.");
-                                currentUser = null;
+                        case 13: // The same text the metrics file gets, in the Prometheus format
+                            if (!Metrics.ENABLED) {
+                                out.println("Metrics are turned off (grocery.metrics=false).");
                                 break;
                             }
-                            currentCart = currentUser.getCart();
-                            System.out.println("Welcome back, " + currentUser.getName() + "!");
+                            out.print(Metrics.render());
+                            break;
+                        }
+            }
+
+                } catch (IOException e) {
+                    out.println("Error: " + e.getMessage());
+                    continue;
+                } catch (NumberFormatException e) {
+                    out.println("Invalid input. Please try again.");
+                    continue;
+                } catch (NoSuchElementException e) {
+                    exit = true; // The input was closed, e.g. a client disconnected
+                }
+            }
+            try {
+                shopper.logout();
+            } catch (IOException e) {
+                out.println("Error: " + e.getMessage());
+            }
+            out.flush();
+        }
+    }
+
+    // PasswordService class
+    // Salted PBKDF2-HMAC-SHA256 password hashes stored in users.csv as pbkdf2-sha256$<iterations>$<salt>$<hash> (Base64),
+    // so the cost can be raised later without breaking existing entries. Anything else in the password column is a
+    // rail-fence entry from older versions; it is checked the old way and replaced with a hash on the next successful
+    // login. Hashing runs on a small bounded pool so a burst of logins cannot take every core away from other
+    // sessions; when the pool is full, logins fail fast with a "busy" error. After a successful check a cheap salted
+    // digest of the password is remembered (bounded LRU), so repeat logins skip the KDF.
+    public static class PasswordService implements Closeable {
+        public static final int DEFAULT_ITERATIONS = 600_000;
+        private static final String SCHEME = "pbkdf2-sha256";
+        private static final int SALT_BYTES = 16;
+        private static final int HASH_BITS = 256;
+
+        private final int iterations;
+        private final ThreadPoolExecutor workers;
+        private final SecureRandom random = new SecureRandom();
+        private final byte[] cachePepper = new byte[32]; // Per process, so cached digests are useless outside it
+        private final Map<String, byte[]> verified;
+
+        public PasswordService(int iterations, int workerThreads, int queueCapacity, int cacheSize) {
+            this.iterations = iterations;
+            this.workers = new ThreadPoolExecutor(workerThreads, workerThreads, 0, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<>(queueCapacity), runnable -> {
+                        Thread thread = new Thread(runnable, "password-hasher");
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+            random.nextBytes(cachePepper);
+            this.verified = Collections.synchronizedMap(new LinkedHashMap<String, byte[]>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, byte[]> eldest) {
+                    return size() > cacheSize;
+                }
+            });
+        }
+
+        public String hash(String password) throws IOException {
+            return offload(() -> {
+                byte[] salt = new byte[SALT_BYTES];
+                random.nextBytes(salt);
+                return encode(iterations, salt, pbkdf2(password, salt, iterations));
+            });
+        }
+
+        // Checks the password against the user's stored entry, upgrading a legacy entry when it matches.
+        public boolean verify(User user, String password) throws IOException {
+            String stored = user.getPassword();
+            byte[] remembered = verified.get(stored);
+            if (remembered != null && MessageDigest.isEqual(remembered, quickDigest(password))) {
+                return true;
+            }
+            if (!stored.startsWith(SCHEME + "$")) {
+                if (!MessageDigest.isEqual(railFenceEncrypt(password).getBytes(StandardCharsets.UTF_8), stored.getBytes(StandardCharsets.UTF_8))) {
+                    return false;
+                }
+                String upgraded = hash(password);
+                user.setPassword(upgraded);
+                verified.put(upgraded, quickDigest(password));
+                return true;
+            }
+            String[] parts = stored.split("\\$");
+            if (parts.length != 4) {
+                return false;
+            }
+            int storedIterations = Integer.parseInt(parts[1]);
+            byte[] salt = Base64.getDecoder().decode(parts[2]);
+            byte[] expected = Base64.getDecoder().decode(parts[3]);
+            boolean matches = offload(() -> MessageDigest.isEqual(expected, pbkdf2(password, salt, storedIterations)));
+            if (matches) {
+                verified.put(stored, quickDigest(password));
+            }
+            return matches;
+        }
+
+        private <T> T offload(Callable<T> work) throws IOException {
+            Future<T> result;
+            try {
+                result = workers.submit(work);
+            } catch (RejectedExecutionException e) {
+                throw new IOException("Too many logins in progress, please try again.");
+            }
+            try {
+                return result.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while checking the password");
+            } catch (ExecutionException e) {
+                throw new IOException("Password hashing failed: " + e.getCause().getMessage(), e.getCause());
+            }
+        }
+
+        private static byte[] pbkdf2(String password, byte[] salt, int iterations) throws GeneralSecurityException {
+            PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, HASH_BITS);
+            try {
+                return SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256").generateSecret(spec).getEncoded();
+            } finally {
+                spec.clearPassword();
+            }
+        }
+
+        private byte[] quickDigest(String password) {
+            try {
+                MessageDigest digest = MessageDigest.getInstance("SHA-256");
+                digest.update(cachePepper);
+                return digest.digest(password.getBytes(StandardCharsets.UTF_8));
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        private static String encode(int iterations, byte[] salt, byte[] hash) {
+            Base64.Encoder base64 = Base64.getEncoder();
+            return SCHEME + "$" + iterations + "$" + base64.encodeToString(salt) + "$" + base64.encodeToString(hash);
+        }
+
+        @Override
+        public void close() {
+            workers.shutdown();
+        }
+    }
+
+    // Server class
+    // Serves the same menus over TCP on localhost, one virtual thread per connected shopper. Changes are saved when a
+    // shopper picks Exit and when the server shuts down.
+    public static class Server {
+        public static final int DEFAULT_PORT = 5555;
+
+        public static void run(Store store, int port) throws IOException {
+            Thread console = new Thread(() -> administer(store, System.in), "server-console");
+            console.setDaemon(true);
+            console.start();
+            listen(store, port, "Grocery server", Server::serve);
+        }
+
+        // Takes commands from whoever started the server, one per line: "import <file>" to apply a product feed while
+        // shoppers carry on, and "save".
+        private static void administer(Store store, InputStream in) {
+            Scanner commands = new Scanner(in, StandardCharsets.UTF_8);
+            while (commands.hasNextLine()) {
+                String command = commands.nextLine().trim();
+                try {
+                    if (command.startsWith("import ")) {
+                        System.out.println(store.importProducts(command.substring("import ".length()).trim()));
+                    } else if (command.equals("save")) {
+                        store.save();
+                        System.out.println("Saved.");
+                    } else if (!command.isEmpty()) {
+                        System.out.println("Commands: import <file>, save");
+                    }
+                } catch (IOException e) {
+                    System.out.println("Error: " + e.getMessage());
+                }
+            }
+        }
+
+        // Saves and closes the store when the process is stopped, and hands each connection to the handler on its own
+        // virtual thread.
+        static void listen(Store store, int port, String what, BiConsumer<Store, Socket> handler) throws IOException {
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    store.save();
+                    store.close();
+                } catch (IOException e) {
+                    System.out.println("Error saving on shutdown: " + e.getMessage());
+                }
+            }));
+            try (ServerSocket server = new ServerSocket(port, 1024, InetAddress.getLoopbackAddress());
+                 ExecutorService sessions = Executors.newVirtualThreadPerTaskExecutor()) {
+                System.out.println(what + " listening on " + server.getLocalSocketAddress());
+                while (true) {
+                    Socket socket = server.accept();
+                    sessions.execute(() -> handler.accept(store, socket));
+                }
+            }
+        }
+
+        private static void serve(Store store, Socket socket) {
+            try (socket) {
+                socket.setTcpNoDelay(true);
+                PrintStream out = new PrintStream(new BufferedOutputStream(socket.getOutputStream()), false, StandardCharsets.UTF_8);
+                new Session(store, socket.getInputStream(), out, null).run();
+            } catch (IOException e) {
+                // The shopper disconnected, nothing to clean up
+            }
+        }
+    }
+
+    // ShardRing class
+    // Consistent hashing of emails onto shards. Every shard is placed at POINTS positions on a 64-bit ring, the hashes of
+    // "<shard>#<i>", and an email belongs to the shard at the first position at or after the email's hash, wrapping
+    // around. Adding a shard only takes over the emails just before its own positions, about 1/N of them, and removing
+    // one hands its emails on to the positions after it; with hash mod N nearly every email would move. Shards are
+    // named by host:port, so a shard keeps its place on the ring as long as its address stays the same.
+    public static class ShardRing {
+        private static final int POINTS = 128; // Per shard; more points even out how many emails each shard gets
+
+        private final String[] shards;
+        private final long[] positions; // Sorted
+        private final int[] owners;     // Index in shards of the shard at each position
+
+        public ShardRing(List<String> shards) {
+            if (shards.isEmpty()) {
+                throw new IllegalArgumentException("No shards given");
+            }
+            this.shards = shards.toArray(new String[0]);
+            TreeMap<Long, Integer> ring = new TreeMap<>();
+            for (int shard = 0; shard < this.shards.length; shard++) {
+                for (int point = 0; point < POINTS; point++) {
+                    byte[] key = (this.shards[shard] + "#" + point).getBytes(StandardCharsets.UTF_8);
+                    ring.put(CsvCursor.hash(key, 0, key.length), shard);
+                }
+            }
+            positions = new long[ring.size()];
+            owners = new int[ring.size()];
+            int i = 0;
+            for (Map.Entry<Long, Integer> entry : ring.entrySet()) {
+                positions[i] = entry.getKey();
+                owners[i++] = entry.getValue();
+            }
+        }
+
+        // Parses a comma-separated list of host:port addresses.
+        public static ShardRing parse(String list) {
+            List<String> shards = new ArrayList<>();
+            for (String shard : list.split(",")) {
+                if (!shard.isBlank()) {
+                    shards.add(shard.trim());
+                }
+            }
+            return new ShardRing(shards);
+        }
+
+        // Index of the shard that owns the email.
+        public int shardOf(String email) {
+            int i = Arrays.binarySearch(positions, UserRepository.hash(email));
+            if (i < 0) {
+                i = -i - 1;
+            }
+            return owners[i == positions.length ? 0 : i];
+        }
+
+        public String get(int shard) {
+            return shards[shard];
+        }
+
+        public int size() {
+            return shards.length;
+        }
+    }
+
+    // ShardClient class
+    // Talks to one shard process (see ShardServer). Connections are pooled: a request borrows one, so concurrent
+    // sessions never wait on each other's round trips, and a connection that fails mid-request is dropped.
+    public static class ShardClient implements Closeable {
+        private final String name; // host:port
+        private final String host;
+        private final int port;
+        private final ConcurrentLinkedQueue<Connection> idle = new ConcurrentLinkedQueue<>();
+
+        private static class Connection implements Closeable {
+            private final Socket socket;
+            private final CsvCursor in;
+            private final OutputStream out;
+
+            Connection(String host, int port) throws IOException {
+                socket = new Socket(host, port);
+                socket.setTcpNoDelay(true);
+                in = new CsvCursor(socket.getInputStream(), 8192);
+                out = new BufferedOutputStream(socket.getOutputStream());
+            }
+
+            @Override
+            public void close() throws IOException {
+                socket.close();
+            }
+        }
+
+        // Reads a reply, positioned after its ok or none status field.
+        private interface Reply<T> {
+            T read(boolean ok, CsvCursor reply) throws IOException;
+        }
+
+        public ShardClient(String name) {
+            int colon = name.lastIndexOf(':');
+            if (colon < 0) {
+                throw new IllegalArgumentException("Shard address must be host:port: " + name);
+            }
+            this.name = name;
+            this.host = name.substring(0, colon);
+            this.port = Integer.parseInt(name.substring(colon + 1));
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        // The account with this email, with its cart read against the given catalog, or null if there is none.
+        public User getUser(String email, ProductCatalog inventory) throws IOException {
+            return call("get," + email, (ok, reply) -> ok ? readUser(reply, inventory) : null);
+        }
+
+        // As getUser, as the users.csv record the shard keeps.
+        public String getRecord(String email) throws IOException {
+            return call("get," + email, (ok, reply) -> ok ? reply.readRest() : null);
+        }
+
+        public void putRecord(String record) throws IOException {
+            call("put," + record, (ok, reply) -> null);
+        }
+
+        // Writes the order on the shard, which gives it its id and time.
+        public void order(Order order) throws IOException {
+            StringBuilder request = new StringBuilder("order,");
+            request.append(order.getUser().getName()).append(',').append(order.getUser().getEmail());
+            for (CartItem item : order.getCart().getItems()) {
+                request.append(',').append(item.getProduct().getBarcode()).append(':').append(item.getQuantity());
+            }
+            call(request.toString(), (ok, reply) -> {
+                order.setId(reply.readLong());
+                order.setOrderDate(new Date(reply.readLong()));
+                return null;
+            });
+        }
+
+        public int countOrders(String email) throws IOException {
+            return call("count," + email, (ok, reply) -> reply.readInt());
+        }
+
+        public void forEachOrder(String email, long fromMillis, long toMillis, OrderVisitor visitor) throws IOException {
+            call("history," + email + "," + fromMillis + "," + toMillis, (ok, reply) -> {
+                for (int lines = reply.readInt(); lines > 0; lines--) {
+                    visitor.visit(nextLine(reply));
+                }
+                return null;
+            });
+        }
+
+        public List<String> orderLines(String email) throws IOException {
+            List<String> lines = new ArrayList<>();
+            forEachOrder(email, Long.MIN_VALUE, Long.MAX_VALUE, order -> lines.add(new String(order.recordBytes(), StandardCharsets.UTF_8)));
+            return lines;
+        }
+
+        // Every email with an account on the shard, after saving it.
+        public List<String> emails() throws IOException {
+            return call("emails", (ok, reply) -> {
+                List<String> emails = new ArrayList<>();
+                for (int lines = reply.readInt(); lines > 0; lines--) {
+                    emails.add(nextLine(reply).readString());
+                }
+                return emails;
+            });
+        }
+
+        // Hands the shard an order line to merge, keeping its time; it gets an id of the shard's at the merge.
+        public void importOrder(String line) throws IOException {
+            call("import," + line, (ok, reply) -> null);
+        }
+
+        // Merges the imported lines into the shard's orders.csv by time and returns how many were new there.
+        public int mergeOrders() throws IOException {
+            return call("merge", (ok, reply) -> reply.readInt());
+        }
+
+        public void save() throws IOException {
+            call("save", (ok, reply) -> null);
+        }
+
+        private <T> T call(String request, Reply<T> reader) throws IOException {
+            Connection connection = idle.poll();
+            if (connection == null) {
+                connection = new Connection(host, port);
+            }
+            try {
+                connection.out.write(request.getBytes(StandardCharsets.UTF_8));
+                connection.out.write('\n');
+                connection.out.flush();
+                CsvCursor reply = nextLine(connection.in);
+                String status = reply.readString();
+                if (status.equals("error")) {
+                    throw new IOException("Shard " + name + ": " + reply.readRest());
+                }
+                T result = reader.read(status.equals("ok"), reply);
+                idle.add(connection);
+                return result;
+            } catch (IOException | RuntimeException e) {
+                connection.close(); // It may be part way through a reply
+                throw e;
+            }
+        }
+
+        private CsvCursor nextLine(CsvCursor in) throws IOException {
+            if (!in.nextRecord()) {
+                throw new EOFException("Shard " + name + " closed the connection");
+            }
+            return in;
+        }
+
+        @Override
+        public void close() throws IOException {
+            for (Connection connection = idle.poll(); connection != null; connection = idle.poll()) {
+                connection.close();
+            }
+        }
+    }
+
+    // ShardServer class
+    // Keeps the accounts and orders of the emails the ring gives this shard, in its own working directory, for the store
+    // fronts that route to it. Each request is one line and each reply starts with ok, none or error:
+    //   get,<email>                    ok,<user record> or none
+    //   put,<user record>              ok
+    //   order,<name>,<email>,<items>   ok,<order id>,<epoch millis>
+    //   count,<email>                  ok,<orders>
+    //   history,<email>,<from>,<to>    ok,<n> and then n order lines
+    //   emails                         ok,<n> and then n emails
+    //   import,<order line>            ok, and the line waits for the next merge
+    //   merge                          ok,<lines merged>
+    //   save                           ok
+    // Records and lines are in the users.csv and orders.csv formats. Carts are read against the shard's own
+    // products.csv, so every shard directory needs a copy of the catalog. Imported lines are held in memory until a
+    // merge puts them into orders.csv by time (see OrderStore.merge) and saves, so a move that stops before its merge
+    // leaves nothing behind and is simply run again.
+    // Usage: --shard [port]
+    public static class ShardServer {
+        public static final int DEFAULT_PORT = 5600;
+
+        private final Store store;
+        private final UserRepository users;
+        private final OrderStore orders;
+        private final List<byte[]> imported = new ArrayList<>(); // Guarded by itself
+
+        public ShardServer(Store store) {
+            if (!(store.getUsers() instanceof UserRepository) || !(store.getOrders() instanceof OrderStore)) {
+                throw new IllegalStateException("A shard keeps its own accounts and orders, so grocery.shards must not be set on it");
+            }
+            this.store = store;
+            this.users = (UserRepository) store.getUsers();
+            this.orders = (OrderStore) store.getOrders();
+        }
+
+        public void run(int port) throws IOException {
+            Server.listen(store, port, "Grocery shard", (ignored, socket) -> serve(socket));
+        }
+
+        private void serve(Socket socket) {
+            try (socket) {
+                socket.setTcpNoDelay(true);
+                CsvCursor in = new CsvCursor(socket.getInputStream(), 8192);
+                Renderer out = new Renderer(new PrintStream(new BufferedOutputStream(socket.getOutputStream()), false, StandardCharsets.UTF_8));
+                while (in.nextRecord()) {
+                    String reply;
+                    try {
+                        reply = handle(in);
+                    } catch (IOException | RuntimeException e) {
+                        reply = "error," + String.valueOf(e.getMessage()).replace('\n', ' ');
+                    }
+                    out.append(reply).newline().flush();
+                }
+            } catch (IOException e) {
+                // The store front disconnected
+            }
+        }
+
+        // Carries out one request and returns the whole reply, so a request that fails part way sends only the error.
+        private String handle(CsvCursor request) throws IOException {
+            String command = request.readString();
+            switch (command) {
+                case "get":
+                    User user = users.get(request.readString());
+                    return user == null ? "none" : "ok," + userRecord(user);
+                case "put":
+                    User account = readUser(request, store.getInventory());
+                    if (account == null) {
+                        throw new IOException("Malformed user record");
+                    }
+                    users.add(account);
+                    return "ok";
+                case "order":
+                    String name = request.readString();
+                    String email = request.readString();
+                    String items = request.readRest();
+                    Order order = new Order(new User(name, email, ""), new Cart());
+                    orders.append(order, placed -> {
+                        StringBuilder line = orderHeader(placed);
+                        if (!items.isEmpty()) {
+                            line.append(',').append(items);
                         }
-                        loggedIn = true;
-                        break;
-                    case 3:
-                        currentUser = null;
-                        currentCart = guestCart;
-                        System.out.println("Continuing as Guest..."); // This limits a lot of features, but it is a good way to test the program without having to register or login. You can still add items to the cart and checkout, but you won't be able to save your cart or view previous orders.
-                        loggedIn = true;
-                        break;
-                    case 4:
-                        saveUsers(users);
-                        saveProducts(inventory);
-                        System.out.println("Goodbye!");
-                        exit = true;
-                        break;
-                    default:
-                        System.out.println("Invalid choice. Please try again.");
-                        continue;
+                        return line.toString().getBytes(StandardCharsets.UTF_8);
+                    });
+                    return "ok," + order.getId() + "," + order.getOrderDate().getTime();
+                case "count":
+                    return "ok," + orders.countOrders(request.readString());
+                case "history":
+                    String owner = request.readString();
+                    List<byte[]> lines = new ArrayList<>();
+                    orders.forEachOrder(owner, request.readLong(), request.readLong(), line -> lines.add(line.recordBytes()));
+                    Renderer history = new Renderer();
+                    history.append("ok,").append(lines.size());
+                    for (byte[] line : lines) {
+                        history.newline().append(line);
                     }
-                }else {
-                    System.out.println("\n1. View Products\n2. View Cart\n3. Add to cart\n4. Checkout\n5. Buy Item\n6. Check previous orders\n7. Remove item from cart\n8. Reduce cart item quantitiy\n9. Logout\n10. Exit");
-                    System.out.print("Choose an option: ");
-                    int choice = Integer.parseInt(scanner.nextLine());
-                    switch(choice){
-                    case 1:
-                        System.out.println("Available Products:");
-                        inventory.forEach(System.out::println);
-                        break;
-                    case 2:
-                        System.out.println(currentCart.toString());
-                        break;
-                    case 3:
-                    // Provides a lot of different ways to search through the inventory, usually meant for different target audiences. 
-                    // Id is meant for regular users. Name is meant for first time or casual users. Barcodes are meant for employees with a barcode scanner.
-                        System.out.println("1. Add product by ID\n2. Add product by barcode\n3. Add product by name\n4. Filter products by name");
-                        System.out.print("Choose an option: ");
-                        int choice3 = Integer.parseInt(scanner.nextLine());
-                        switch (choice3) {
-                        case 1:
-                            System.out.print("Enter product ID to add to cart: ");
-                            int id = Integer.parseInt(scanner.nextLine());
-                            System.out.print("Enter quantity: ");
-                            int quantity = Integer.parseInt(scanner.nextLine());
-                            Product productById = null;
-                            for (Product product : inventory) {
-                                if (product.id == id) {
-                                    productById = product;
-                                    break;
-                                }
-                            }
-                            if (productById != null) {
-                                currentCart.addProduct(productById, quantity);
-                                System.out.println("Added " + quantity + " of " + productById.getName() + " to cart.");
-                            } else {
-                                System.out.println("Product not found.");
-                            }
-                            break;
-                        case 2:
-                            System.out.print("Enter product barcode to add to cart: ");
-                            long barcode = Long.parseLong(scanner.nextLine());
-                            System.out.print("Enter quantity: ");
-                            quantity = Integer.parseInt(scanner.nextLine());
-                            Product productByBarcode = null;
-                            for (Product product : inventory) {
-                                if (product.getBarcode() == barcode) {
-                                    productByBarcode = product;
-                                    break;
-                                }
-                            }
-                            if (productByBarcode != null) {
-                                currentCart.addProduct(productByBarcode, quantity);
-                                System.out.println("Added " + quantity + " of " + productByBarcode.getName() + " to cart.");
-                            } else {
-                                System.out.println("Product not found.");
-                            }
-                            break;
-                        // Two types of name search implemented. One is a simple name search, the other is a filter search. The filter search returns a list of matching products and allows the user to select one to add to the cart.
-                        case 3:
-                            System.out.print("Enter product name to add to cart: ");
-                            String name = scanner.nextLine();
-                            System.out.print("Enter quantity: ");
-                            quantity = Integer.parseInt(scanner.nextLine());
-                            Product productByName = null;
-                            for (Product product : inventory) {
-                                if (product.getName().equalsIgnoreCase(name)) {
-                                    productByName = product;
-                                    break;
-                                }
+                    return history.toString();
+                case "emails":
+                    users.save();
+                    List<String> emails = users.emails();
+                    return "ok," + emails.size() + (emails.isEmpty() ? "" : "\n" + String.join("\n", emails));
+                case "import":
+                    byte[] line = request.readRest().getBytes(StandardCharsets.UTF_8);
+                    CsvCursor fields = new CsvCursor(line, 0, line.length);
+                    if (!fields.nextRecord() || fields.fieldCount() < 4) {
+                        throw new IOException("Malformed order line");
+                    }
+                    synchronized (imported) {
+                        imported.add(line);
+                    }
+                    return "ok";
+                case "merge":
+                    List<byte[]> batch;
+                    synchronized (imported) {
+                        batch = new ArrayList<>(imported);
+                        imported.clear();
+                    }
+                    int merged = orders.merge(batch);
+                    store.save(); // Starts a new cart log, whose recovery must not look at offsets from before the rewrite
+                    return "ok," + merged;
+                case "save":
+                    store.save();
+                    return "ok";
+                default:
+                    return "error,Unknown request " + command;
+            }
+        }
+    }
+
+    // ShardRouter class
+    // Sends each account, and that account's orders, to the shard the ring gives its email to. A store with
+    // grocery.shards set uses it in place of its own users.csv and orders.csv, and keeps only the catalog and stock.
+    // Like UserRepository, it hands out one User per email for as long as any session holds it, so two sessions on one
+    // account share a cart, and save() can push cart changes no session has released yet.
+    public static class ShardRouter implements UserDirectory, OrderLog {
+        private final ShardRing ring;
+        private final ShardClient[] clients;
+        private final ProductCatalog inventory; // Carts coming back from the shards are read against this store's catalog
+        private final Map<String, UserRepository.UserReference> live = new HashMap<>(); // Guarded by this
+        private final ReferenceQueue<User> collected = new ReferenceQueue<>();
+
+        public ShardRouter(ShardRing ring, ProductCatalog inventory) {
+            this.ring = ring;
+            this.inventory = inventory;
+            this.clients = new ShardClient[ring.size()];
+            for (int shard = 0; shard < clients.length; shard++) {
+                clients[shard] = new ShardClient(ring.get(shard));
+            }
+        }
+
+        public ShardClient shardFor(String email) {
+            return clients[ring.shardOf(email)];
+        }
+
+        @Override
+        public User get(String email) throws IOException {
+            if (email.indexOf(',') >= 0) {
+                return null; // Not a valid email, and it would split the request
+            }
+            User user = find(email);
+            if (user != null) {
+                return user;
+            }
+            user = shardFor(email).getUser(email, inventory); // Not under the lock, so one slow shard holds up no one else
+            return user != null ? keep(user) : null;
+        }
+
+        @Override
+        public void add(User user) throws IOException {
+            synchronized (this) {
+                expunge();
+                live.put(user.getEmail(), new UserRepository.UserReference(user, collected));
+            }
+            push(user);
+        }
+
+        @Override
+        public void release(User user) throws IOException {
+            if (user.isDirty()) {
+                push(user);
+            }
+        }
+
+        @Override
+        public void save() throws IOException {
+            List<User> changed = new ArrayList<>();
+            synchronized (this) {
+                expunge();
+                for (UserRepository.UserReference reference : live.values()) {
+                    User user = reference.get();
+                    if (user != null && user.isDirty()) {
+                        changed.add(user);
+                    }
+                }
+            }
+            for (User user : changed) {
+                push(user);
+            }
+            for (ShardClient client : clients) {
+                client.save();
+            }
+        }
+
+        private synchronized User find(String email) {
+            expunge();
+            UserRepository.UserReference reference = live.get(email);
+            return reference != null ? reference.get() : null;
+        }
+
+        // Registers an account just read from its shard, unless another session got there first, and returns the one
+        // to use.
+        private synchronized User keep(User user) {
+            User existing = find(user.getEmail());
+            if (existing != null) {
+                return existing;
+            }
+            live.put(user.getEmail(), new UserRepository.UserReference(user, collected));
+            return user;
+        }
+
+        private void expunge() {
+            for (Reference<? extends User> cleared; (cleared = collected.poll()) != null; ) {
+                UserRepository.UserReference reference = (UserRepository.UserReference) cleared;
+                live.remove(reference.email, reference);
+            }
+        }
+
+        private void push(User user) throws IOException {
+            user.clearDirty(); // First, so a change made while the record is on its way is pushed next time
+            try {
+                shardFor(user.getEmail()).putRecord(userRecord(user));
+            } catch (IOException e) {
+                user.markDirty();
+                throw e;
+            }
+        }
+
+        // The shard stamps and formats the line itself, so the format is not used here.
+        @Override
+        public void append(Order order, Function<Order, byte[]> format) throws IOException {
+            shardFor(order.getUser().getEmail()).order(order);
+        }
+
+        @Override
+        public int countOrders(String email) throws IOException {
+            return shardFor(email).countOrders(email);
+        }
+
+        @Override
+        public void forEachOrder(String email, long fromMillis, long toMillis, OrderVisitor visitor) throws IOException {
+            shardFor(email).forEachOrder(email, fromMillis, toMillis, visitor);
+        }
+
+        @Override
+        public void close() throws IOException {
+            for (ShardClient client : clients) {
+                client.close();
+            }
+        }
+
+        // Copies every account whose owner differs between the two rings, with its orders, to its new shard. Run it
+        // before store fronts switch to the new ring. Only the old owner's copy is moved. Each new owner merges the
+        // lines it was sent into its orders.csv by time at the end, giving them ids of its own and skipping orders it
+        // already has, so a run that stopped part way can be repeated. The old owner keeps its copy, which nothing
+        // reads once the fronts have switched.
+        // Usage: --rebalance <old shards> <new shards>
+        public static void rebalance(String[] args) throws IOException {
+            if (args.length < 3) {
+                System.out.println("Usage: --rebalance <old host:port,...> <new host:port,...>");
+                return;
+            }
+            ShardRing from = ShardRing.parse(args[1]);
+            ShardRing to = ShardRing.parse(args[2]);
+            ShardClient[] targets = new ShardClient[to.size()];
+            for (int shard = 0; shard < targets.length; shard++) {
+                targets[shard] = new ShardClient(to.get(shard));
+            }
+            long accounts = 0;
+            long moved = 0;
+            long orders = 0;
+            try {
+                for (int shard = 0; shard < from.size(); shard++) {
+                    try (ShardClient source = new ShardClient(from.get(shard))) {
+                        for (String email : source.emails()) {
+                            if (from.shardOf(email) != shard) {
+                                continue; // Left behind by an earlier move
                             }
-                            if (productByName != null) {
-                                currentCart.addProduct(productByName, quantity);
-                                System.out.println("Added " + quantity + " of " + productByName.getName() + " to cart.");
-                            } else {
-                                System.out.println("Product not found.");
+                            accounts++;
+                            ShardClient target = targets[to.shardOf(email)];
+                            if (target.getName().equals(source.getName())) {
+                                continue;
                             }
-                            break;
-                        case 4:
-                            System.out.print("Enter product name to filter: ");
-                            String filterName = scanner.nextLine();
-                            List<Product> filteredProducts = new ArrayList<>();
-                            for (Product product : inventory) {
-                                if (product.getName().toLowerCase().contains(filterName.toLowerCase())) {
-                                    filteredProducts.add(product);
-                                }
+                            String record = source.getRecord(email);
+                            if (record == null) {
+                                continue;
                             }
-                            if (filteredProducts.isEmpty()) {
-                                System.out.println("No products found.");
-                            } else {
-                                System.out.println("Filtered Products:");
-                                filteredProducts.forEach(System.out::println);
-                                System.out.print("Enter product ID to add to cart: ");
-                                int filterId = Integer.parseInt(scanner.nextLine());
-                                System.out.print("Enter quantity: ");
-                                quantity = Integer.parseInt(scanner.nextLine());
-                                Product filteredProduct = null;
-                                for (Product product : filteredProducts) {
-                                    if (product.id == filterId) {
-                                        filteredProduct = product;
-                                        break;
-                                    }
-                                }
-                                if (filteredProduct != null) {
-                                    currentCart.addProduct(filteredProduct, quantity);
-                                    System.out.println("Added " + quantity + " of " + filteredProduct.getName() + " to cart.");
-                                } else {
-                                    System.out.println("Product not found.");
-                                }
+                            target.putRecord(record);
+                            for (String line : source.orderLines(email)) {
+                                target.importOrder(line);
                             }
-                            break;
-                        default:
-                            System.out.println("Invalid choice. Please try again.");
-                            continue;
-                        }
-                        break;
-                    case 4:
-                        if (currentCart.isEmpty()) {
-                            System.out.println("Your cart is empty. Please add items to your cart before checking out.");
-                            break;
-                        }
-                        if (currentUser == null) {
-                            System.out.println("You must be logged in to checkout. Please login or register.");
-                            break;
+                            moved++;
                         }
-                        System.out.println("Checkout successful! Your order details are as follows:");
-                        Order order = new Order(currentUser, currentCart);
-                        System.out.println(order.toString());
-                        saveOrder(order);
-                        currentCart.clearCart();
+                    }
+                }
+                for (ShardClient target : targets) {
+                    orders += target.mergeOrders(); // Also saves
+                }
+            } finally {
+                for (ShardClient target : targets) {
+                    target.close();
+                }
+            }
+            System.out.println("Moved " + moved + " of " + accounts + " accounts and " + orders + " orders.");
+        }
+    }
+
+    // BatchRunner class
+    // Runs shopper commands from a file or standard input without prompts, for bulk imports and for replaying traffic.
+    // Each line is one comma-separated command, parsed straight out of a CsvCursor buffer:
+    //   register,<name>,<email>,<password>   login,<email>,<password>   guest   logout
+    //   add,<barcode>,<quantity>   add-id,<id>,<quantity>   reduce,<barcode>,<quantity>   remove,<barcode>
+    //   coupon,<code>   checkout   save   import,<product feed>
+    // Blank lines and lines starting with # are skipped. Only placed orders and failed commands are reported, through
+    // one buffered stream, followed by a summary; everything is saved at the end as if the shopper had picked Exit.
+    // Password hashing (grocery.password.iterations) bounds how fast register and first logins go, and every checkout
+    // waits for its order to be written (grocery.orders.fsync), so replays usually turn both down.
+    // Usage: --batch [file|-]
+    public static class BatchRunner {
+        private final Store store;
+        private final Shopper shopper;
+        private final PrintStream out;
+        private long orders;
+
+        public BatchRunner(Store store, PrintStream out) {
+            this.store = store;
+            this.shopper = new Shopper(store);
+            this.out = out;
+        }
+
+        public static void run(Store store, String[] args) throws IOException {
+            InputStream in = args.length > 1 && !args[1].equals("-") ? new FileInputStream(args[1]) : System.in;
+            PrintStream out = new PrintStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), 64 * 1024), false, StandardCharsets.UTF_8);
+            try (CsvCursor cursor = new CsvCursor(in)) {
+                new BatchRunner(store, out).run(cursor);
+            } finally {
+                out.flush();
+            }
+        }
+
+        public void run(CsvCursor cursor) throws IOException {
+            long start = System.nanoTime();
+            long line = 0;
+            long commands = 0;
+            long failed = 0;
+            while (cursor.nextRecord()) {
+                line++;
+                String command = cursor.readString();
+                if (command.isEmpty() || command.startsWith("#")) {
+                    continue;
+                }
+                commands++;
+                String error;
+                try {
+                    error = execute(command, cursor);
+                } catch (NumberFormatException e) {
+                    error = "invalid number: " + e.getMessage();
+                } catch (IOException e) {
+                    error = "error: " + e.getMessage();
+                }
+                if (error != null) {
+                    failed++;
+                    out.println("line " + line + ": " + command + " failed, " + error);
+                } else if (command.equals("checkout")) {
+                    out.println("line " + line + ": order #" + shopper.getLastOrder().getId());
+                }
+            }
+            shopper.logout();
+            store.save();
+            long millis = Math.max(1, (System.nanoTime() - start) / 1_000_000);
+            out.println("Ran " + commands + " commands in " + millis + " ms (" + commands * 1000 / millis + " per second), "
+                    + failed + " failed; orders placed: " + orders + ".");
+        }
+
+        // Runs one command, returning null if it went through or what went wrong otherwise.
+        private String execute(String command, CsvCursor cursor) throws IOException {
+            switch (command) {
+                case "register":
+                    return describe(shopper.register(cursor.readString(), cursor.readString(), cursor.readString()));
+                case "login":
+                    return describe(shopper.login(cursor.readString(), cursor.readString()));
+                case "guest":
+                    shopper.continueAsGuest();
+                    return null;
+                case "logout":
+                    shopper.logout();
+                    return null;
+                case "add":
+                    return shopper.addByBarcode(cursor.readLong(), cursor.readInt()) != null ? null : "product not found";
+                case "add-id":
+                    return shopper.addById(cursor.readInt(), cursor.readInt()) != null ? null : "product not found";
+                case "reduce":
+                    return shopper.reduceByBarcode(cursor.readLong(), cursor.readInt()) != null ? null : "product not in cart";
+                case "remove":
+                    return shopper.removeByBarcode(cursor.readLong()) != null ? null : "product not in cart";
+                case "coupon":
+                    return describe(shopper.applyCoupon(cursor.readString().trim()));
+                case "checkout":
+                    Shopper.Result result = shopper.checkout();
+                    if (result == Shopper.Result.OUT_OF_STOCK) {
+                        return "not enough " + shopper.getShortage().getName() + " in stock";
+                    }
+                    if (result == Shopper.Result.OK) {
+                        orders++;
+                    }
+                    return describe(result);
+                case "save":
+                    store.save();
+                    return null;
+                case "import":
+                    out.println(store.importProducts(cursor.readString()));
+                    return null;
+                default:
+                    return "unknown command";
+            }
+        }
+
+        // USER_NOT_FOUND reads as "user not found".
+        private static String describe(Shopper.Result result) {
+            return result == Shopper.Result.OK ? null : result.name().toLowerCase(Locale.ROOT).replace('_', ' ');
+        }
+    }
+
+    // LineChunkTask class
+    // Reads a range of a file on the fork/join pool in chunks of whole lines. A range larger than the chunk size is cut
+    // in two at the first line break past its middle and the halves run in parallel; a small enough range is read into
+    // one array and handed to parse. Results are combined left to right, so they stay in file order.
+    public abstract static class LineChunkTask<T> extends RecursiveTask<T> {
+        private static final long serialVersionUID = 1L;
+        private static final long CHUNK_BYTES = 8L << 20;
+        private final transient FileChannel channel;
+        private final long start; // Always the start of a line
+        private final long end;   // Always just past a line break, or the end of the file
+
+        protected LineChunkTask(FileChannel channel, long start, long end) {
+            this.channel = channel;
+            this.start = start;
+            this.end = end;
+        }
+
+        protected FileChannel getChannel() {
+            return channel;
+        }
+
+        // A task like this one over another part of the file.
+        protected abstract LineChunkTask<T> over(long start, long end);
+
+        // Reads the lines in chunk[0, length).
+        protected abstract T parse(byte[] chunk, int length) throws IOException;
+
+        // Adds what the range that follows found to what this one found.
+        protected abstract T combine(T left, T right);
+
+        @Override
+        protected T compute() {
+            try {
+                if (end - start > CHUNK_BYTES) {
+                    long split = nextLine(start + (end - start) / 2);
+                    if (split < end) {
+                        LineChunkTask<T> right = over(split, end);
+                        right.fork();
+                        T left = over(start, split).compute();
+                        return combine(left, right.join());
+                    }
+                }
+                byte[] chunk = new byte[(int) (end - start)];
+                ByteBuffer target = ByteBuffer.wrap(chunk);
+                while (target.hasRemaining()) {
+                    if (channel.read(target, start + target.position()) < 0) {
                         break;
-                    case 5:
-                    // Reused logic from the add to cart function. It automatically creates a cart with one item and checks it out without extra steps. Meant for people who want to make a very specific purchase very quickly.
-                        System.out.println("1. Buy product by ID\n2. Buy product by barcode\n3. Buy product by name\n4. Filter products by name");
-                        System.out.print("Choose an option: ");
-                        int choice4 = Integer.parseInt(scanner.nextLine());
-                        switch (choice4) {
-                        case 1:
-                            System.out.print("Enter product ID to buy: ");
-                            int id = Integer.parseInt(scanner.nextLine());
-                            System.out.print("Enter quantity: ");
-                            int quantity = Integer.parseInt(scanner.nextLine());
-                            Product productById = null;
-                            for (Product product : inventory) {
-                                if (product.id == id) {
-                                    productById = product;
-                                    break;
-                                }
-                            }
-                            if (productById != null) {
-                                currentCart.addProduct(productById, quantity);
-                            } else {
-                                System.out.println("Product not found.");
-                            }
-                            break;
-                        case 2:
-                            System.out.print("Enter product barcode to buy: ");
-                            long barcode = Long.parseLong(scanner.nextLine());
-                            System.out.print("Enter quantity: ");
-                            quantity = Integer.parseInt(scanner.nextLine());
-                            Product productByBarcode = null;
-                            for (Product product : inventory) {
-                                if (product.getBarcode() == barcode) {
-                                    productByBarcode = product;
-                                    break;
-                                }
-                            }
-                            if (productByBarcode != null) {
-                                currentCart.addProduct(productByBarcode, quantity);
-                            } else {
-                                System.out.println("Product not found.");
-                            }
-                            break;
-                        case 3:
-                            System.out.print("Enter product name to buy: ");
-                            String name = scanner.nextLine();
-                            System.out.print("Enter quantity: ");
-                            quantity = Integer.parseInt(scanner.nextLine());
-                            Product productByName = null;
-                            for (Product product : inventory) {
-                                if (product.getName().equalsIgnoreCase(name)) {
-                                    productByName = product;
-                                    break;
-                                }
-                            }
-                            if (productByName != null) {
-                                currentCart.addProduct(productByName, quantity);
-                            } else {
-                                System.out.println("Product not found.");
-                            }
-                            break;
-                        case 4:
-                            System.out.print("Enter product name to filter: ");
-                            String filterName = scanner.nextLine();
-                            List<Product> filteredProducts = new ArrayList<>();
-                            for (Product product : inventory) {
-                                if (product.getName().toLowerCase().contains(filterName.toLowerCase())) {
-                                    filteredProducts.add(product);
-                                }
-                            }
-                            if (filteredProducts.isEmpty()) {
-                                System.out.println("No products found.");
-                            } else {
-                                System.out.println("Filtered Products:");
-                                filteredProducts.forEach(System.out::println);
-                                System.out.print("Enter product ID to buy: ");
-                                int filterId = Integer.parseInt(scanner.nextLine());
-                                System.out.print("Enter quantity: ");
-                                quantity = Integer.parseInt(scanner.nextLine());
-                                Product filteredProduct = null;
-                                for (Product product : filteredProducts) {
-                                    if (product.id == filterId) {
-                                        filteredProduct = product;
-                                        break;
-                                    }
-                                }
-                                if (filteredProduct != null) {
-                                    currentCart.addProduct(filteredProduct, quantity);
-                                } else {
-                                    System.out.println("Product not found.");
-                                }
-                            }
-                            break;
-                        default:
-                            System.out.println("Invalid choice. Please try again.");
+                    }
+                }
+                return parse(chunk, target.position());
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        // Offset just past the first line break at or after the given offset, or the end of the range.
+        private long nextLine(long from) throws IOException {
+            ByteBuffer probe = ByteBuffer.allocate(4096);
+            for (long at = from; at < end; at += probe.limit()) {
+                probe.clear();
+                int read = channel.read(probe, at);
+                if (read <= 0) {
+                    break;
+                }
+                for (int i = 0; i < read; i++) {
+                    if (probe.get(i) == '\n') {
+                        return at + i + 1;
+                    }
+                }
+            }
+            return end;
+        }
+    }
+
+    // SalesAnalytics class
+    // Answers "what sold, and for how much" over orders.csv in a single pass: units per product and day are added up in
+    // primitive maps, so memory depends on how many products sold on how many days, not on the size of the file. The
+    // file is cut into chunks at line boundaries and the chunks are counted in parallel on the fork/join pool, each into
+    // its own maps, which are merged as the tasks join. Orders do not record prices, so revenue is units times the
+    // current catalog price.
+    // Usage: --analytics [days|all] [top]
+    public static class SalesAnalytics {
+        private static final int BARCODE_BITS = 44; // Keys are day << 44 | barcode, which fits any 13-digit barcode
+
+        // Units sold per (day, barcode) within a day range.
+        public static class Totals {
+            private final LongLongMap units = new LongLongMap(1024);
+            private long orders;
+            private long skipped; // Lines that could not be read
+
+            void merge(Totals other) {
+                for (int slot = 0; slot < other.units.capacity(); slot++) {
+                    if (other.units.isUsed(slot)) {
+                        units.add(other.units.keyAt(slot), other.units.valueAt(slot));
+                    }
+                }
+                orders += other.orders;
+                skipped += other.skipped;
+            }
+
+            public long getOrders() {
+                return orders;
+            }
+
+            public long getSkipped() {
+                return skipped;
+            }
+
+            public LongLongMap getUnits() {
+                return units;
+            }
+
+            public static long day(long key) {
+                return key >>> BARCODE_BITS;
+            }
+
+            public static long barcode(long key) {
+                return key & ((1L << BARCODE_BITS) - 1);
+            }
+        }
+
+        // Counts orders.csv lines dated fromDay to toDay inclusive (UTC days since 1970-01-01). Lines are in time order,
+        // so reading starts where a binary search puts fromDay.
+        public static Totals scan(String fileName, long fromDay, long toDay) throws IOException {
+            try (FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ)) {
+                long size = channel.size();
+                long start = fromDay <= 0 ? 0 : OrderStore.seek(channel, size, Timestamps.startOfDay(fromDay));
+                return ForkJoinPool.commonPool().invoke(new ChunkTask(channel, start, size, fromDay, toDay));
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+        }
+
+        private static class ChunkTask extends LineChunkTask<Totals> {
+            private static final long serialVersionUID = 1L;
+            private final long fromDay;
+            private final long toDay;
+
+            ChunkTask(FileChannel channel, long start, long end, long fromDay, long toDay) {
+                super(channel, start, end);
+                this.fromDay = fromDay;
+                this.toDay = toDay;
+            }
+
+            @Override
+            protected ChunkTask over(long start, long end) {
+                return new ChunkTask(getChannel(), start, end, fromDay, toDay);
+            }
+
+            @Override
+            protected Totals combine(Totals left, Totals right) {
+                left.merge(right);
+                return left;
+            }
+
+            @Override
+            protected Totals parse(byte[] chunk, int length) throws IOException {
+                Totals totals = new Totals();
+                CsvCursor cursor = new CsvCursor(chunk, 0, length);
+                while (cursor.nextRecord()) {
+                    if (cursor.fieldCount() < 3) {
+                        continue;
+                    }
+                    try {
+                        cursor.skipField();
+                        cursor.skipField();
+                        long millis = cursor.readTimestamp();
+                        if (millis == Long.MIN_VALUE) {
+                            totals.skipped++;
                             continue;
                         }
-                        if (currentCart.isEmpty()) {
-                            System.out.println("You are actually never supposed to see this message. Please report code 42069 to the developer.");
-                            break;
-                        }
-                        if (currentUser == null) {
-                            System.out.println("You must be logged in to buy. Please login or register.");
-                            break;
+                        long day = Timestamps.epochDay(millis);
+                        if (day < fromDay || day > toDay) {
+                            continue;
                         }
-                        System.out.println("Purchase successful! Your order details are as follows:");
-                        Order order1 = new Order(currentUser, currentCart);
-                        System.out.println(order1.toString());
-                        saveOrder(order1);
-                        currentCart.clearCart();
-                        break;
-                    case 6: // Just reads the orders.csv file and filters by user name
-                        if (currentUser != null) {
-                            try (BufferedReader reader = new BufferedReader(new FileReader("orders.csv"))) {
-                                String line;
-                                boolean foundOrders = false;
-                                System.out.println("Your previous orders are as follows:");
-                                while ((line = reader.readLine()) != null) {
-                                    String[] parts = line.split(",");
-                                    if (parts.length >= 3 && parts[1].equals(currentUser.getEmail())) {
-                                        foundOrders = true;
-                                        System.out.println("Order Date: " + parts[2]);
-                                        System.out.println("Items:");
-                                        for (int i = 3; i < parts.length; i++) {
-                                            String[] productInfo = parts[i].split(":");
-                                            if (productInfo.length == 2) {
-                                                long barcode = Long.parseLong(productInfo[0]);
-                                                int quantity = Integer.parseInt(productInfo[1]);
-                                                for (Product product : inventory) {
-                                                    if (product.getBarcode() == barcode) {
-                                                        System.out.println("- " + product.getName() + " (x" + quantity + ")");
-                                                        break;
-                                                    }
-                                                }
-                                            }
-                                        }
-                                        System.out.println();
-                                    }
-                                }
-                                if (!foundOrders) {
-                                    System.out.println("No previous orders found.");
+                        totals.orders++;
+                        while (cursor.hasMoreFields()) {
+                            if (cursor.subfieldCount() == 2) {
+                                long barcode = cursor.readLong();
+                                int quantity = cursor.readInt();
+                                if (barcode >= 0 && barcode < 1L << BARCODE_BITS && quantity > 0) {
+                                    totals.units.add(day << BARCODE_BITS | barcode, quantity);
                                 }
-                            } catch (IOException e) {
-                                System.out.println("Error reading orders: " + e.getMessage());
+                            } else {
+                                cursor.skipField();
                             }
-                        } else {
-                            System.out.println("You must be logged in to view your orders.");
-                        }
-                        break;
-                    case 7: // Code mirrors add to cart
-                        System.out.println("1. Remove product by ID\n2. Remove product by barcode\n3. Remove product by name\n4. Filter products by name to remove");
-                        System.out.print("Choose an option: ");
-                        int choice7 = Integer.parseInt(scanner.nextLine());
-                        switch (choice7) {
-                            case 1:
-                                System.out.print("Enter product ID to remove from cart: ");
-                                int idToRemove = Integer.parseInt(scanner.nextLine());
-                                Product productByIdToRemove = null;
-                                for (CartItem item : currentCart.getItems()) {
-                                    if (item.getProduct().getId() == idToRemove) {
-                                        productByIdToRemove = item.getProduct();
-                                        break;
-                                    }
-                                }
-                                if (productByIdToRemove != null) {
-                                    currentCart.removeProduct(productByIdToRemove);
-                                    System.out.println("Removed " + productByIdToRemove.getName() + " from cart.");
-                                } else {
-                                    System.out.println("Product not found in cart.");
-                                }
-                                break;
-                            case 2:
-                                System.out.print("Enter product barcode to remove from cart: ");
-                                long barcodeToRemove = Long.parseLong(scanner.nextLine());
-                                Product productByBarcodeToRemove = null;
-                                for (CartItem item : currentCart.getItems()) {
-                                    if (item.getProduct().getBarcode() == barcodeToRemove) {
-                                        productByBarcodeToRemove = item.getProduct();
-                                        break;
-                                    }
-                                }
-                                if (productByBarcodeToRemove != null) {
-                                    currentCart.removeProduct(productByBarcodeToRemove);
-                                    System.out.println("Removed " + productByBarcodeToRemove.getName() + " from cart.");
-                                } else {
-                                    System.out.println("Product not found in cart.");
-                                }
-                                break;
-                            case 3:
-                                System.out.print("Enter product name to remove from cart: ");
-                                String nameToRemove = scanner.nextLine();
-                                Product productByNameToRemove = null;
-                                for (CartItem item : currentCart.getItems()) {
-                                    if (item.getProduct().getName().equalsIgnoreCase(nameToRemove)) {
-                                        productByNameToRemove = item.getProduct();
-                                        break;
-                                    }
-                                }
-                                if (productByNameToRemove != null) {
-                                    currentCart.removeProduct(productByNameToRemove);
-                                    System.out.println("Removed " + productByNameToRemove.getName() + " from cart.");
-                                } else {
-                                    System.out.println("Product not found in cart.");
-                                }
-                                break;
-                            case 4:
-                                System.out.print("Enter product name to filter for removal: ");
-                                String filterNameToRemove = scanner.nextLine();
-                                List<Product> filteredProductsToRemove = new ArrayList<>();
-                                for (CartItem item : currentCart.getItems()) {
-                                    if (item.getProduct().getName().toLowerCase().contains(filterNameToRemove.toLowerCase())) {
-                                        filteredProductsToRemove.add(item.getProduct());
-                                    }
-                                }
-                                if (filteredProductsToRemove.isEmpty()) {
-                                    System.out.println("No products found in cart.");
-                                } else {
-                                    System.out.println("Filtered Products:");
-                                    filteredProductsToRemove.forEach(System.out::println);
-                                    System.out.print("Enter product ID to remove from cart: ");
-                                    int filterIdToRemove = Integer.parseInt(scanner.nextLine());
-                                    Product filteredProductToRemove = null;
-                                    for (Product product : filteredProductsToRemove) {
-                                        if (product.getId() == filterIdToRemove) {
-                                            filteredProductToRemove = product;
-                                            break;
-                                        }
-                                    }
-                                    if (filteredProductToRemove != null) {
-                                        currentCart.removeProduct(filteredProductToRemove);
-                                        System.out.println("Removed " + filteredProductToRemove.getName() + " from cart.");
-                                    } else {
-                                        System.out.println("Product not found in cart.");
-                                    }
-                                }
-                                break;
-                            default:
-                                System.out.println("Invalid choice. Please try again.");
-                                break;
                         }
-                        break;
-                    case 8: // Code mirrors add to cart
-                        System.out.println("1. Reduce product by ID\n2. Reduce product by barcode\n3. Reduce product by name\n4. Filter products by name to reduce");
-                        System.out.print("Choose an option: ");
-                        int choice8 = Integer.parseInt(scanner.nextLine());
-                        switch (choice8) {
-                            case 1:
-                                System.out.print("Enter product ID to reduce from cart: ");
-                                int idToReduce = Integer.parseInt(scanner.nextLine());
-                                System.out.print("Enter quantity to reduce: ");
-                                int quantityToReduce = Integer.parseInt(scanner.nextLine());
-                                Product productByIdToReduce = null;
-                                for (CartItem item : currentCart.getItems()) {
-                                    if (item.getProduct().getId() == idToReduce) {
-                                        productByIdToReduce = item.getProduct();
-                                        break;
-                                    }
-                                }
-                                if (productByIdToReduce != null) {
-                                    currentCart.reduceProduct(productByIdToReduce, quantityToReduce);
-                                    System.out.println("Reduced " + quantityToReduce + " of " + productByIdToReduce.getName() + " from cart.");
-                                } else {
-                                    System.out.println("Product not found in cart.");
-                                }
-                                break;
-                            case 2:
-                                System.out.print("Enter product barcode to reduce from cart: ");
-                                long barcodeToReduce = Long.parseLong(scanner.nextLine());
-                                System.out.print("Enter quantity to reduce: ");
-                                quantityToReduce = Integer.parseInt(scanner.nextLine());
-                                Product productByBarcodeToReduce = null;
-                                for (CartItem item : currentCart.getItems()) {
-                                    if (item.getProduct().getBarcode() == barcodeToReduce) {
-                                        productByBarcodeToReduce = item.getProduct();
-                                        break;
-                                    }
-                                }
-                                if (productByBarcodeToReduce != null) {
-                                    currentCart.reduceProduct(productByBarcodeToReduce, quantityToReduce);
-                                    System.out.println("Reduced " + quantityToReduce + " of " + productByBarcodeToReduce.getName() + " from cart.");
-                                } else {
-                                    System.out.println("Product not found in cart.");
-                                }
-                                break;
-                            case 3:
-                                System.out.print("Enter product name to reduce from cart: ");
-                                String nameToReduce = scanner.nextLine();
-                                System.out.print("Enter quantity to reduce: ");
-                                quantityToReduce = Integer.parseInt(scanner.nextLine());
-                                Product productByNameToReduce = null;
-                                for (CartItem item : currentCart.getItems()) {
-                                    if (item.getProduct().getName().equalsIgnoreCase(nameToReduce)) {
-                                        productByNameToReduce = item.getProduct();
-                                        break;
-                                    }
-                                }
-                                if (productByNameToReduce != null) {
-                                    currentCart.reduceProduct(productByNameToReduce, quantityToReduce);
-                                    System.out.println("Reduced " + quantityToReduce + " of " + productByNameToReduce.getName() + " from cart.");
-                                } else {
-                                    System.out.println("Product not found in cart.");
-                                }
-                                break;
-                            case 4:
-                                System.out.print("Enter product name to filter for reduction: ");
-                                String filterNameToReduce = scanner.nextLine();
-                                List<Product> filteredProductsToReduce = new ArrayList<>();
-                                for (CartItem item : currentCart.getItems()) {
-                                    if (item.getProduct().getName().toLowerCase().contains(filterNameToReduce.toLowerCase())) {
-                                        filteredProductsToReduce.add(item.getProduct());
-                                    }
-                                }
-                                if (filteredProductsToReduce.isEmpty()) {
-                                    System.out.println("No products found in cart.");
-                                } else {
-                                    System.out.println("Filtered Products:");
-                                    filteredProductsToReduce.forEach(System.out::println);
-                                    System.out.print("Enter product ID to reduce from cart: ");
-                                    int filterIdToReduce = Integer.parseInt(scanner.nextLine());
-                                    System.out.print("Enter quantity to reduce: ");
-                                    quantityToReduce = Integer.parseInt(scanner.nextLine());
-                                    Product filteredProductToReduce = null;
-                                    for (Product product : filteredProductsToReduce) {
-                                        if (product.getId() == filterIdToReduce) {
-                                            filteredProductToReduce = product;
-                                            break;
-                                        }
-                                    }
-                                    if (filteredProductToReduce != null) {
-                                        currentCart.reduceProduct(filteredProductToReduce, quantityToReduce);
-                                        System.out.println("Reduced " + quantityToReduce + " of " + filteredProductToReduce.getName() + " from cart.");
-                                    } else {
-                                        System.out.println("Product not found in cart.");
-                                    }
-                                }
-                                break;
-                            default:
-                                System.out.println("Invalid choice. Please try again.");
-                                break;
+                    } catch (NumberFormatException e) {
+                        totals.skipped++;
+                    }
+                }
+                return totals;
+            }
+        }
+
+        public static void run(String[] args) throws IOException {
+            boolean allTime = args.length > 1 && args[1].equals("all");
+            int days = args.length > 1 && !allTime ? Integer.parseInt(args[1]) : 7;
+            int top = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+            long today = LocalDate.now(ZoneOffset.UTC).toEpochDay();
+            long fromDay = allTime ? 0 : today - days + 1;
+            long toDay = allTime ? (1L << (63 - BARCODE_BITS)) - 1 : today;
+
+            ProductCatalog inventory = new ProductCatalog();
+            RecordStore productStore = new RecordStore("products.csv", "products.log");
+            loadProducts(productStore.getSnapshotFile(), inventory::add);
+            // Read-only, so a record still being written by a running store is left alone rather than recovered
+            if (Files.exists(Paths.get(productStore.getLogFile()))) {
+                loadProducts(productStore.getLogFile(), inventory::put);
+            }
+
+            long started = System.nanoTime();
+            Totals totals = scan("orders.csv", fromDay, toDay);
+            double seconds = (System.nanoTime() - started) / 1e9;
+
+            LongLongMap unitsByProduct = new LongLongMap(256);
+            TreeMap<Long, Long> revenueByDay = new TreeMap<>();
+            LongLongMap units = totals.getUnits();
+            for (int slot = 0; slot < units.capacity(); slot++) {
+                if (units.isUsed(slot)) {
+                    long barcode = Totals.barcode(units.keyAt(slot));
+                    unitsByProduct.add(barcode, units.valueAt(slot));
+                    revenueByDay.merge(Totals.day(units.keyAt(slot)), revenue(inventory, barcode, units.valueAt(slot)), Long::sum);
+                }
+            }
+            TopK best = new TopK(top);
+            long[] barcodes = new long[unitsByProduct.size()];
+            int count = 0;
+            for (int slot = 0; slot < unitsByProduct.capacity(); slot++) {
+                if (unitsByProduct.isUsed(slot)) {
+                    barcodes[count] = unitsByProduct.keyAt(slot);
+                    // Rank by units, most first; TopK keeps the smallest values
+                    best.offer(-unitsByProduct.valueAt(slot) << 32 | count);
+                    count++;
+                }
+            }
+
+            System.out.printf("Sales %s (UTC): %d orders read in %.2f s%s%n", allTime ? "of all time" : "over the last " + days + " days",
+                    totals.getOrders(), seconds, totals.getSkipped() > 0 ? " (" + totals.getSkipped() + " unreadable lines skipped)" : "");
+            System.out.println("Top sellers:");
+            int[] ranked = best.toSortedArray();
+            for (int i = 0; i < ranked.length; i++) {
+                long barcode = barcodes[ranked[i]];
+                long sold = unitsByProduct.get(barcode);
+                Product product = inventory.findByBarcode(barcode);
+                System.out.println((i + 1) + ". " + (product != null ? product.getName() : "Unknown product " + barcode)
+                        + " - " + sold + " sold, $" + Money.format(revenue(inventory, barcode, sold)));
+            }
+            System.out.println("Revenue per day:");
+            for (Map.Entry<Long, Long> day : revenueByDay.entrySet()) {
+                System.out.println(LocalDate.ofEpochDay(day.getKey()) + ": $" + Money.format(day.getValue()));
+            }
+        }
+
+        private static long revenue(ProductCatalog inventory, long barcode, long units) {
+            Product product = inventory.findByBarcode(barcode);
+            return product == null ? 0 : Math.multiplyExact(product.getPriceCents(), units);
+        }
+    }
+
+    // ProductImport class
+    // Bulk changes to the live catalog from a supplier feed in the products.csv format, id,name,price,barcode[,stock],
+    // in four stages:
+    // - parse: the feed is cut into chunks at line breaks and the chunks are parsed in parallel on the fork/join pool;
+    // - validate: rows are checked in feed order, so a barcode or id that turns up again is reported against the later
+    //   line (Product.equals only compares barcodes, so two products sharing an id would otherwise slip through);
+    // - merge: ProductCatalog.merge applies the accepted rows to a copy of the live catalog, rejecting ids that belong
+    //   to other products already in it;
+    // - swap: the copy is published with a single volatile write, so shoppers never wait for an import.
+    // A row without a stock column leaves the stock of a product already listed as it is. Bad rows are skipped and
+    // reported; the rest of the feed still goes in. Changed products are saved by the next saveProducts.
+    // Usage: --import <file>, or import <file> on the standard input of --server
+    public static class ProductImport {
+        private static final int MAX_PROBLEMS = 20; // Reported per import, earliest lines first
+
+        // Row class
+        public static class Row {
+            private int line; // 1-based line in the feed
+            private final Product product;
+            private final int stock; // Only meaningful if hasStock()
+            private final boolean hasStock;
+
+            Row(int line, Product product, int stock, boolean hasStock) {
+                this.line = line;
+                this.product = product;
+                this.stock = stock;
+                this.hasStock = hasStock;
+            }
+
+            public int getLine() {
+                return line;
+            }
+
+            public Product getProduct() {
+                return product;
+            }
+
+            public boolean hasStock() {
+                return hasStock;
+            }
+
+            public int getStock() {
+                return stock;
+            }
+        }
+
+        // Report class
+        public static class Report {
+            private final String feed;
+            private final TreeMap<Integer, String> problems = new TreeMap<>(); // The earliest MAX_PROBLEMS, by line
+            private int rows;
+            private int added;
+            private int updated;
+            private int unchanged;
+            private int rejected;
+            private long parseMillis;
+            private long millis;
+
+            Report(String feed) {
+                this.feed = feed;
+            }
+
+            public void reject(int line, String reason) {
+                rejected++;
+                problems.put(line, reason);
+                if (problems.size() > MAX_PROBLEMS) {
+                    problems.pollLastEntry();
+                }
+            }
+
+            void added() {
+                added++;
+            }
+
+            void updated() {
+                updated++;
+            }
+
+            void unchanged() {
+                unchanged++;
+            }
+
+            public int getAdded() {
+                return added;
+            }
+
+            public int getUpdated() {
+                return updated;
+            }
+
+            public int getRejected() {
+                return rejected;
+            }
+
+            @Override
+            public String toString() {
+                StringBuilder text = new StringBuilder();
+                text.append("Imported ").append(feed).append(": ").append(rows).append(" rows in ").append(millis).append(" ms (")
+                        .append(parseMillis).append(" ms parsing), ").append(added).append(" added, ").append(updated).append(" updated, ")
+                        .append(unchanged).append(" unchanged, ").append(rejected).append(" rejected.");
+                for (Map.Entry<Integer, String> problem : problems.entrySet()) {
+                    text.append("\n  line ").append(problem.getKey()).append(": ").append(problem.getValue());
+                }
+                if (rejected > problems.size()) {
+                    text.append("\n  ... and ").append(rejected - problems.size()).append(" more");
+                }
+                return text.toString();
+            }
+        }
+
+        // What one chunk of the feed parsed to. Lines are counted from the start of the chunk until chunks are joined.
+        private static class Parsed {
+            private final List<Row> rows = new ArrayList<>();
+            private final TreeMap<Integer, String> problems = new TreeMap<>();
+            private int rejected;
+            private int lines;
+
+            void reject(int line, String reason) {
+                rejected++;
+                if (problems.size() < MAX_PROBLEMS) {
+                    problems.put(line, reason);
+                }
+            }
+
+            // Appends the chunk that follows this one.
+            void join(Parsed next) {
+                for (Row row : next.rows) {
+                    row.line += lines;
+                    rows.add(row);
+                }
+                for (Map.Entry<Integer, String> problem : next.problems.entrySet()) {
+                    if (problems.size() < MAX_PROBLEMS) {
+                        problems.put(problem.getKey() + lines, problem.getValue());
+                    }
+                }
+                rejected += next.rejected;
+                lines += next.lines;
+            }
+        }
+
+        public static Report run(String feed, ProductCatalog catalog) throws IOException {
+            long start = System.nanoTime();
+            Report report = new Report(feed);
+            Parsed parsed = parse(feed);
+            report.parseMillis = (System.nanoTime() - start) / 1_000_000;
+            report.rows = parsed.rows.size() + parsed.rejected;
+            report.rejected = parsed.rejected;
+            report.problems.putAll(parsed.problems);
+            catalog.merge(validate(parsed.rows, report), report);
+            report.millis = (System.nanoTime() - start) / 1_000_000;
+            return report;
+        }
+
+        static Parsed parse(String feed) throws IOException {
+            try (FileChannel channel = FileChannel.open(Paths.get(feed), StandardOpenOption.READ)) {
+                return ForkJoinPool.commonPool().invoke(new ChunkTask(channel, 0, channel.size()));
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+        }
+
+        // Drops the later of two rows with the same barcode, or with the same id.
+        static List<Row> validate(List<Row> rows, Report report) {
+            LongLongMap barcodes = new LongLongMap(rows.size());
+            LongLongMap ids = new LongLongMap(rows.size());
+            List<Row> accepted = new ArrayList<>(rows.size());
+            for (Row row : rows) {
+                Product product = row.getProduct();
+                long barcodeLine = barcodes.get(product.getBarcode());
+                long idLine = ids.get(product.getId());
+                if (barcodeLine >= 0) {
+                    report.reject(row.getLine(), "barcode " + product.getBarcode() + " is also on line " + barcodeLine);
+                } else if (idLine >= 0) {
+                    report.reject(row.getLine(), "id " + product.getId() + " is also on line " + idLine);
+                } else {
+                    barcodes.put(product.getBarcode(), row.getLine());
+                    ids.put(product.getId(), row.getLine());
+                    accepted.add(row);
+                }
+            }
+            return accepted;
+        }
+
+        private static class ChunkTask extends LineChunkTask<Parsed> {
+            private static final long serialVersionUID = 1L;
+
+            ChunkTask(FileChannel channel, long start, long end) {
+                super(channel, start, end);
+            }
+
+            @Override
+            protected ChunkTask over(long start, long end) {
+                return new ChunkTask(getChannel(), start, end);
+            }
+
+            @Override
+            protected Parsed combine(Parsed left, Parsed right) {
+                left.join(right);
+                return left;
+            }
+
+            @Override
+            protected Parsed parse(byte[] chunk, int length) throws IOException {
+                Parsed parsed = new Parsed();
+                CsvCursor cursor = new CsvCursor(chunk, 0, length);
+                while (cursor.nextRecord()) {
+                    int line = ++parsed.lines;
+                    int fields = cursor.fieldCount();
+                    if (fields == 1 && cursor.recordBytes().length == 0) {
+                        continue; // Blank line
+                    }
+                    if (fields != 4 && fields != 5) {
+                        parsed.reject(line, "expected id,name,price,barcode[,stock] but found " + fields + " fields");
+                        continue;
+                    }
+                    try {
+                        int id = cursor.readInt();
+                        String name = cursor.readString();
+                        long priceCents = cursor.readCents();
+                        long barcode = cursor.readLong();
+                        int stock = fields == 5 ? cursor.readInt() : StockLedger.UNLIMITED;
+                        String problem = id <= 0 ? "id must be positive"
+                                : name.isBlank() ? "name is empty"
+                                : priceCents < 0 ? "price is negative"
+                                : barcode <= 0 ? "barcode must be positive"
+                                : fields == 5 && stock < 0 ? "stock is negative"
+                                : null;
+                        if (problem != null) {
+                            parsed.reject(line, problem);
+                        } else {
+                            parsed.rows.add(new Row(line, new Product(id, name, priceCents, barcode), stock, fields == 5));
                         }
-                        break;
-                    case 9: // Changes control to show the register/login/continue as guest screen
-                        loggedIn = false;
-                        break;
-                    case 10: // CLoses the program and saves the data to the files
-                        saveProducts(inventory);
-                        saveUsers(users);
-                        exit = true;
-                        break;
+                    } catch (NumberFormatException e) {
+                        parsed.reject(line, e.getMessage());
                     }
+                }
+                return parsed;
+            }
         }
+    }
 
-            } catch (IOException e) {
-                System.out.println("Error: " + e.getMessage());
-                continue;
+    // LoadGenerator class
+    // Drives a running server with scripted shoppers. Each one registers a fresh account, adds a product, checks out
+    // and disconnects. Reports completed sessions per second and checkout latency percentiles.
+    // Usage: --loadgen [port] [sessions] [concurrency] [productId]
+    public static class LoadGenerator {
+        private static final String PROMPT = "Choose an option: ";
+
+        public static void run(String[] args) throws InterruptedException {
+            int port = args.length > 1 ? Integer.parseInt(args[1]) : Server.DEFAULT_PORT;
+            int sessions = args.length > 2 ? Integer.parseInt(args[2]) : 1000;
+            int concurrency = args.length > 3 ? Integer.parseInt(args[3]) : 50;
+            String productId = args.length > 4 ? args[4] : "1";
+            String runId = Long.toString(System.currentTimeMillis(), 36);
+
+            long[] latencies = new long[sessions];
+            AtomicInteger next = new AtomicInteger();
+            AtomicInteger completed = new AtomicInteger();
+            AtomicInteger failed = new AtomicInteger();
+            long start = System.nanoTime();
+            try (ExecutorService shoppers = Executors.newVirtualThreadPerTaskExecutor()) {
+                for (int t = 0; t < concurrency; t++) {
+                    shoppers.execute(() -> {
+                        for (int i = next.getAndIncrement(); i < sessions; i = next.getAndIncrement()) {
+                            try {
+                                latencies[completed.getAndIncrement()] = shop(port, "load-" + runId + "-" + i + "@example.com", productId);
+                            } catch (IOException | IllegalStateException e) {
+                                failed.incrementAndGet();
+                            }
+                        }
+                    });
+                }
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+            int done = completed.get();
+            long[] sorted = Arrays.copyOf(latencies, done);
+            Arrays.sort(sorted);
+            System.out.printf("Sessions: %d completed, %d failed in %.2f s (%.1f sessions/s)%n", done, failed.get(), seconds, done / seconds);
+            if (done > 0) {
+                System.out.printf("Checkout latency: p50 %.3f ms, p99 %.3f ms, max %.3f ms%n",
+                        percentile(sorted, 0.50) / 1e6, percentile(sorted, 0.99) / 1e6, sorted[done - 1] / 1e6);
+            }
+        }
+
+        // Runs one shopper and returns how long the checkout took in nanoseconds.
+        private static long shop(int port, String email, String productId) throws IOException {
+            try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+                socket.setTcpNoDelay(true);
+                InputStream in = new BufferedInputStream(socket.getInputStream());
+                OutputStream out = socket.getOutputStream();
+                expect(in, PROMPT);
+                send(out, "1");
+                expect(in, "Enter your name: ");
+                send(out, "Load Tester");
+                expect(in, "Enter your email: ");
+                send(out, email);
+                expect(in, "Enter your password: ");
+                send(out, "load-test");
+                expect(in, PROMPT);
+                send(out, "3");
+                expect(in, PROMPT);
+                send(out, "1");
+                expect(in, "Enter product ID to add to cart: ");
+                send(out, productId);
+                expect(in, "Enter quantity: ");
+                send(out, "1");
+                expect(in, PROMPT);
+                long start = System.nanoTime();
+                send(out, "4");
+                String reply = expect(in, PROMPT);
+                long latency = System.nanoTime() - start;
+                if (!reply.contains("Checkout successful")) {
+                    throw new IllegalStateException("Checkout failed: " + reply);
+                }
+                return latency;
+            }
+        }
+
+        private static void send(OutputStream out, String line) throws IOException {
+            out.write((line + "\n").getBytes(StandardCharsets.UTF_8));
+            out.flush();
+        }
+
+        // Reads until the output ends with the marker and returns everything read.
+        private static String expect(InputStream in, String marker) throws IOException {
+            StringBuilder text = new StringBuilder();
+            while (text.length() < marker.length() || text.lastIndexOf(marker, text.length() - marker.length()) < 0) {
+                int b = in.read();
+                if (b < 0) {
+                    throw new EOFException("Server closed the connection while waiting for \"" + marker + "\"");
+                }
+                text.append((char) b);
+            }
+            return text.toString();
+        }
+
+        private static long percentile(long[] sorted, double p) {
+            return sorted[Math.min(sorted.length - 1, (int) Math.ceil(p * sorted.length) - 1)];
+        }
+    }
+
+    // File writing functions
+
+    public static void saveProducts(RecordStore store, ProductCatalog inventory) throws IOException {
+        long start = Metrics.start();
+        int[] changed = inventory.takeChanged(); // Taken before the records, so a change made meanwhile is saved next time
+        List<String> records = new ArrayList<>();
+        List<Product> products = inventory.getProducts();
+        for (int ordinal : changed) {
+            records.add(productRecord(inventory, products.get(ordinal)));
+        }
+        try {
+            store.append(records);
+        } catch (IOException e) {
+            inventory.markChanged(changed);
+            throw e;
+        }
+        store.compactIfNeeded(() -> inventory.getProducts().stream().map(product -> productRecord(inventory, product)).iterator());
+        Metrics.SAVE_PRODUCTS.stop(start);
+    }
+
+    static String userRecord(User user) {
+        StringBuilder record = new StringBuilder();
+        record.append(user.getName()).append(',').append(user.getEmail()).append(',').append(user.getPassword());
+        for (CartItem item : user.getCart().getItems()) {
+            record.append(',').append(item.getProduct().getBarcode()).append(':').append(item.getQuantity());
+        }
+        return record.toString();
+    }
+
+    static String productRecord(ProductCatalog inventory, Product product) {
+        StringBuilder record = new StringBuilder();
+        record.append(product.getId()).append(',').append(product.getName()).append(',');
+        Money.append(record, product.getPriceCents()).append(',').append(product.getBarcode());
+        int stock = inventory.getStock(product);
+        if (stock != StockLedger.UNLIMITED) {
+            record.append(',').append(stock);
+        }
+        return record.toString();
+    }
+
+    // Function to encrypt password
+    // Only used to check passwords stored before PasswordService existed. Reads each rail straight out of the password
+    // instead of filling a rails x length matrix: rail r holds the characters at positions r and cycle - r of each cycle.
+    static String railFenceEncrypt(String password){
+        int rail = 3; // Number of rails
+        int cycle = 2 * (rail - 1);
+        int length = password.length();
+        char[] encrypted = new char[length];
+        int out = 0;
+        for (int r = 0; r < rail; r++) {
+            for (int i = r; i < length; i += cycle) {
+                encrypted[out++] = password.charAt(i);
+                int partner = i + cycle - 2 * r;
+                if (r != 0 && r != rail - 1 && partner < length) {
+                    encrypted[out++] = password.charAt(partner);
+                }
             }
         }
-        scanner.close();
+        return new String(encrypted);
+    }
+    public static void saveOrder(OrderLog orders, Order order) throws IOException {
+        long start = Metrics.start();
+        orders.append(order, Grocery::orderRecord);
+        Metrics.SAVE_ORDER.stop(start);
+    }
+
+    // Write order details: User name, email, order time, order id, and cart items
+    static byte[] orderRecord(Order order) {
+        StringBuilder line = orderHeader(order);
+        for (CartItem item : order.getCart().getItems()) {
+            line.append(',').append(item.getProduct().getBarcode()).append(':').append(item.getQuantity());
+        }
+        return line.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    // The name,email,time,#id fields every order line starts with.
+    static StringBuilder orderHeader(Order order) {
+        StringBuilder line = new StringBuilder();
+        line.append(order.getUser().getName()).append(',').append(order.getUser().getEmail()).append(',');
+        return Timestamps.append(line, order.getOrderDate().getTime()).append(",#").append(order.getId());
+    }
+
 
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && args[0].equals("--loadgen")) {
+            LoadGenerator.run(args);
+            return;
+        }
+        if (args.length > 0 && args[0].equals("--analytics")) {
+            SalesAnalytics.run(args);
+            return;
+        }
+        if (args.length > 0 && args[0].equals("--rebalance")) {
+            ShardRouter.rebalance(args);
+            return;
+        }
+        Store store = Store.open();
+        if (store == null) {
+            return;
+        }
+        if (args.length > 0 && args[0].equals("--server")) {
+            Server.run(store, args.length > 1 ? Integer.parseInt(args[1]) : Server.DEFAULT_PORT);
+            return;
+        }
+        if (args.length > 0 && args[0].equals("--shard")) {
+            new ShardServer(store).run(args.length > 1 ? Integer.parseInt(args[1]) : ShardServer.DEFAULT_PORT);
+            return;
+        }
+        if (args.length > 0 && args[0].equals("--batch")) {
+            BatchRunner.run(store, args);
+        } else if (args.length > 1 && args[0].equals("--import")) {
+            try {
+                System.out.println(store.importProducts(args[1]));
+            } catch (IOException e) {
+                System.out.println("Error importing products: " + e.getMessage());
+            }
+        } else {
+            new Session(store, System.in, System.out, System.console()).run();
+        }
+        try {
+            store.close();
+        } catch (IOException e) {
+            System.out.println("Error closing orders: " + e.getMessage());
+        }
     }
 }
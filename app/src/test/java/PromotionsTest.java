@@ -0,0 +1,53 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+// PromotionsTest class
+// Loading promotions.csv: rows that would take off more than a line costs are skipped, the rest still load.
+class PromotionsTest {
+    private static final Grocery.Product BANANA = new Grocery.Product(1, "Banana", 100, 111);
+    private static final Grocery.Product ORANGE = new Grocery.Product(2, "Orange", 100, 222);
+
+    @TempDir
+    Path dir;
+
+    private Grocery.Promotions load(String... rows) throws IOException {
+        Path file = dir.resolve("promotions.csv");
+        Files.write(file, List.of(rows));
+        return Grocery.Promotions.load(file.toString());
+    }
+
+    @Test
+    void multibuyWithZeroPriceIsSkipped() throws IOException {
+        Grocery.Promotions promotions = load("multibuy,111,3,0.00", "multibuy,222,2,1.50");
+        assertEquals(0, promotions.lineDiscount(BANANA, 3));
+        assertEquals(50, promotions.lineDiscount(ORANGE, 2));
+    }
+
+    @Test
+    void multibuyWithNegativePriceIsSkipped() throws IOException {
+        Grocery.Promotions promotions = load("multibuy,111,3,-1.00", "multibuy,222,2,1.50");
+        assertEquals(0, promotions.lineDiscount(BANANA, 3));
+        assertEquals(50, promotions.lineDiscount(ORANGE, 2));
+    }
+
+    @Test
+    void multibuyWithNonPositiveQuantityIsSkipped() throws IOException {
+        Grocery.Promotions promotions = load("multibuy,111,0,1.00", "multibuy,111,-2,1.00");
+        assertEquals(0, promotions.lineDiscount(BANANA, 3));
+    }
+
+    @Test
+    void skippedMultibuyKeepsTheValidDealForTheSameProduct() throws IOException {
+        Grocery.Promotions promotions = load("multibuy,111,3,2.00", "multibuy,111,3,-5.00");
+        assertEquals(100, promotions.lineDiscount(BANANA, 3));
+        Grocery.Cart cart = new Grocery.Cart();
+        cart.addProduct(BANANA, 3);
+        assertEquals(200, cart.calculateTotalCents(promotions));
+    }
+}
@@ -0,0 +1,58 @@
+package grocery;
+
+import java.io.IOException;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// AnalyticsBenchmark class
+// The --analytics report's scan of orders.csv, over the whole file and over the last week, which starts from a binary
+// search. Run with -Djava.util.concurrent.ForkJoinPool.common.parallelism=1 in jvmArgs to see the single-core cost.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AnalyticsBenchmark {
+    @Param({"1000000"})
+    public int orders;
+
+    private Workspace workspace;
+    private long today;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        workspace = new Workspace();
+        DataGenerator.writeOrders(workspace.path("orders.csv"), orders, 100_000, 10_000, System.currentTimeMillis(), 3);
+        today = LocalDate.now(ZoneOffset.UTC).toEpochDay();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        workspace.close();
+    }
+
+    @Benchmark
+    public Grocery.SalesAnalytics.Totals allTime() throws IOException {
+        return Grocery.SalesAnalytics.scan(workspace.file("orders.csv"), 0, today);
+    }
+
+    @Benchmark
+    public Grocery.SalesAnalytics.Totals lastWeek() throws IOException {
+        return Grocery.SalesAnalytics.scan(workspace.file("orders.csv"), today - 6, today);
+    }
+}
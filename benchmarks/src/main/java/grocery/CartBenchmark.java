@@ -0,0 +1,105 @@
+package grocery;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// CartBenchmark class
+// Cart updates and totals on a cart of the given number of lines, priced against promotions.csv with the given
+// number of rules. Every line starts with a large quantity, so adding and reducing one unit never adds or drops a
+// line and each iteration measures the same cart shape.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CartBenchmark {
+    private static final int START_QUANTITY = 1_000_000_000;
+
+    @Param({"10", "500"})
+    public int lines;
+
+    @Param({"10000"})
+    public int rules;
+
+    private Grocery.Promotions promotions;
+    private Grocery.Product[] products;
+    private Grocery.Cart cart;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        Grocery.ProductCatalog catalog = new Grocery.ProductCatalog();
+        int catalogSize = Math.max(lines, 10_000);
+        try (Workspace workspace = new Workspace()) {
+            DataGenerator.writeProducts(workspace.path("products.csv"), catalogSize, 1);
+            DataGenerator.writePromotions(workspace.path("promotions.csv"), rules, catalogSize, 4);
+            Grocery.loadProducts(workspace.file("products.csv"), catalog::add);
+            promotions = Grocery.Promotions.load(workspace.file("promotions.csv"));
+        }
+        List<Grocery.Product> all = catalog.getProducts();
+        products = new Grocery.Product[lines];
+        for (int i = 0; i < lines; i++) {
+            products[i] = all.get(i * (catalogSize / lines));
+        }
+    }
+
+    @Setup(Level.Iteration)
+    public void fillCart() {
+        cart = new Grocery.Cart();
+        for (Grocery.Product product : products) {
+            cart.addProduct(product, START_QUANTITY);
+        }
+        cart.calculateTotalCents(promotions);
+    }
+
+    private Grocery.Product nextProduct() {
+        next = next + 1 == lines ? 0 : next + 1;
+        return products[next];
+    }
+
+    @Benchmark
+    public void addProduct() {
+        cart.addProduct(nextProduct(), 1);
+    }
+
+    @Benchmark
+    public void reduceProduct() {
+        cart.reduceProduct(nextProduct(), 1);
+    }
+
+    @Benchmark
+    public long calculateTotal() {
+        return cart.calculateTotalCents();
+    }
+
+    // One line changed since the last total, so only that line is priced again.
+    @Benchmark
+    public long addProductAndCalculateTotalWithPromotions() {
+        cart.addProduct(nextProduct(), 1);
+        return cart.calculateTotalCents(promotions);
+    }
+
+    // Every line priced again, as after the promotions themselves change.
+    @Benchmark
+    public long priceWholeCart() {
+        long total = 0;
+        for (Grocery.CartItem item : cart.getItems()) {
+            total += promotions.lineDiscount(item.getProduct(), item.getQuantity());
+        }
+        return total;
+    }
+}
@@ -0,0 +1,117 @@
+package grocery;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// CatalogBenchmark class
+// Product lookups by id, barcode and name, for both product tables, and the same lookups done the way the store did
+// them before the catalog, as a loop over the product list. Keys are drawn with the skew of real traffic and cycle
+// through a fixed array, so the cost of picking a key stays out of the measurement. Popular products come first in
+// the generated list, so the loops find them early, as they did with the real products.csv.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CatalogBenchmark {
+    private static final int KEYS = 1 << 16;
+
+    @Param({"object", "columnar"})
+    public String table;
+
+    @Param({"10000", "100000", "1000000"})
+    public int products;
+
+    private Grocery.ProductCatalog catalog;
+    private List<Grocery.Product> inventory;
+    private final int[] ids = new int[KEYS];
+    private final long[] barcodes = new long[KEYS];
+    private final String[] names = new String[KEYS];
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        catalog = table.equals("columnar") ? new Grocery.ProductCatalog(new Grocery.ColumnarProductTable()) : new Grocery.ProductCatalog();
+        try (Workspace workspace = new Workspace()) {
+            DataGenerator.writeProducts(workspace.path("products.csv"), products, 1);
+            Grocery.loadProducts(workspace.file("products.csv"), catalog::add);
+        }
+        inventory = new ArrayList<>(catalog.getProducts());
+        Random random = new Random(7);
+        for (int i = 0; i < KEYS; i++) {
+            int product = DataGenerator.popular(random, products);
+            ids[i] = product + 1;
+            barcodes[i] = DataGenerator.barcode(product);
+            names[i] = DataGenerator.productName(product).toLowerCase();
+        }
+    }
+
+    private int nextKey() {
+        next = (next + 1) & (KEYS - 1);
+        return next;
+    }
+
+    @Benchmark
+    public Grocery.Product findById() {
+        return catalog.findById(ids[nextKey()]);
+    }
+
+    @Benchmark
+    public Grocery.Product findByBarcode() {
+        return catalog.findByBarcode(barcodes[nextKey()]);
+    }
+
+    @Benchmark
+    public Grocery.Product findByName() {
+        return catalog.findByName(names[nextKey()]);
+    }
+
+    @Benchmark
+    public Grocery.Product scanById() {
+        int id = ids[nextKey()];
+        for (Grocery.Product product : inventory) {
+            if (product.getId() == id) {
+                return product;
+            }
+        }
+        return null;
+    }
+
+    @Benchmark
+    public Grocery.Product scanByBarcode() {
+        long barcode = barcodes[nextKey()];
+        for (Grocery.Product product : inventory) {
+            if (product.getBarcode() == barcode) {
+                return product;
+            }
+        }
+        return null;
+    }
+
+    @Benchmark
+    public Grocery.Product scanByName() {
+        String name = names[nextKey()];
+        for (Grocery.Product product : inventory) {
+            if (product.getName().equalsIgnoreCase(name)) {
+                return product;
+            }
+        }
+        return null;
+    }
+}
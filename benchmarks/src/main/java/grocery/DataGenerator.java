@@ -0,0 +1,153 @@
+package grocery;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Random;
+
+// DataGenerator class
+// Writes products.csv, users.csv, orders.csv and promotions.csv in the formats the store reads, at whatever volume a
+// benchmark needs. Popularity is skewed the way real sales are: a few products and shoppers account for most orders.
+// The same seed always gives the same files.
+// Usage: DataGenerator <dir> [products] [users] [orders]
+public final class DataGenerator {
+    public static final long FIRST_BARCODE = 4_006_381_000_000L;
+    public static final long DAY_MILLIS = 86_400_000L;
+
+    private static final String[] KINDS = {"Organic", "Fresh", "Frozen", "Smoked", "Whole", "Sliced", "Spicy", "Sweet", "Dried", "Roasted"};
+    private static final String[] FOODS = {"Banana", "Orange", "Grapes", "Apple", "Strawberry", "Pineapple", "Watermelon", "Bread", "Cheese",
+            "Milk", "Yogurt", "Chicken", "Salmon", "Rice", "Pasta", "Tomato", "Potato", "Onion", "Coffee", "Tea"};
+    private static final String[] SIZES = {"250g", "500g", "1kg", "2kg", "6 pack", "12 pack"};
+    private static final String[] NAMES = {"Zarif", "Kashshaf", "Adib", "Maya", "Liam", "Noor", "Sofia", "Omar", "Elena", "Kenji"};
+
+    private DataGenerator() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.out.println("Usage: DataGenerator <dir> [products] [users] [orders]");
+            return;
+        }
+        Path dir = Paths.get(args[0]);
+        int products = args.length > 1 ? Integer.parseInt(args[1]) : 100_000;
+        int users = args.length > 2 ? Integer.parseInt(args[2]) : 100_000;
+        int orders = args.length > 3 ? Integer.parseInt(args[3]) : 1_000_000;
+        Files.createDirectories(dir);
+        writeProducts(dir.resolve("products.csv"), products, 1);
+        writeUsers(dir.resolve("users.csv"), users, products, 2);
+        writeOrders(dir.resolve("orders.csv"), orders, users, products, System.currentTimeMillis(), 3);
+        writePromotions(dir.resolve("promotions.csv"), Math.max(1, products / 10), products, 4);
+        System.out.println("Wrote " + products + " products, " + users + " users and " + orders + " orders to " + dir);
+    }
+
+    public static long barcode(int product) {
+        return FIRST_BARCODE + product;
+    }
+
+    // Unique for every index: the first 1200 are plain names, later ones carry a batch number.
+    public static String productName(int product) {
+        int combinations = KINDS.length * FOODS.length * SIZES.length;
+        String name = KINDS[product % KINDS.length] + " " + FOODS[product / KINDS.length % FOODS.length] + " "
+                + SIZES[product / (KINDS.length * FOODS.length) % SIZES.length];
+        return product < combinations ? name : name + " #" + (product / combinations);
+    }
+
+    public static String userName(int user) {
+        return NAMES[user % NAMES.length];
+    }
+
+    public static String email(int user) {
+        return "shopper" + user + "@example.com";
+    }
+
+    public static String password(int user) {
+        return "password" + user;
+    }
+
+    // Rows are id,name,price,barcode[,stock]; about one product in five has unlimited stock.
+    public static void writeProducts(Path file, int count, long seed) throws IOException {
+        Random random = new Random(seed);
+        try (BufferedWriter out = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            StringBuilder line = new StringBuilder();
+            for (int i = 0; i < count; i++) {
+                line.setLength(0);
+                long cents = 25 + (long) Math.exp(random.nextDouble() * Math.log(5000)); // 0.26 to 50.25, mostly cheap
+                line.append(i + 1).append(',').append(productName(i)).append(',');
+                Grocery.Money.append(line, cents).append(',').append(barcode(i));
+                if (random.nextInt(5) != 0) {
+                    line.append(',').append(random.nextInt(500));
+                }
+                out.append(line).append('\n');
+            }
+        }
+    }
+
+    // Rows are name,email,password followed by the saved cart; passwords are in the legacy rail-fence form, which the
+    // store upgrades on first login, because hashing a million of them would take hours.
+    public static void writeUsers(Path file, int count, int products, long seed) throws IOException {
+        Random random = new Random(seed);
+        try (BufferedWriter out = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            StringBuilder line = new StringBuilder();
+            for (int i = 0; i < count; i++) {
+                line.setLength(0);
+                line.append(userName(i)).append(',').append(email(i)).append(',').append(Grocery.railFenceEncrypt(password(i)));
+                for (int item = random.nextInt(6); item > 0; item--) {
+                    line.append(',').append(barcode(popular(random, products))).append(':').append(1 + random.nextInt(5));
+                }
+                out.append(line).append('\n');
+            }
+        }
+    }
+
+    // Order lines as saveOrder writes them, spread evenly over the year up to endMillis, in time order.
+    public static void writeOrders(Path file, int count, int users, int products, long endMillis, long seed) throws IOException {
+        Random random = new Random(seed);
+        long startMillis = endMillis - 365 * DAY_MILLIS;
+        try (BufferedWriter out = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            StringBuilder line = new StringBuilder();
+            for (int i = 0; i < count; i++) {
+                line.setLength(0);
+                int user = popular(random, users);
+                long millis = startMillis + (endMillis - startMillis) * i / Math.max(count, 1);
+                line.append(userName(user)).append(',').append(email(user)).append(',');
+                Grocery.Timestamps.append(line, millis).append(",#").append(i + 1);
+                for (int item = 1 + random.nextInt(8); item > 0; item--) {
+                    line.append(',').append(barcode(popular(random, products))).append(':').append(1 + random.nextInt(4));
+                }
+                out.append(line).append('\n');
+            }
+        }
+    }
+
+    // A mix of percentage deals, multibuys, category deals and a few coupons.
+    public static void writePromotions(Path file, int rules, int products, long seed) throws IOException {
+        Random random = new Random(seed);
+        try (BufferedWriter out = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            for (int i = 0; i < rules; i++) {
+                long barcode = barcode(random.nextInt(products));
+                switch (i % 4) {
+                    case 0 -> out.append("percent,").append(Long.toString(barcode)).append(',').append(Integer.toString(5 + random.nextInt(40)));
+                    case 1 -> out.append("multibuy,").append(Long.toString(barcode)).append(',').append(Integer.toString(2 + random.nextInt(3)))
+                            .append(',').append(Grocery.Money.format(100 + random.nextInt(900)));
+                    case 2 -> {
+                        out.append("category,").append(FOODS[random.nextInt(FOODS.length)]).append(',').append(Integer.toString(5 + random.nextInt(20)));
+                        for (int member = 0; member < 5; member++) {
+                            out.append(',').append(Long.toString(barcode(random.nextInt(products))));
+                        }
+                    }
+                    default -> out.append("coupon,SAVE").append(Integer.toString(i)).append(',').append(Integer.toString(5 + random.nextInt(20)))
+                            .append(',').append(Grocery.Money.format(random.nextInt(5000)));
+                }
+                out.append('\n');
+            }
+        }
+    }
+
+    // Skewed towards low indexes: index 0 is picked far more often than index n - 1.
+    public static int popular(Random random, int n) {
+        return random.nextInt(random.nextInt(n) + 1);
+    }
+}
@@ -0,0 +1,191 @@
+package grocery;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// FootprintBenchmark class
+// Memory figures, each measured once per run and reported as a counter next to the time it took to build what was
+// measured: heap per account of the account index at 5M accounts and per signed-in shopper on top of it, heap per SKU
+// of each product table, of a whole catalog and of the plain product list the catalog replaced, and bytes allocated
+// per row reading orders.csv.
+// Heap is the growth over a full collection before building, taken after another one while what was built is still
+// referenced. The counters are summed over iterations, so there is exactly one.
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 0)
+@Measurement(iterations = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx3g")
+public class FootprintBenchmark {
+    private static final int SIGNED_IN = 10_000; // The account cache's default size
+
+    // Accounts class
+    @State(Scope.Benchmark)
+    public static class Accounts {
+        @Param({"5000000"})
+        public int accounts;
+
+        private Workspace workspace;
+        private Grocery.RecordStore userStore;
+        private final Grocery.ProductCatalog catalog = new Grocery.ProductCatalog();
+
+        @Setup(Level.Trial)
+        public void setUp() throws IOException {
+            workspace = new Workspace();
+            DataGenerator.writeProducts(workspace.path("products.csv"), 10_000, 1);
+            DataGenerator.writeUsers(workspace.path("users.csv"), accounts, 10_000, 2);
+            Grocery.loadProducts(workspace.file("products.csv"), catalog::add);
+            userStore = new Grocery.RecordStore(workspace.file("users.csv"), workspace.file("users.log"));
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            workspace.close();
+        }
+    }
+
+    // Products class
+    @State(Scope.Benchmark)
+    public static class Products {
+        @Param({"1000000"})
+        public int products;
+
+        private Workspace workspace;
+
+        @Setup(Level.Trial)
+        public void setUp() throws IOException {
+            workspace = new Workspace();
+            DataGenerator.writeProducts(workspace.path("products.csv"), products, 1);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            workspace.close();
+        }
+    }
+
+    // Orders class
+    @State(Scope.Benchmark)
+    public static class Orders {
+        private Workspace workspace;
+
+        @Setup(Level.Trial)
+        public void setUp() throws IOException {
+            workspace = new Workspace();
+            DataGenerator.writeOrders(workspace.path("orders.csv"), OrderLoadBenchmark.ROWS, 100_000, 10_000, System.currentTimeMillis(), 3);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            workspace.close();
+        }
+    }
+
+    // AccountBytes class
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class AccountBytes {
+        public double bytesPerAccount;
+        public double bytesPerSignedIn;
+    }
+
+    // SkuBytes class
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class SkuBytes {
+        public double bytesPerSku;
+    }
+
+    // RowBytes class
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class RowBytes {
+        public double bytesPerRow;
+    }
+
+    private static long usedHeap() {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    // The index alone, then with SIGNED_IN accounts read in and held by the account cache.
+    @Benchmark
+    public Grocery.UserRepository accounts(Accounts accounts, AccountBytes bytes) throws IOException {
+        long before = usedHeap();
+        Grocery.UserRepository repository = new Grocery.UserRepository(accounts.userStore, accounts.catalog, SIGNED_IN);
+        repository.buildIndex();
+        long indexed = usedHeap();
+        for (int user = 0; user < SIGNED_IN; user++) {
+            repository.get(DataGenerator.email(user));
+        }
+        long signedIn = usedHeap();
+        bytes.bytesPerAccount = (double) (indexed - before) / accounts.accounts;
+        bytes.bytesPerSignedIn = (double) (signedIn - indexed) / SIGNED_IN;
+        return repository;
+    }
+
+    // The table alone: product fields and the id, barcode and name indexes.
+    private static Grocery.ProductTable table(Grocery.ProductTable table, Products products, SkuBytes bytes) throws IOException {
+        long before = usedHeap();
+        Grocery.loadProducts(products.workspace.file("products.csv"), (product, stock) -> table.add(product));
+        bytes.bytesPerSku = (double) (usedHeap() - before) / products.products;
+        return table;
+    }
+
+    @Benchmark
+    public Grocery.ProductTable objectTable(Products products, SkuBytes bytes) throws IOException {
+        return table(new Grocery.ObjectProductTable(), products, bytes);
+    }
+
+    @Benchmark
+    public Grocery.ProductTable columnarTable(Products products, SkuBytes bytes) throws IOException {
+        return table(new Grocery.ColumnarProductTable(), products, bytes);
+    }
+
+    // A whole catalog on the object table, with stock levels and the search index.
+    @Benchmark
+    public Grocery.ProductCatalog catalog(Products products, SkuBytes bytes) throws IOException {
+        long before = usedHeap();
+        Grocery.ProductCatalog catalog = new Grocery.ProductCatalog();
+        Grocery.loadProducts(products.workspace.file("products.csv"), catalog::add);
+        bytes.bytesPerSku = (double) (usedHeap() - before) / products.products;
+        return catalog;
+    }
+
+    // The List<Product> the store kept before the catalog, without indexes, stock or search.
+    @Benchmark
+    public List<Grocery.Product> productList(Products products, SkuBytes bytes) throws IOException {
+        long before = usedHeap();
+        List<Grocery.Product> inventory = new ArrayList<>();
+        Grocery.loadProducts(products.workspace.file("products.csv"), (product, stock) -> inventory.add(product));
+        bytes.bytesPerSku = (double) (usedHeap() - before) / products.products;
+        return inventory;
+    }
+
+    @Benchmark
+    public long orderRows(Orders orders, RowBytes bytes) throws IOException {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long before = threads.getCurrentThreadAllocatedBytes();
+        long sum = OrderLoadBenchmark.readAll(orders.workspace.file("orders.csv"));
+        bytes.bytesPerRow = (double) (threads.getCurrentThreadAllocatedBytes() - before) / OrderLoadBenchmark.ROWS;
+        return sum;
+    }
+}
@@ -0,0 +1,79 @@
+package grocery;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// FormatBenchmark class
+// Reading and writing the values every CSV line carries: amounts of money with Money against BigDecimal, and order
+// times with Timestamps against the Date.toString() format orders used to be written in.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FormatBenchmark {
+    private final byte[] price = "12.345".getBytes(StandardCharsets.US_ASCII);
+    private final String priceText = "12.345";
+    private final long cents = 1_234_567;
+    private final long millis = 1_745_136_451_264L;
+    private final byte[] isoTime = Grocery.Timestamps.format(millis).getBytes(StandardCharsets.US_ASCII);
+    private final byte[] legacyTime = "Sun Apr 20 03:07:31 CDT 2025".getBytes(StandardCharsets.US_ASCII);
+    private final StringBuilder out = new StringBuilder(64);
+
+    @Benchmark
+    public long parseMoney() {
+        return Grocery.Money.parse(price, 0, price.length);
+    }
+
+    @Benchmark
+    public long parseBigDecimal() {
+        return new BigDecimal(priceText).setScale(2, RoundingMode.HALF_UP).unscaledValue().longValueExact();
+    }
+
+    @Benchmark
+    public int formatMoney() {
+        out.setLength(0);
+        return Grocery.Money.append(out, cents).length();
+    }
+
+    @Benchmark
+    public int formatBigDecimal() {
+        out.setLength(0);
+        return out.append(BigDecimal.valueOf(cents, 2).toPlainString()).length();
+    }
+
+    @Benchmark
+    public int formatTimestamp() {
+        out.setLength(0);
+        return Grocery.Timestamps.append(out, millis).length();
+    }
+
+    @Benchmark
+    public int formatDate() {
+        out.setLength(0);
+        return out.append(new Date(millis)).length();
+    }
+
+    @Benchmark
+    public long parseTimestamp() {
+        return Grocery.Timestamps.parse(isoTime, 0, isoTime.length);
+    }
+
+    @Benchmark
+    public long parseLegacyTimestamp() {
+        return Grocery.Timestamps.parse(legacyTime, 0, legacyTime.length);
+    }
+}
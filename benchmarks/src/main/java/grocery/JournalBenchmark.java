@@ -0,0 +1,138 @@
+package grocery;
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+// JournalBenchmark class
+// Checkouts writing their orders from 1, 8 and 64 threads at once: through the OrderStore's group-commit journal, and
+// the way saveOrder used to do it, opening orders.csv for append, writing the line and closing it again per order.
+// The old way never called fsync, so the journal runs without fsync as well as with its default of one per batch.
+// Scores are orders per second across all threads.
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JournalBenchmark {
+    // Journal class
+    // An OrderStore over an empty orders.csv with the given fsync policy.
+    @State(Scope.Benchmark)
+    public static class Journal {
+        @Param({"NONE", "PER_BATCH"})
+        public String fsync;
+
+        private Workspace workspace;
+        private Grocery.OrderStore store;
+
+        @Setup(Level.Trial)
+        public void setUp() throws IOException {
+            workspace = new Workspace();
+            store = Grocery.OrderStore.open(workspace.file("orders.csv"), workspace.file("orders.idx"),
+                    Grocery.OrderJournal.FsyncPolicy.valueOf(fsync), 256 * 1024, 0);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            store.close();
+            workspace.close();
+        }
+    }
+
+    // Legacy class
+    // An empty orders.csv for the old way to append to.
+    @State(Scope.Benchmark)
+    public static class Legacy {
+        private Workspace workspace;
+        private String file;
+
+        @Setup(Level.Trial)
+        public void setUp() throws IOException {
+            workspace = new Workspace();
+            file = workspace.file("orders.csv");
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            workspace.close();
+        }
+    }
+
+    // Checkout class
+    // Each thread's own order: writing one stamps it with its id and time.
+    @State(Scope.Thread)
+    public static class Checkout {
+        private Grocery.Order order;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            Grocery.Cart cart = new Grocery.Cart();
+            for (int i = 0; i < 5; i++) {
+                cart.addProduct(new Grocery.Product(i + 1, DataGenerator.productName(i), 100 + i, DataGenerator.barcode(i)), 1 + i);
+            }
+            order = new Grocery.Order(new Grocery.User(DataGenerator.userName(0), DataGenerator.email(0), "unused"), cart);
+        }
+    }
+
+    // saveOrder as it was before the journal.
+    private static void legacySaveOrder(String file, Grocery.Order order) throws IOException {
+        try (BufferedWriter writer = new BufferedWriter(new FileWriter(file, true))) {
+            writer.write(order.getUser().getName() + "," + order.getUser().getEmail() + "," + order.getOrderDate());
+            for (Grocery.CartItem item : order.getCart().getItems()) {
+                writer.write("," + item.getProduct().getBarcode() + ":" + item.getQuantity());
+            }
+            writer.newLine();
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void journal1(Journal journal, Checkout checkout) throws IOException {
+        Grocery.saveOrder(journal.store, checkout.order);
+    }
+
+    @Benchmark
+    @Threads(8)
+    public void journal8(Journal journal, Checkout checkout) throws IOException {
+        Grocery.saveOrder(journal.store, checkout.order);
+    }
+
+    @Benchmark
+    @Threads(64)
+    public void journal64(Journal journal, Checkout checkout) throws IOException {
+        Grocery.saveOrder(journal.store, checkout.order);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void legacy1(Legacy legacy, Checkout checkout) throws IOException {
+        legacySaveOrder(legacy.file, checkout.order);
+    }
+
+    @Benchmark
+    @Threads(8)
+    public void legacy8(Legacy legacy, Checkout checkout) throws IOException {
+        legacySaveOrder(legacy.file, checkout.order);
+    }
+
+    @Benchmark
+    @Threads(64)
+    public void legacy64(Legacy legacy, Checkout checkout) throws IOException {
+        legacySaveOrder(legacy.file, checkout.order);
+    }
+}
@@ -0,0 +1,116 @@
+package grocery;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// LoadBenchmark class
+// Startup work: parsing products.csv and users.csv, building the account index, and the same startup from
+// grocery.snap instead of the CSV files. Also a bulk import of a full price feed into a loaded catalog.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LoadBenchmark {
+    @Param({"100000"})
+    public int products;
+
+    @Param({"100000"})
+    public int users;
+
+    private Workspace workspace;
+    private Grocery.RecordStore productStore;
+    private Grocery.RecordStore userStore;
+    private Grocery.ProductCatalog catalog;
+    private Grocery.ProductCatalog importTarget;
+    private int imports;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        workspace = new Workspace();
+        DataGenerator.writeProducts(workspace.path("products.csv"), products, 1);
+        DataGenerator.writeProducts(workspace.path("feed.csv"), products, 5);
+        DataGenerator.writeUsers(workspace.path("users.csv"), users, products, 2);
+        productStore = new Grocery.RecordStore(workspace.file("products.csv"), workspace.file("products.log"));
+        userStore = new Grocery.RecordStore(workspace.file("users.csv"), workspace.file("users.log"));
+        catalog = loadProducts();
+        snapshot().write(catalog, buildUserIndex());
+        importTarget = loadProducts();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        workspace.close();
+    }
+
+    private Grocery.Snapshot snapshot() {
+        return new Grocery.Snapshot(workspace.file("grocery.snap"), productStore, userStore);
+    }
+
+    @Benchmark
+    public Grocery.ProductCatalog loadProducts() throws IOException {
+        Grocery.ProductCatalog loaded = new Grocery.ProductCatalog();
+        Grocery.loadProducts(productStore.getSnapshotFile(), loaded::add);
+        return loaded;
+    }
+
+    // Every account with its saved cart, as the store read them before accounts were loaded on demand.
+    @Benchmark
+    public int readUsers() throws IOException {
+        int count = 0;
+        try (Grocery.CsvCursor cursor = Grocery.CsvCursor.open(userStore.getSnapshotFile())) {
+            while (cursor.nextRecord()) {
+                if (Grocery.readUser(cursor, catalog) != null) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    @Benchmark
+    public Grocery.UserRepository buildUserIndex() throws IOException {
+        Grocery.UserRepository repository = new Grocery.UserRepository(userStore, catalog, 10_000);
+        repository.buildIndex();
+        return repository;
+    }
+
+    @Benchmark
+    public Grocery.UserRepository startFromCsv() throws IOException {
+        Grocery.ProductCatalog loaded = loadProducts();
+        Grocery.UserRepository repository = new Grocery.UserRepository(userStore, loaded, 10_000);
+        repository.buildIndex();
+        return repository;
+    }
+
+    // Alternates between two feeds with the same products at different prices and stock, so every import changes rows.
+    @Benchmark
+    public Grocery.ProductImport.Report importProducts() throws IOException {
+        String feed = workspace.file(imports++ % 2 == 0 ? "feed.csv" : "products.csv");
+        return Grocery.ProductImport.run(feed, importTarget);
+    }
+
+    @Benchmark
+    public Grocery.UserRepository startFromSnapshot() throws IOException {
+        Grocery.ProductCatalog loaded = new Grocery.ProductCatalog();
+        Grocery.UserRepository repository = new Grocery.UserRepository(userStore, loaded, 10_000);
+        if (!snapshot().load(loaded, repository)) {
+            throw new IllegalStateException("Snapshot was not used");
+        }
+        return repository;
+    }
+}
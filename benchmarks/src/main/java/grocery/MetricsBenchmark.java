@@ -0,0 +1,55 @@
+package grocery;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// MetricsBenchmark class
+// What instrumentation costs on the cheapest instrumented path, a catalog lookup. Metrics.ENABLED is fixed when the
+// class loads, so each variant runs in its own fork with grocery.metrics set accordingly; with metrics off the lookup
+// should cost the same as before it was instrumented.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class MetricsBenchmark {
+    private static final int PRODUCTS = 10_000;
+
+    private Grocery.ProductCatalog catalog;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        catalog = new Grocery.ProductCatalog();
+        for (int i = 0; i < PRODUCTS; i++) {
+            catalog.add(new Grocery.Product(i + 1, DataGenerator.productName(i), 100, DataGenerator.barcode(i)));
+        }
+    }
+
+    private int nextId() {
+        next = next == PRODUCTS ? 1 : next + 1;
+        return next;
+    }
+
+    @Benchmark
+    @Fork(value = 1, jvmArgsAppend = "-Dgrocery.metrics=true")
+    public Grocery.Product lookupWithMetrics() {
+        return catalog.findById(nextId());
+    }
+
+    @Benchmark
+    @Fork(value = 1, jvmArgsAppend = "-Dgrocery.metrics=false")
+    public Grocery.Product lookupWithoutMetrics() {
+        return catalog.findById(nextId());
+    }
+}
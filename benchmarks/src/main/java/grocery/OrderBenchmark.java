@@ -0,0 +1,103 @@
+package grocery;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+// OrderBenchmark class
+// Writing orders and reading the order history of a store holding a year of generated orders. Orders are written
+// without fsync, so the numbers are for the store's own work rather than the disk's.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class OrderBenchmark {
+    private static final int KEYS = 1024;
+
+    @Param({"1000000"})
+    public int orders;
+
+    @Param({"100000"})
+    public int users;
+
+    private Workspace workspace;
+    private Grocery.OrderStore store;
+    private Grocery.Order order;
+    private final String[] emails = new String[KEYS];
+    private long endMillis;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        workspace = new Workspace();
+        endMillis = System.currentTimeMillis();
+        DataGenerator.writeOrders(workspace.path("orders.csv"), orders, users, 10_000, endMillis, 3);
+        store = Grocery.OrderStore.open(workspace.file("orders.csv"), workspace.file("orders.idx"),
+                Grocery.OrderJournal.FsyncPolicy.NONE, 256 * 1024, 0);
+        Grocery.Cart cart = new Grocery.Cart();
+        for (int i = 0; i < 5; i++) {
+            cart.addProduct(new Grocery.Product(i + 1, DataGenerator.productName(i), 100 + i, DataGenerator.barcode(i)), 1 + i);
+        }
+        order = new Grocery.Order(new Grocery.User(DataGenerator.userName(0), DataGenerator.email(0), "unused"), cart);
+        Random random = new Random(11);
+        for (int i = 0; i < KEYS; i++) {
+            emails[i] = DataGenerator.email(DataGenerator.popular(random, users));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        store.close();
+        workspace.close();
+    }
+
+    private String nextEmail() {
+        next = (next + 1) & (KEYS - 1);
+        return emails[next];
+    }
+
+    @Benchmark
+    public void saveOrder() throws IOException {
+        Grocery.saveOrder(store, order);
+    }
+
+    @Benchmark
+    public void orderHistory(Blackhole blackhole) throws IOException {
+        store.forEachOrder(nextEmail(), cursor -> blackhole.consume(cursor.readString()));
+    }
+
+    // The same users' histories decoded; after the first round they come from the history cache.
+    @Benchmark
+    public void orderHistoryDecoded(Blackhole blackhole) throws IOException {
+        blackhole.consume(store.history(nextEmail()));
+    }
+
+    @Benchmark
+    public void orderHistoryLastMonth(Blackhole blackhole) throws IOException {
+        store.forEachOrder(nextEmail(), endMillis - 30 * DataGenerator.DAY_MILLIS, Long.MAX_VALUE,
+                cursor -> blackhole.consume(cursor.readString()));
+    }
+
+    // Every order of one day across the store, found by binary search over orders.csv.
+    @Benchmark
+    public void ordersOfOneDay(Blackhole blackhole) throws IOException {
+        long day = endMillis - (1 + (next++ & 255)) * DataGenerator.DAY_MILLIS;
+        store.forEachOrderBetween(day, day + DataGenerator.DAY_MILLIS, cursor -> blackhole.consume(cursor.fieldCount()));
+    }
+}
@@ -0,0 +1,82 @@
+package grocery;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// OrderLoadBenchmark class
+// Loading a generated orders.csv of ROWS lines: reading every field of every line through CsvCursor, and opening an
+// OrderStore without its sidecar, which builds the per-account index from the file. Scores are per row, so with
+// -prof gc the gc.alloc.rate.norm figure is the bytes allocated per row; FootprintBenchmark.orderRows reports the
+// same figure without the profiler.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@OperationsPerInvocation(OrderLoadBenchmark.ROWS)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class OrderLoadBenchmark {
+    static final int ROWS = 5_000_000;
+
+    private Workspace workspace;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        workspace = new Workspace();
+        DataGenerator.writeOrders(workspace.path("orders.csv"), ROWS, 100_000, 10_000, System.currentTimeMillis(), 3);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        workspace.close();
+    }
+
+    // Every field of every order line, numbers parsed in place, as the history and analytics readers take them.
+    static long readAll(String file) throws IOException {
+        long sum = 0;
+        try (Grocery.CsvCursor cursor = Grocery.CsvCursor.open(file)) {
+            while (cursor.nextRecord()) {
+                if (cursor.fieldCount() < 4) {
+                    continue;
+                }
+                cursor.skipField();
+                sum += cursor.readHash();
+                sum += cursor.readTimestamp();
+                sum += cursor.readOrderId();
+                while (cursor.hasMoreFields()) {
+                    sum += cursor.readLong();
+                    sum += cursor.readInt();
+                }
+            }
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public long readOrders() throws IOException {
+        return readAll(workspace.file("orders.csv"));
+    }
+
+    @Benchmark
+    public long indexOrders() throws IOException {
+        Files.deleteIfExists(workspace.path("orders.idx"));
+        try (Grocery.OrderStore store = Grocery.OrderStore.open(workspace.file("orders.csv"), workspace.file("orders.idx"),
+                Grocery.OrderJournal.FsyncPolicy.NONE, 256 * 1024, 0)) {
+            return store.size();
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package grocery;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// PasswordBenchmark class
+// The cost of a login: the legacy rail-fence check, a full PBKDF2 check at the given iteration count, and a repeat
+// login answered from the cache of verified passwords.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PasswordBenchmark {
+    @Param({"600000"})
+    public int iterations;
+
+    private Grocery.PasswordService passwords; // Remembers nothing, so every check runs the KDF
+    private Grocery.PasswordService caching;
+    private Grocery.User hashed;
+    private Grocery.User cached;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        passwords = new Grocery.PasswordService(iterations, 1, 16, 0);
+        hashed = new Grocery.User("Zarif", "zarif@example.com", passwords.hash("correct horse"));
+        caching = new Grocery.PasswordService(iterations, 1, 16, 16);
+        cached = new Grocery.User("Adib", "adib@example.com", caching.hash("battery staple"));
+        caching.verify(cached, "battery staple");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        passwords.close();
+        caching.close();
+    }
+
+    @Benchmark
+    public String railFenceEncrypt() {
+        return Grocery.railFenceEncrypt("zarifhaider");
+    }
+
+    @Benchmark
+    public boolean verifyHashed() throws IOException {
+        return passwords.verify(hashed, "correct horse");
+    }
+
+    @Benchmark
+    public boolean verifyCached() throws IOException {
+        return caching.verify(cached, "battery staple");
+    }
+}
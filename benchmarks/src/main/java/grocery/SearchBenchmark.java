@@ -0,0 +1,84 @@
+package grocery;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// SearchBenchmark class
+// "Filter products by name" queries of a given length, answered by ProductCatalog.search and by the loop it replaced,
+// which lowercased every name and kept those containing the query. One- and two-character queries are served by the
+// index's single-character and pair postings, longer ones by its trigrams. Queries are pieces of real product names,
+// picked with the skew of real traffic.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SearchBenchmark {
+    private static final int KEYS = 1024;
+
+    @Param({"1000000"})
+    public int products;
+
+    @Param({"1", "2", "3", "6"})
+    public int queryLength;
+
+    private Grocery.ProductCatalog catalog;
+    private List<Grocery.Product> inventory;
+    private final String[] queries = new String[KEYS];
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        catalog = new Grocery.ProductCatalog();
+        try (Workspace workspace = new Workspace()) {
+            DataGenerator.writeProducts(workspace.path("products.csv"), products, 1);
+            Grocery.loadProducts(workspace.file("products.csv"), catalog::add);
+        }
+        inventory = catalog.getProducts();
+        Random random = new Random(13);
+        for (int i = 0; i < KEYS; i++) {
+            String name = DataGenerator.productName(DataGenerator.popular(random, products)).toLowerCase(Locale.ROOT);
+            int start = random.nextInt(name.length() - queryLength + 1);
+            queries[i] = name.substring(start, start + queryLength);
+        }
+    }
+
+    private String nextQuery() {
+        next = (next + 1) & (KEYS - 1);
+        return queries[next];
+    }
+
+    @Benchmark
+    public List<Grocery.Product> search() {
+        return catalog.search(nextQuery(), Grocery.ProductCatalog.SEARCH_LIMIT);
+    }
+
+    @Benchmark
+    public List<Grocery.Product> linearScan() {
+        String query = nextQuery();
+        List<Grocery.Product> matches = new ArrayList<>();
+        for (Grocery.Product product : inventory) {
+            if (product.getName().toLowerCase().contains(query.toLowerCase())) {
+                matches.add(product);
+            }
+        }
+        return matches;
+    }
+}
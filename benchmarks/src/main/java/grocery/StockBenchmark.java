@@ -0,0 +1,175 @@
+package grocery;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+// StockBenchmark class
+// Checkouts racing for the same two hot products: through the catalog's StockLedger, and through one synchronized map
+// of stock levels, the way stock would be kept behind a single lock. Every call is one order for one of each product,
+// and every second call on a thread also puts one of each back, so about half the orders find the shelf empty and are
+// turned away however the threads are scheduled. JMH reports calls per second with the reserved and rejected
+// counters beside them. After every iteration the stock left is checked against what was taken and put back, so an
+// oversold unit fails the run.
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(8)
+@Fork(1)
+public class StockBenchmark {
+    private static final int START_STOCK = 100;
+
+    // Shelf class
+    // The two products and an order for one of each, shared by all threads.
+    public abstract static class Shelf {
+        final Grocery.Product[] products = new Grocery.Product[2];
+        List<Grocery.CartItem> order;
+        final LongAdder taken = new LongAdder();
+        final LongAdder returned = new LongAdder();
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            Grocery.Cart cart = new Grocery.Cart();
+            for (int i = 0; i < products.length; i++) {
+                products[i] = new Grocery.Product(i + 1, DataGenerator.productName(i), 100, DataGenerator.barcode(i));
+                stock(products[i], START_STOCK);
+                cart.addProduct(products[i], 1);
+            }
+            order = cart.getItems();
+        }
+
+        abstract void stock(Grocery.Product product, int level);
+
+        abstract int level(Grocery.Product product);
+
+        // Every order takes one of each product and every restock puts one of each back, so both levels move together.
+        @TearDown(Level.Iteration)
+        public void check() {
+            long expected = START_STOCK + returned.sum() - taken.sum();
+            for (Grocery.Product product : products) {
+                int left = level(product);
+                if (left != expected || left < 0) {
+                    throw new IllegalStateException(product.getName() + " has " + left + " in stock, expected " + expected);
+                }
+            }
+        }
+    }
+
+    // LedgerShelf class
+    // Stock kept by the catalog, one compare-and-set per line.
+    @State(Scope.Benchmark)
+    public static class LedgerShelf extends Shelf {
+        final Grocery.ProductCatalog catalog = new Grocery.ProductCatalog();
+
+        @Override
+        void stock(Grocery.Product product, int level) {
+            catalog.add(product, level);
+        }
+
+        @Override
+        int level(Grocery.Product product) {
+            return catalog.getStock(product);
+        }
+    }
+
+    // LockedShelf class
+    // Stock levels by barcode behind the one lock, checked and taken for all lines at once.
+    @State(Scope.Benchmark)
+    public static class LockedShelf extends Shelf {
+        private final Map<Long, Integer> levels = new HashMap<>();
+
+        @Override
+        synchronized void stock(Grocery.Product product, int level) {
+            levels.put(product.getBarcode(), level);
+        }
+
+        @Override
+        synchronized int level(Grocery.Product product) {
+            return levels.get(product.getBarcode());
+        }
+
+        synchronized Grocery.Product reserve(List<Grocery.CartItem> items) {
+            for (Grocery.CartItem item : items) {
+                if (levels.get(item.getProduct().getBarcode()) < item.getQuantity()) {
+                    return item.getProduct();
+                }
+            }
+            for (Grocery.CartItem item : items) {
+                levels.merge(item.getProduct().getBarcode(), -item.getQuantity(), Integer::sum);
+            }
+            return null;
+        }
+
+        synchronized void release(List<Grocery.CartItem> items) {
+            for (Grocery.CartItem item : items) {
+                levels.merge(item.getProduct().getBarcode(), item.getQuantity(), Integer::sum);
+            }
+        }
+    }
+
+    // Orders class
+    // Per-thread counts of orders reserved and turned away, reported by JMH as rates next to the calls per second.
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Orders {
+        public long reserved;
+        public long rejected;
+        private long calls;
+
+        boolean restockDue() {
+            return (calls++ & 1) == 0;
+        }
+
+        @Setup(Level.Iteration)
+        public void clear() {
+            reserved = 0;
+            rejected = 0;
+        }
+    }
+
+    @Benchmark
+    public void ledger(LedgerShelf shelf, Orders orders) {
+        if (orders.restockDue()) {
+            shelf.catalog.release(shelf.order);
+            shelf.returned.increment();
+        }
+        if (shelf.catalog.reserve(shelf.order) == null) {
+            shelf.catalog.commit(shelf.order);
+            shelf.taken.increment();
+            orders.reserved++;
+        } else {
+            orders.rejected++;
+        }
+    }
+
+    @Benchmark
+    public void locked(LockedShelf shelf, Orders orders) {
+        if (orders.restockDue()) {
+            shelf.release(shelf.order);
+            shelf.returned.increment();
+        }
+        if (shelf.reserve(shelf.order) == null) {
+            shelf.taken.increment();
+            orders.reserved++;
+        } else {
+            orders.rejected++;
+        }
+    }
+}
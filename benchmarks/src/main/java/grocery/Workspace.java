@@ -0,0 +1,35 @@
+package grocery;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+// Workspace class
+// A temporary directory for one benchmark's generated files, deleted with everything in it on close.
+public final class Workspace implements AutoCloseable {
+    private final Path dir;
+
+    public Workspace() throws IOException {
+        dir = Files.createTempDirectory("grocery-bench");
+    }
+
+    // Absolute path of a file in the workspace, as a string the store's file APIs take.
+    public String file(String name) {
+        return dir.resolve(name).toString();
+    }
+
+    public Path path(String name) {
+        return dir.resolve(name);
+    }
+
+    @Override
+    public void close() throws IOException {
+        try (Stream<Path> files = Files.walk(dir)) {
+            for (Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(file);
+            }
+        }
+    }
+}